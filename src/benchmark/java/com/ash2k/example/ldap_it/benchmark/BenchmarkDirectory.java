@@ -0,0 +1,99 @@
+package com.ash2k.example.ldap_it.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import org.apache.commons.pool.impl.GenericKeyedObjectPool;
+import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.ldap.core.support.LdapContextSource;
+import org.springframework.ldap.pool.factory.MutablePoolingContextSource;
+
+import com.ash2k.example.ldap_it.utils.EmbeddedADSVer157;
+import com.ash2k.example.ldap_it.utils.EmbeddedADSVer157.PartitionType;
+
+/**
+ * Embedded directory server started for a benchmark together with a pooled
+ * {@link LdapTemplate} connected to it. Uses the same schema and seed data as
+ * integration tests.
+ * 
+ * @author Mikhail Mazursky
+ */
+final class BenchmarkDirectory {
+
+	static final String HOST = "127.0.0.1";
+	static final String BASE = "ou=example,dc=ash2k,dc=com";
+
+	private final EmbeddedADSVer157 ads;
+	private final LdapTemplate ldapTemplate;
+
+	private BenchmarkDirectory(EmbeddedADSVer157 ads, LdapTemplate ldapTemplate) {
+		this.ads = ads;
+		this.ldapTemplate = ldapTemplate;
+	}
+
+	static BenchmarkDirectory start(String... indexedAttributes)
+			throws Exception {
+		return start(GenericKeyedObjectPool.DEFAULT_MAX_ACTIVE,
+				indexedAttributes);
+	}
+
+	/**
+	 * @param poolSize
+	 *            maximum number of active connections of each type
+	 */
+	static BenchmarkDirectory start(int poolSize, String... indexedAttributes)
+			throws Exception {
+		return start(PartitionType.JDBM, poolSize, indexedAttributes);
+	}
+
+	static BenchmarkDirectory start(PartitionType partitionType,
+			int poolSize, String... indexedAttributes) throws Exception {
+		EmbeddedADSVer157 ads = new EmbeddedADSVer157();
+		ads.setAddress(HOST);
+		ads.setPort(freePort());
+		ads.setRoot(BASE);
+		ads.setLdifResources("classpath:example.ldif");
+		ads.setSchemaResources("classpath:example.schema");
+		ads.setIndexedAttributes(indexedAttributes);
+		ads.setPartitionType(partitionType);
+		// every fork starts a server - reuse initialized working directory
+		ads.setSnapshotDirectory(new File(System.getProperty("java.io.tmpdir"),
+				"apacheds_snapshots"));
+		ads.start();
+		if (!ads.isRunning()) {
+			throw new IllegalStateException("Directory server did not start");
+		}
+
+		LdapContextSource cs = new LdapContextSource();
+		cs.setUrl("ldap://" + HOST + ":" + ads.getPort());
+		cs.setBase(BASE);
+		cs.setUserDn("uid=admin,ou=system");
+		cs.setPassword("secret");
+		cs.afterPropertiesSet();
+
+		MutablePoolingContextSource pcs = new MutablePoolingContextSource();
+		pcs.setContextSource(cs);
+		pcs.setMaxActive(poolSize);
+		pcs.setMaxIdle(poolSize);
+
+		return new BenchmarkDirectory(ads, new LdapTemplate(pcs));
+	}
+
+	LdapTemplate getLdapTemplate() {
+		return ldapTemplate;
+	}
+
+	void stop() {
+		ads.stop();
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package com.ash2k.example.ldap_it.benchmark;
+
+import java.io.File;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs benchmarks once for each thread count and writes JSON results of each
+ * run to {@code <dir>/jmh-threads-<n>.json}. Arguments are passed to JMH as
+ * is, e.g. to select benchmarks or override parameters. Thread counts and
+ * output directory are taken from {@value #PROP_THREADS} and
+ * {@value #PROP_RESULT_DIR} system properties.
+ * 
+ * @author Mikhail Mazursky
+ */
+public final class BenchmarkMain {
+
+	public static final String PROP_THREADS = "jmh.threads";
+	public static final String PROP_RESULT_DIR = "jmh.resultDir";
+
+	private BenchmarkMain() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		File resultDir = new File(System.getProperty(PROP_RESULT_DIR,
+				"target/jmh"));
+		if (!resultDir.isDirectory() && !resultDir.mkdirs()) {
+			throw new IllegalStateException("Cannot create " + resultDir);
+		}
+
+		for (String threads : System.getProperty(PROP_THREADS, "1,4,16")
+				.split(",")) {
+			int n = Integer.parseInt(threads.trim());
+			new Runner(new OptionsBuilder()
+					.parent(commandLine)
+					.threads(n)
+					.resultFormat(ResultFormatType.JSON)
+					.result(new File(resultDir, "jmh-threads-" + n + ".json")
+							.getPath()).build()).run();
+		}
+	}
+}
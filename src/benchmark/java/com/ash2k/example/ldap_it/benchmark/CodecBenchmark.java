@@ -0,0 +1,178 @@
+package com.ash2k.example.ldap_it.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ash2k.example.ldap_it.domain.SpecialUser;
+import com.ash2k.example.ldap_it.domain.SpecialUserCodec;
+
+/**
+ * Compares {@link SpecialUserCodec} with Java serialization of a single user
+ * and of a batch of {@value #BATCH_SIZE} users. Java serialization is
+ * measured both for the current serialized form of {@link SpecialUser} and
+ * for {@link LegacyUser} that has the former default form.
+ * <p>
+ * Encoded sizes are printed during setup.
+ * 
+ * @author Mikhail Mazursky
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+	static final int BATCH_SIZE = 100;
+
+	SpecialUser user;
+	LegacyUser legacyUser;
+	ArrayList<SpecialUser> batch;
+	ArrayList<LegacyUser> legacyBatch;
+
+	ByteBuffer buffer;
+	byte[] encoded;
+	byte[] encodedBatch;
+	byte[] serialized;
+	byte[] serializedLegacy;
+	byte[] serializedLegacyBatch;
+
+	@Setup
+	public void setUp() throws IOException {
+		user = new SpecialUser("user1", "user1_special");
+		legacyUser = new LegacyUser(user.getUsername(), user.getSpecial());
+		batch = new ArrayList<SpecialUser>(BATCH_SIZE);
+		legacyBatch = new ArrayList<LegacyUser>(BATCH_SIZE);
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			batch.add(new SpecialUser("user" + i, "user" + i + "_special"));
+			legacyBatch.add(new LegacyUser("user" + i, "user" + i
+					+ "_special"));
+		}
+
+		buffer = ByteBuffer.allocate(SpecialUserCodec.encodedSize(batch));
+		encoded = SpecialUserCodec.toBytes(user);
+		SpecialUserCodec.encodeAll(batch, buffer);
+		encodedBatch = new byte[buffer.position()];
+		buffer.flip();
+		buffer.get(encodedBatch);
+		serialized = serialize(user);
+		serializedLegacy = serialize(legacyUser);
+		serializedLegacyBatch = serialize(legacyBatch);
+
+		System.out.println("Encoded sizes: codec " + encoded.length
+				+ ", serialized " + serialized.length + ", legacy "
+				+ serializedLegacy.length + "; batch: codec "
+				+ encodedBatch.length + ", serialized "
+				+ serialize(batch).length + ", legacy "
+				+ serializedLegacyBatch.length);
+	}
+
+	@Benchmark
+	public ByteBuffer codecEncode() {
+		buffer.clear();
+		SpecialUserCodec.encode(user, buffer);
+		return buffer;
+	}
+
+	@Benchmark
+	public SpecialUser codecDecode() {
+		return SpecialUserCodec.decode(ByteBuffer.wrap(encoded));
+	}
+
+	@Benchmark
+	public ByteBuffer codecEncodeBatch() {
+		buffer.clear();
+		SpecialUserCodec.encodeAll(batch, buffer);
+		return buffer;
+	}
+
+	@Benchmark
+	public List<SpecialUser> codecDecodeBatch() {
+		return SpecialUserCodec.decodeAll(ByteBuffer.wrap(encodedBatch));
+	}
+
+	@Benchmark
+	public byte[] serializationWrite() throws IOException {
+		return serialize(user);
+	}
+
+	@Benchmark
+	public Object serializationRead() throws Exception {
+		return deserialize(serialized);
+	}
+
+	@Benchmark
+	public byte[] legacySerializationWrite() throws IOException {
+		return serialize(legacyUser);
+	}
+
+	@Benchmark
+	public Object legacySerializationRead() throws Exception {
+		return deserialize(serializedLegacy);
+	}
+
+	@Benchmark
+	public byte[] legacySerializationWriteBatch() throws IOException {
+		return serialize(legacyBatch);
+	}
+
+	@Benchmark
+	public Object legacySerializationReadBatch() throws Exception {
+		return deserialize(serializedLegacyBatch);
+	}
+
+	private static byte[] serialize(Object o) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(o);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static Object deserialize(byte[] bytes) throws Exception {
+		return new ObjectInputStream(new ByteArrayInputStream(bytes))
+				.readObject();
+	}
+
+	/**
+	 * {@link SpecialUser} with default serialized form, as it used to be.
+	 */
+	static final class LegacyUser implements Serializable {
+		private static final long serialVersionUID = -2894513640064806569L;
+
+		private final String username, special;
+
+		LegacyUser(String username, String special) {
+			this.username = username;
+			this.special = special;
+		}
+
+		public String getUsername() {
+			return username;
+		}
+
+		public String getSpecial() {
+			return special;
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package com.ash2k.example.ldap_it.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ash2k.example.ldap_it.utils.EmbeddedADSVer157;
+import com.ash2k.example.ldap_it.utils.LdifBulkImporter;
+
+/**
+ * Measures how long it takes to start embedded directory server seeded with
+ * {@value #USERS} users from LDIF: with the default loader and with
+ * {@link LdifBulkImporter} reading plain and gzip-compressed file. Score is
+ * time per imported entry including server startup.
+ * 
+ * @author Mikhail Mazursky
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class ImportBenchmark {
+
+	static final int USERS = 10000;
+	static final int USERS_PER_DEPARTMENT = 100;
+
+	public enum ImportMode {
+		LOADER, BULK, BULK_GZIP
+	}
+
+	@Param({ "LOADER", "BULK", "BULK_GZIP" })
+	ImportMode mode;
+
+	File ldif;
+	EmbeddedADSVer157 ads;
+
+	@Setup(Level.Trial)
+	public void writeLdif() throws IOException {
+		boolean gzip = mode == ImportMode.BULK_GZIP;
+		ldif = File.createTempFile("users", gzip ? ".ldif"
+				+ LdifBulkImporter.GZIP_SUFFIX : ".ldif");
+		OutputStream os = new FileOutputStream(ldif);
+		if (gzip) {
+			os = new GZIPOutputStream(os);
+		}
+		Writer writer = new OutputStreamWriter(os, "UTF-8");
+		try {
+			writer.write("version: 1\n\n");
+			writer.write("dn: ou=users," + BenchmarkDirectory.BASE
+					+ "\nobjectClass: organizationalUnit\nobjectClass: top\n"
+					+ "ou: users\n\n");
+			for (int i = 0; i < USERS; i++) {
+				// departments are followed by their users
+				String department = "ou=department"
+						+ (i / USERS_PER_DEPARTMENT) + ",ou=users,"
+						+ BenchmarkDirectory.BASE;
+				if (i % USERS_PER_DEPARTMENT == 0) {
+					writer.write("dn: " + department
+							+ "\nobjectClass: organizationalUnit\n"
+							+ "objectClass: top\nou: department"
+							+ (i / USERS_PER_DEPARTMENT) + "\n\n");
+				}
+				writer.write("dn: uid=user" + i + "," + department
+						+ "\nobjectClass: specialUser\n"
+						+ "objectClass: inetOrgPerson\n"
+						+ "objectClass: organizationalPerson\n"
+						+ "objectClass: person\nobjectClass: top\n"
+						+ "uid: user" + i + "\ncn: user" + i + "\nsn: user" + i
+						+ "\nspecial: special_" + i + "\n\n");
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteLdif() {
+		ldif.delete();
+	}
+
+	@TearDown(Level.Invocation)
+	public void stop() {
+		ads.stop();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(USERS)
+	public EmbeddedADSVer157 start() {
+		ads = new EmbeddedADSVer157();
+		ads.setAddress(BenchmarkDirectory.HOST);
+		ads.setPort(0);
+		ads.setRoot(BenchmarkDirectory.BASE);
+		ads.setSchemaResources("classpath:example.schema");
+		ads.setLdifResources(ldif.toURI().toString());
+		ads.setBulkImport(mode != ImportMode.LOADER);
+		ads.start();
+		if (!ads.isRunning()) {
+			throw new IllegalStateException("Directory server did not start");
+		}
+		return ads;
+	}
+}
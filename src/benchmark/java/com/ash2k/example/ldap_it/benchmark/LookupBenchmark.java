@@ -0,0 +1,100 @@
+package com.ash2k.example.ldap_it.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.ldap.core.ContextMapper;
+import org.springframework.ldap.core.DirContextOperations;
+import org.springframework.ldap.core.LdapEncoder;
+import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.ldap.core.support.AbstractContextMapper;
+
+import com.ash2k.example.ldap_it.domain.SpecialUser;
+import com.ash2k.example.ldap_it.service.LdapSpecialUserService;
+import com.ash2k.example.ldap_it.utils.EmbeddedADSVer157;
+
+/**
+ * Compares projected lookup of {@link LdapSpecialUserService#load(String)}
+ * with a lookup that fetches the whole entry into a
+ * {@link org.springframework.ldap.core.DirContextAdapter} and builds DN with
+ * {@link String#format(String, Object...)}. Run with {@code -prof gc} to see
+ * allocations per operation.
+ * 
+ * @author Mikhail Mazursky
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LookupBenchmark {
+
+	static final int USERS = 1000;
+
+	// does what the package private SpecialUserContextMapper does
+	static final ContextMapper ADAPTER_MAPPER = new AbstractContextMapper() {
+		@Override
+		protected Object doMapFromContext(DirContextOperations ctx) {
+			return new SpecialUser(
+					ctx.getStringAttribute(LdapSpecialUserService.LDAP_USERNAME),
+					ctx.getStringAttribute(LdapSpecialUserService.LDAP_SPECIAL));
+		}
+	};
+
+	BenchmarkDirectory directory;
+	LdapTemplate ldapTemplate;
+	LdapSpecialUserService service;
+	int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		directory = BenchmarkDirectory
+				.start(EmbeddedADSVer157.DEFAULT_INDEXED_ATTRIBUTES);
+		ldapTemplate = directory.getLdapTemplate();
+		service = new LdapSpecialUserService(ldapTemplate);
+
+		List<SpecialUser> batch = new ArrayList<SpecialUser>(USERS);
+		for (int i = 0; i < USERS; i++) {
+			batch.add(new SpecialUser("user" + i, "special_" + i));
+		}
+		if (!service.persistAll(batch).isSuccessful()) {
+			throw new IllegalStateException("Failed to seed users");
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		directory.stop();
+	}
+
+	@Benchmark
+	public Object adapterLookup() {
+		String dn = String.format(LdapSpecialUserService.USERDN_FORMAT,
+				LdapEncoder.nameEncode("user" + nextUser()));
+		return ldapTemplate.lookup(dn, ADAPTER_MAPPER);
+	}
+
+	@Benchmark
+	public SpecialUser projectedLookup() {
+		return service.load("user" + nextUser());
+	}
+
+	private int nextUser() {
+		next = (next + 7919) % USERS;
+		return next;
+	}
+}
@@ -0,0 +1,92 @@
+package com.ash2k.example.ldap_it.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.pool.impl.GenericKeyedObjectPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ash2k.example.ldap_it.api.BatchResult;
+import com.ash2k.example.ldap_it.domain.SpecialUser;
+import com.ash2k.example.ldap_it.service.LdapSpecialUserService;
+import com.ash2k.example.ldap_it.utils.EmbeddedADSVer157;
+import com.ash2k.example.ldap_it.utils.EmbeddedADSVer157.PartitionType;
+
+/**
+ * Compares bulk insert and lookup throughput of in-memory and JDBM
+ * partitions of embedded directory server.
+ * 
+ * @author Mikhail Mazursky
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PartitionBenchmark {
+
+	static final int USERS = 1000;
+	static final int BATCH = 100;
+
+	@Param({ "JDBM", "IN_MEMORY" })
+	PartitionType partitionType;
+
+	BenchmarkDirectory directory;
+	LdapSpecialUserService service;
+	final AtomicInteger inserted = new AtomicInteger();
+	int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		directory = BenchmarkDirectory.start(partitionType,
+				GenericKeyedObjectPool.DEFAULT_MAX_ACTIVE,
+				EmbeddedADSVer157.DEFAULT_INDEXED_ATTRIBUTES);
+		service = new LdapSpecialUserService(directory.getLdapTemplate());
+
+		List<SpecialUser> batch = new ArrayList<SpecialUser>(USERS);
+		for (int i = 0; i < USERS; i++) {
+			batch.add(new SpecialUser("user" + i, "special_" + i));
+		}
+		if (!service.persistAll(batch).isSuccessful()) {
+			throw new IllegalStateException("Failed to seed users");
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		directory.stop();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public BatchResult bulkInsert() {
+		List<SpecialUser> batch = new ArrayList<SpecialUser>(BATCH);
+		for (int i = 0; i < BATCH; i++) {
+			int n = inserted.incrementAndGet();
+			batch.add(new SpecialUser("bulk" + n, "special_" + n));
+		}
+		return service.persistAll(batch);
+	}
+
+	@Benchmark
+	public SpecialUser lookup() {
+		next = (next + 7919) % USERS;
+		return service.load("user" + next);
+	}
+}
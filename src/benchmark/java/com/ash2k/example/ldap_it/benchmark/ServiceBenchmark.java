@@ -0,0 +1,101 @@
+package com.ash2k.example.ldap_it.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ash2k.example.ldap_it.domain.SpecialUser;
+import com.ash2k.example.ldap_it.service.LdapSpecialUserService;
+import com.ash2k.example.ldap_it.utils.EmbeddedADSVer157;
+
+/**
+ * End-to-end throughput of {@link LdapSpecialUserService#persist(SpecialUser)}
+ * and {@link LdapSpecialUserService#load(String)} against embedded directory
+ * server for several connection pool sizes. Number of threads is set when
+ * running, see {@link BenchmarkMain}.
+ * 
+ * @author Mikhail Mazursky
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServiceBenchmark {
+
+	static final int USERS = 1000;
+
+	@Param({ "1", "8", "32" })
+	int poolSize;
+
+	BenchmarkDirectory directory;
+	LdapSpecialUserService service;
+	final AtomicInteger persisted = new AtomicInteger();
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		directory = BenchmarkDirectory.start(poolSize,
+				EmbeddedADSVer157.DEFAULT_INDEXED_ATTRIBUTES);
+		service = new LdapSpecialUserService(directory.getLdapTemplate());
+
+		List<SpecialUser> batch = new ArrayList<SpecialUser>(USERS);
+		for (int i = 0; i < USERS; i++) {
+			batch.add(new SpecialUser("user" + i, "special_" + i));
+		}
+		if (!service.persistAll(batch).isSuccessful()) {
+			throw new IllegalStateException("Failed to seed users");
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		directory.stop();
+	}
+
+	@Benchmark
+	public SpecialUser load(Cursor cursor) {
+		return service.load("user" + cursor.next());
+	}
+
+	@Benchmark
+	public void persist() {
+		// every call creates a new entry
+		int i = persisted.incrementAndGet();
+		service.persist(new SpecialUser("new" + i, "special_" + i));
+	}
+
+	/**
+	 * Per-thread position among seeded users.
+	 */
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next;
+
+		@Setup
+		public void setUp() {
+			// threads start at different users
+			next = (System.identityHashCode(this) & 0x7fffffff) % USERS;
+		}
+
+		int next() {
+			next = (next + 7919) % USERS;
+			return next;
+		}
+	}
+}
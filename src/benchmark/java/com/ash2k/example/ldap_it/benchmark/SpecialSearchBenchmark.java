@@ -0,0 +1,90 @@
+package com.ash2k.example.ldap_it.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.ash2k.example.ldap_it.domain.SpecialUser;
+import com.ash2k.example.ldap_it.service.LdapSpecialUserService;
+import com.ash2k.example.ldap_it.utils.EmbeddedADSVer157;
+
+/**
+ * Compares latency of searches by the special attribute with and without
+ * server-side index on it as the number of users in the partition grows.
+ * 
+ * @author Mikhail Mazursky
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SpecialSearchBenchmark {
+
+	@Param({ "1000", "10000" })
+	int users;
+
+	@Param({ "true", "false" })
+	boolean indexed;
+
+	BenchmarkDirectory directory;
+	LdapSpecialUserService service;
+	int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		if (indexed) {
+			directory = BenchmarkDirectory.start("objectClass", "ou", "uid",
+					"uniqueMember", "cn", LdapSpecialUserService.LDAP_SPECIAL);
+		} else {
+			directory = BenchmarkDirectory
+					.start(EmbeddedADSVer157.DEFAULT_INDEXED_ATTRIBUTES);
+		}
+		service = new LdapSpecialUserService(directory.getLdapTemplate());
+
+		List<SpecialUser> batch = new ArrayList<SpecialUser>(users);
+		for (int i = 0; i < users; i++) {
+			batch.add(new SpecialUser("user" + i, "special_" + i));
+		}
+		if (!service.persistAll(batch).isSuccessful()) {
+			throw new IllegalStateException("Failed to seed users");
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		directory.stop();
+	}
+
+	@Benchmark
+	public List<SpecialUser> findBySpecial() {
+		return service.findBySpecial("special_" + nextUser());
+	}
+
+	@Benchmark
+	public List<SpecialUser> findBySpecialPrefix() {
+		// matches one user and, for small numbers, a few dozen more
+		return service.findBySpecialPrefix("special_" + nextUser() + "9");
+	}
+
+	private int nextUser() {
+		// stride through users so consecutive calls hit different entries
+		next = (next + 7919) % users;
+		return next;
+	}
+}
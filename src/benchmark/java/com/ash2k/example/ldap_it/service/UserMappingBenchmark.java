@@ -0,0 +1,95 @@
+package com.ash2k.example.ldap_it.service;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.NamingException;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.ldap.core.DirContextAdapter;
+import org.springframework.ldap.core.DistinguishedName;
+import org.springframework.ldap.core.LdapEncoder;
+
+import com.ash2k.example.ldap_it.service.LdapSpecialUserService.SpecialUserAttributesMapper;
+import com.ash2k.example.ldap_it.service.LdapSpecialUserService.SpecialUserContextMapper;
+
+/**
+ * Measures CPU-only parts of reading and writing users: mapping search
+ * results and building DNs. Each benchmark has a baseline that does the same
+ * the full-read way (whole entry mapped through {@link DirContextAdapter} by
+ * {@link SpecialUserContextMapper}, DN built with {@link String#format}).
+ * <p>
+ * Lives in the service package because it uses package private parts of
+ * {@link LdapSpecialUserService}.
+ * 
+ * @author Mikhail Mazursky
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UserMappingBenchmark {
+
+	static final String USERNAME = "user1";
+	static final String SPECIAL = "user1_special";
+
+	final SpecialUserAttributesMapper mapper = new SpecialUserAttributesMapper();
+	final SpecialUserContextMapper contextMapper = new SpecialUserContextMapper();
+
+	BasicAttributes projected;
+	BasicAttributes entry;
+	DistinguishedName dn;
+
+	@Setup
+	public void setUp() {
+		projected = new BasicAttributes(true);
+		projected.put(LdapSpecialUserService.LDAP_USERNAME, USERNAME);
+		projected.put(LdapSpecialUserService.LDAP_SPECIAL, SPECIAL);
+
+		// what lookup without attribute list returns
+		entry = new BasicAttributes(true);
+		BasicAttribute objectClass = new BasicAttribute(
+				LdapSpecialUserService.LDAP_OBJECT_CLASS);
+		for (String value : LdapSpecialUserService.LDAP_OBJECT_CLASSES) {
+			objectClass.add(value);
+		}
+		entry.put(objectClass);
+		entry.put(LdapSpecialUserService.LDAP_USERNAME, USERNAME);
+		entry.put(LdapSpecialUserService.LDAP_SURNAME, USERNAME);
+		entry.put(LdapSpecialUserService.LDAP_SPECIAL, SPECIAL);
+		dn = new DistinguishedName(LdapSpecialUserService.userDn(USERNAME));
+	}
+
+	@Benchmark
+	public Object mapFromAttributes() throws NamingException {
+		return mapper.mapFromAttributes(projected);
+	}
+
+	@Benchmark
+	public Object mapFromContextAdapterBaseline() {
+		return contextMapper.mapFromContext(new DirContextAdapter(entry, dn));
+	}
+
+	@Benchmark
+	public String userDn() {
+		return LdapSpecialUserService.userDn(USERNAME);
+	}
+
+	@Benchmark
+	public String userDnFormatBaseline() {
+		return String.format(LdapSpecialUserService.USERDN_FORMAT,
+				LdapEncoder.nameEncode(USERNAME));
+	}
+}
@@ -0,0 +1,13 @@
+package com.ash2k.example.ldap_it.api;
+
+/**
+ * Callback notified when an asynchronous operation completes. It is invoked
+ * on the thread that executed the operation so it should not block.
+ * 
+ * @author Mikhail Mazursky
+ */
+public interface AsyncCallback<T> {
+	void onSuccess(T result);
+
+	void onFailure(Throwable cause);
+}
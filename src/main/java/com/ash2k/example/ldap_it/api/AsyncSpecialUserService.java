@@ -0,0 +1,26 @@
+package com.ash2k.example.ldap_it.api;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.ash2k.example.ldap_it.domain.SpecialUser;
+
+/**
+ * Non-blocking variant of {@link SpecialUserService}.
+ * <p>
+ * All methods return immediately. If the service can not accept more work
+ * they throw {@link RejectedExecutionException} instead of queueing it
+ * without bound.
+ * 
+ * @author Mikhail Mazursky
+ */
+public interface AsyncSpecialUserService {
+	Future<Void> persistAsync(SpecialUser user);
+
+	Future<Void> persistAsync(SpecialUser user, AsyncCallback<Void> callback);
+
+	Future<SpecialUser> loadAsync(String username);
+
+	Future<SpecialUser> loadAsync(String username,
+			AsyncCallback<SpecialUser> callback);
+}
@@ -0,0 +1,69 @@
+package com.ash2k.example.ldap_it.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Outcome of a batch operation. Contains usernames of entries that were
+ * processed successfully and the failure of each entry that was not.
+ * 
+ * @author Mikhail Mazursky
+ */
+public final class BatchResult {
+
+	private final List<String> succeeded;
+	private final Map<String, RuntimeException> failed;
+
+	public BatchResult(List<String> succeeded,
+			Map<String, RuntimeException> failed) {
+		this.succeeded = Collections.unmodifiableList(new ArrayList<String>(
+				succeeded));
+		this.failed = Collections
+				.unmodifiableMap(new LinkedHashMap<String, RuntimeException>(
+						failed));
+	}
+
+	/**
+	 * Combines several partial results (e.g. one per chunk) into one.
+	 */
+	public static BatchResult combine(List<BatchResult> results) {
+		List<String> succeeded = new ArrayList<String>();
+		Map<String, RuntimeException> failed = new LinkedHashMap<String, RuntimeException>();
+		for (BatchResult result : results) {
+			succeeded.addAll(result.succeeded);
+			failed.putAll(result.failed);
+		}
+		return new BatchResult(succeeded, failed);
+	}
+
+	/**
+	 * @return usernames of successfully processed entries in processing order
+	 */
+	public List<String> getSucceeded() {
+		return succeeded;
+	}
+
+	/**
+	 * @return failures keyed by username
+	 */
+	public Map<String, RuntimeException> getFailed() {
+		return failed;
+	}
+
+	public boolean isSuccessful() {
+		return failed.isEmpty();
+	}
+
+	public int size() {
+		return succeeded.size() + failed.size();
+	}
+
+	@Override
+	public String toString() {
+		return "BatchResult [succeeded=" + succeeded.size() + ", failed="
+				+ failed.keySet() + "]";
+	}
+}
@@ -0,0 +1,13 @@
+package com.ash2k.example.ldap_it.api;
+
+import com.ash2k.example.ldap_it.domain.SpecialUser;
+
+/**
+ * Receives {@link SpecialUser}s one by one as they are read from directory.
+ * Throwing an exception stops the iteration.
+ * 
+ * @author Mikhail Mazursky
+ */
+public interface SpecialUserHandler {
+	void handle(SpecialUser user);
+}
@@ -1,5 +1,9 @@
 package com.ash2k.example.ldap_it.api;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
 import com.ash2k.example.ldap_it.domain.SpecialUser;
 
 /**
@@ -10,5 +14,66 @@ import com.ash2k.example.ldap_it.domain.SpecialUser;
 public interface SpecialUserService {
 	void persist(SpecialUser user);
 
+	/**
+	 * Persists all given users. Failure to persist one of them does not stop
+	 * the rest of the batch.
+	 * 
+	 * @return outcome of each entry
+	 */
+	BatchResult persistAll(Collection<SpecialUser> users);
+
+	/**
+	 * Creates the user if it does not exist, otherwise writes only the
+	 * attributes that differ. Nothing is written if the stored user is equal
+	 * to the given one.
+	 */
+	UpsertOutcome upsert(SpecialUser user);
+
+	/**
+	 * Deletes the user. Fails if it does not exist.
+	 */
+	void delete(String username);
+
+	/**
+	 * Deletes all given users. Failure to delete one of them does not stop
+	 * the rest of the batch.
+	 * 
+	 * @return outcome of each entry
+	 */
+	BatchResult deleteAll(Collection<String> usernames);
+
 	SpecialUser load(String username);
+
+	/**
+	 * Loads all given users at once.
+	 * 
+	 * @return found users keyed by requested username; users that do not
+	 *         exist are absent from the map
+	 */
+	Map<String, SpecialUser> loadAll(Collection<String> usernames);
+
+	/**
+	 * Checks whether user exists without fetching its attributes.
+	 */
+	boolean exists(String username);
+
+	/**
+	 * Passes every user in directory to the handler without keeping them in
+	 * memory.
+	 * 
+	 * @return number of users passed to the handler
+	 */
+	long streamAll(SpecialUserHandler handler);
+
+	/**
+	 * Finds users whose special attribute is equal to the given value
+	 * (case-insensitive). Number of returned users is limited.
+	 */
+	List<SpecialUser> findBySpecial(String special);
+
+	/**
+	 * Finds users whose special attribute starts with the given prefix
+	 * (case-insensitive). Number of returned users is limited.
+	 */
+	List<SpecialUser> findBySpecialPrefix(String prefix);
 }
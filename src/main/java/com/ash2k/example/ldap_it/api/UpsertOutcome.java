@@ -0,0 +1,15 @@
+package com.ash2k.example.ldap_it.api;
+
+/**
+ * What an upsert had to do to make directory entry match the user.
+ * 
+ * @author Mikhail Mazursky
+ */
+public enum UpsertOutcome {
+	/** Entry did not exist and was created */
+	CREATED,
+	/** Entry existed and changed attributes were modified */
+	UPDATED,
+	/** Entry already matched the user, nothing was written */
+	UNCHANGED
+}
@@ -0,0 +1,201 @@
+package com.ash2k.example.ldap_it.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.util.Assert;
+
+/**
+ * Bounded concurrent cache that evicts least recently used entries when it is
+ * full and entries that were written more than time-to-live ago.
+ * <p>
+ * Cache is split into segments, each guarded by its own lock, so that
+ * concurrent readers of different keys rarely contend. Size limit is enforced
+ * per segment.
+ * 
+ * @author Mikhail Mazursky
+ */
+public class ExpiringLruCache<K, V> {
+
+	private static final int DEFAULT_CONCURRENCY = 16;
+
+	private final Segment<K, V>[] segments;
+	private final long ttlNanos;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+
+	public ExpiringLruCache(int maxSize, long ttl, TimeUnit unit) {
+		this(maxSize, ttl, unit, DEFAULT_CONCURRENCY);
+	}
+
+	public ExpiringLruCache(int maxSize, long ttl, TimeUnit unit,
+			int concurrency) {
+		Assert.isTrue(maxSize > 0, "Max size must be positive");
+		Assert.isTrue(ttl > 0, "TTL must be positive");
+		Assert.isTrue(concurrency > 0, "Concurrency must be positive");
+
+		int segmentCount = Math.min(concurrency, maxSize);
+		// arrays of a generic type can't be created; the cast is safe as the
+		// array never leaves this object and only holds Segment<K, V>
+		@SuppressWarnings("unchecked")
+		Segment<K, V>[] segments = (Segment<K, V>[]) new Segment<?, ?>[segmentCount];
+		this.segments = segments;
+		for (int i = 0; i < segmentCount; i++) {
+			// spread remainder over first segments
+			int segmentSize = maxSize / segmentCount
+					+ (i < maxSize % segmentCount ? 1 : 0);
+			segments[i] = new Segment<K, V>(segmentSize, evictions);
+		}
+		ttlNanos = unit.toNanos(ttl);
+	}
+
+	/**
+	 * @return cached value or {@code null} if there is no live entry for the
+	 *         key
+	 */
+	public V get(K key) {
+		Segment<K, V> segment = segmentFor(key);
+		long now = nanoTime();
+		synchronized (segment) {
+			Entry<V> entry = segment.get(key);
+			if (entry != null) {
+				if (now - entry.expiresAt < 0) {
+					hits.incrementAndGet();
+					return entry.value;
+				}
+				segment.remove(key);
+				expirations.incrementAndGet();
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	public void put(K key, V value) {
+		Assert.notNull(value, "Value must not be null");
+		Segment<K, V> segment = segmentFor(key);
+		Entry<V> entry = new Entry<V>(value, nanoTime() + ttlNanos);
+		synchronized (segment) {
+			segment.put(key, entry);
+		}
+	}
+
+	public void invalidate(K key) {
+		Segment<K, V> segment = segmentFor(key);
+		synchronized (segment) {
+			segment.remove(key);
+		}
+	}
+
+	public void invalidateAll() {
+		for (Segment<K, V> segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	/**
+	 * Removes expired entries. Expired entries are also removed lazily on
+	 * access so calling this method is only needed to release memory sooner.
+	 */
+	public void cleanUp() {
+		long now = nanoTime();
+		for (Segment<K, V> segment : segments) {
+			synchronized (segment) {
+				for (Iterator<Entry<V>> it = segment.values().iterator(); it
+						.hasNext();) {
+					if (now - it.next().expiresAt >= 0) {
+						it.remove();
+						expirations.incrementAndGet();
+					}
+				}
+			}
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (Segment<K, V> segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * @return number of entries evicted because cache was full
+	 */
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return number of entries removed because their TTL elapsed
+	 */
+	public long getExpirationCount() {
+		return expirations.get();
+	}
+
+	// protected to make it testable
+	protected long nanoTime() {
+		return System.nanoTime();
+	}
+
+	private Segment<K, V> segmentFor(K key) {
+		int h = key.hashCode();
+		// spread bits as HashMap does to make use of higher bits too
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return segments[(h & 0x7fffffff) % segments.length];
+	}
+
+	private static final class Entry<V> {
+		final V value;
+		final long expiresAt;
+
+		Entry(V value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private static final class Segment<K, V> extends
+			LinkedHashMap<K, Entry<V>> {
+
+		private static final long serialVersionUID = 5263846071958405826L;
+
+		private final int maxSize;
+		private final AtomicLong evictions;
+
+		Segment(int maxSize, AtomicLong evictions) {
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+			this.evictions = evictions;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+			if (size() > maxSize) {
+				evictions.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	}
+}
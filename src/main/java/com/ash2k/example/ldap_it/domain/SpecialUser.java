@@ -1,9 +1,19 @@
 package com.ash2k.example.ldap_it.domain;
 
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.io.Serializable;
 
 /**
  * Some special user.
+ * <p>
+ * Serialized as {@link SerializedForm} that holds {@link SpecialUserCodec}
+ * encoding of the user. Streams with the default serialized form written by
+ * earlier versions can still be read: the fields and serialVersionUID are
+ * unchanged, so default deserialization handles them.
  * 
  * @author Mikhail Mazursky
  */
@@ -64,4 +74,55 @@ public final class SpecialUser implements Serializable {
 		}
 		return true;
 	}
+
+	private Object writeReplace() {
+		return new SerializedForm(this);
+	}
+
+	/**
+	 * Serialized form of {@link SpecialUser}: length of the encoded user
+	 * followed by the encoding.
+	 */
+	static final class SerializedForm implements Externalizable {
+		private static final long serialVersionUID = 1L;
+
+		private SpecialUser user;
+
+		public SerializedForm() {
+			// for deserialization
+		}
+
+		SerializedForm(SpecialUser user) {
+			this.user = user;
+		}
+
+		@Override
+		public void writeExternal(ObjectOutput out) throws IOException {
+			byte[] bytes = SpecialUserCodec.toBytes(user);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+
+		@Override
+		public void readExternal(ObjectInput in) throws IOException {
+			int length = in.readInt();
+			if (length < 0) {
+				throw new InvalidObjectException("Negative length " + length);
+			}
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			try {
+				user = SpecialUserCodec.fromBytes(bytes);
+			} catch (IllegalArgumentException e) {
+				InvalidObjectException ioe = new InvalidObjectException(
+						e.getMessage());
+				ioe.initCause(e);
+				throw ioe;
+			}
+		}
+
+		private Object readResolve() {
+			return user;
+		}
+	}
 }
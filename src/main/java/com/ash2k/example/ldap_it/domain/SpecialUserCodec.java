@@ -0,0 +1,276 @@
+package com.ash2k.example.ldap_it.domain;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Compact binary encoding of {@link SpecialUser}s.
+ * <p>
+ * A user is encoded as a version byte followed by its username and special
+ * attribute. A batch is a version byte, number of users and their fields.
+ * Each field is its length in UTF-8 bytes plus one (zero stands for
+ * {@code null}) as an unsigned varint followed by the bytes. With buffers
+ * backed by an array strings are encoded right into the array and decoding
+ * allocates nothing but the resulting objects.
+ * <p>
+ * Buffers are read and written from their position which is advanced past
+ * the data. A buffer that is too small for the data results in
+ * {@link BufferOverflowException} and its position is unspecified.
+ * 
+ * @author Mikhail Mazursky
+ */
+public final class SpecialUserCodec {
+
+	public static final byte VERSION = 1;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private SpecialUserCodec() {
+	}
+
+	/**
+	 * @return number of bytes {@link #encode(SpecialUser, ByteBuffer)} writes
+	 */
+	public static int encodedSize(SpecialUser user) {
+		return 1 + fieldsSize(user);
+	}
+
+	/**
+	 * @return number of bytes {@link #encodeAll(Collection, ByteBuffer)}
+	 *         writes
+	 */
+	public static int encodedSize(Collection<SpecialUser> users) {
+		int size = 1 + varIntSize(users.size());
+		for (SpecialUser user : users) {
+			size += fieldsSize(user);
+		}
+		return size;
+	}
+
+	public static void encode(SpecialUser user, ByteBuffer buffer) {
+		buffer.put(VERSION);
+		putFields(user, buffer);
+	}
+
+	public static void encodeAll(Collection<SpecialUser> users,
+			ByteBuffer buffer) {
+		buffer.put(VERSION);
+		putVarInt(users.size(), buffer);
+		for (SpecialUser user : users) {
+			putFields(user, buffer);
+		}
+	}
+
+	/**
+	 * @return user encoded into an array of the exact size
+	 */
+	public static byte[] toBytes(SpecialUser user) {
+		byte[] bytes = new byte[encodedSize(user)];
+		encode(user, ByteBuffer.wrap(bytes));
+		return bytes;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if data has unknown version or is malformed
+	 */
+	public static SpecialUser decode(ByteBuffer buffer) {
+		checkVersion(buffer);
+		return getFields(buffer);
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if data has unknown version or is malformed
+	 */
+	public static List<SpecialUser> decodeAll(ByteBuffer buffer) {
+		checkVersion(buffer);
+		int count = getVarInt(buffer);
+		// each user takes at least two bytes
+		if (count > buffer.remaining() / 2) {
+			throw new IllegalArgumentException("Malformed batch of " + count
+					+ " users in " + buffer.remaining() + " bytes");
+		}
+		List<SpecialUser> users = new ArrayList<SpecialUser>(count);
+		for (int i = 0; i < count; i++) {
+			users.add(getFields(buffer));
+		}
+		return users;
+	}
+
+	public static SpecialUser fromBytes(byte[] bytes) {
+		return decode(ByteBuffer.wrap(bytes));
+	}
+
+	private static int fieldsSize(SpecialUser user) {
+		return stringSize(user.getUsername()) + stringSize(user.getSpecial());
+	}
+
+	private static void putFields(SpecialUser user, ByteBuffer buffer) {
+		putString(user.getUsername(), buffer);
+		putString(user.getSpecial(), buffer);
+	}
+
+	private static SpecialUser getFields(ByteBuffer buffer) {
+		String username = getString(buffer);
+		String special = getString(buffer);
+		return new SpecialUser(username, special);
+	}
+
+	private static void checkVersion(ByteBuffer buffer) {
+		byte version = get(buffer);
+		if (version != VERSION) {
+			throw new IllegalArgumentException("Unsupported version "
+					+ version);
+		}
+	}
+
+	private static int stringSize(String s) {
+		if (s == null) {
+			return 1;
+		}
+		int length = utf8Length(s);
+		return varIntSize(length + 1) + length;
+	}
+
+	private static void putString(String s, ByteBuffer buffer) {
+		if (s == null) {
+			putVarInt(0, buffer);
+			return;
+		}
+		int length = utf8Length(s);
+		putVarInt(length + 1, buffer);
+		if (length > buffer.remaining()) {
+			throw new BufferOverflowException();
+		}
+		if (buffer.hasArray()) {
+			// indexing the array skips per byte bounds checks of the buffer
+			int offset = buffer.arrayOffset() + buffer.position();
+			putUtf8(s, buffer.array(), offset);
+			buffer.position(buffer.position() + length);
+		} else {
+			byte[] bytes = new byte[length];
+			putUtf8(s, bytes, 0);
+			buffer.put(bytes);
+		}
+	}
+
+	private static void putUtf8(String s, byte[] bytes, int offset) {
+		int n = s.length();
+		int j = offset;
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				bytes[j++] = (byte) c;
+			} else if (c < 0x800) {
+				bytes[j++] = (byte) (0xC0 | (c >>> 6));
+				bytes[j++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < n
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				bytes[j++] = (byte) (0xF0 | (cp >>> 18));
+				bytes[j++] = (byte) (0x80 | ((cp >>> 12) & 0x3F));
+				bytes[j++] = (byte) (0x80 | ((cp >>> 6) & 0x3F));
+				bytes[j++] = (byte) (0x80 | (cp & 0x3F));
+			} else if (isSurrogate(c)) {
+				// unpaired surrogate, same as String.getBytes()
+				bytes[j++] = (byte) '?';
+			} else {
+				bytes[j++] = (byte) (0xE0 | (c >>> 12));
+				bytes[j++] = (byte) (0x80 | ((c >>> 6) & 0x3F));
+				bytes[j++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	private static int utf8Length(String s) {
+		int n = s.length();
+		int length = n;
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				continue;
+			}
+			if (c < 0x800) {
+				length += 1;
+			} else if (Character.isHighSurrogate(c) && i + 1 < n
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				// 4 bytes for 2 chars
+				length += 2;
+				i++;
+			} else if (!isSurrogate(c)) {
+				length += 2;
+			}
+		}
+		return length;
+	}
+
+	private static String getString(ByteBuffer buffer) {
+		int length = getVarInt(buffer) - 1;
+		if (length < 0) {
+			return null;
+		}
+		if (length > buffer.remaining()) {
+			throw new IllegalArgumentException("Malformed string of "
+					+ length + " bytes in " + buffer.remaining() + " bytes");
+		}
+		if (buffer.hasArray()) {
+			// decoder of String is faster than a loop
+			int offset = buffer.arrayOffset() + buffer.position();
+			buffer.position(buffer.position() + length);
+			return new String(buffer.array(), offset, length, UTF_8);
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	private static boolean isSurrogate(char c) {
+		return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+	}
+
+	private static int varIntSize(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	private static void putVarInt(int value, ByteBuffer buffer) {
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	private static int getVarInt(ByteBuffer buffer) {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = get(buffer);
+			value |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				if (value < 0) {
+					break;
+				}
+				return value;
+			}
+		}
+		throw new IllegalArgumentException("Malformed length");
+	}
+
+	private static byte get(ByteBuffer buffer) {
+		try {
+			return buffer.get();
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Truncated data", e);
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package com.ash2k.example.ldap_it.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link MetricsRecorder} that keeps {@link OperationStats} of each
+ * operation in memory.
+ * 
+ * @author Mikhail Mazursky
+ */
+public class HistogramMetricsRecorder implements MetricsRecorder {
+
+	private final ConcurrentMap<String, OperationStats> stats = new ConcurrentHashMap<String, OperationStats>();
+
+	/**
+	 * @param operations
+	 *            operations to create statistics for upfront, e.g. to
+	 *            register them with an MBean server; others are created on
+	 *            first use
+	 */
+	public HistogramMetricsRecorder(String... operations) {
+		for (String operation : operations) {
+			stats.put(operation, new OperationStats());
+		}
+	}
+
+	@Override
+	public void recordSuccess(String operation, long latencyNanos,
+			long poolWaitNanos) {
+		getStats(operation).record(latencyNanos, poolWaitNanos);
+	}
+
+	@Override
+	public void recordFailure(String operation, Throwable error,
+			long latencyNanos, long poolWaitNanos) {
+		OperationStats operationStats = getStats(operation);
+		operationStats.record(latencyNanos, poolWaitNanos);
+		operationStats.recordError(error);
+	}
+
+	public OperationStats getStats(String operation) {
+		OperationStats operationStats = stats.get(operation);
+		if (operationStats == null) {
+			OperationStats existing = stats.putIfAbsent(operation,
+					operationStats = new OperationStats());
+			if (existing != null) {
+				operationStats = existing;
+			}
+		}
+		return operationStats;
+	}
+
+	/**
+	 * @return statistics keyed by operation name
+	 */
+	public Map<String, OperationStats> getAllStats() {
+		return Collections.unmodifiableMap(stats);
+	}
+}
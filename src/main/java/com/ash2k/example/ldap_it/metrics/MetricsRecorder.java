@@ -0,0 +1,19 @@
+package com.ash2k.example.ldap_it.metrics;
+
+/**
+ * Receives timings of service operations. Implementations can forward them
+ * to any metrics library. Methods are called on the hot path from many
+ * threads, so they must be thread-safe and should not block or allocate.
+ * <p>
+ * All durations are in nanoseconds. Pool wait is time spent waiting for a
+ * pooled connection on the calling thread; the rest of the latency is spent
+ * on the wire (and mapping results).
+ * 
+ * @author Mikhail Mazursky
+ */
+public interface MetricsRecorder {
+	void recordSuccess(String operation, long latencyNanos, long poolWaitNanos);
+
+	void recordFailure(String operation, Throwable error, long latencyNanos,
+			long poolWaitNanos);
+}
@@ -0,0 +1,133 @@
+package com.ash2k.example.ldap_it.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts and latency histograms of one operation. Failed calls are included
+ * in the histograms.
+ * 
+ * @author Mikhail Mazursky
+ */
+public final class OperationStats implements OperationStatsMXBean {
+
+	private final LatencyHistogram latency = new LatencyHistogram();
+	private final LatencyHistogram poolWait = new LatencyHistogram();
+	private final LatencyHistogram wire = new LatencyHistogram();
+	private final AtomicLong errors = new AtomicLong();
+	private final ConcurrentMap<Class<?>, AtomicLong> errorsByType = new ConcurrentHashMap<Class<?>, AtomicLong>();
+
+	void record(long latencyNanos, long poolWaitNanos) {
+		latency.record(latencyNanos);
+		poolWait.record(poolWaitNanos);
+		wire.record(latencyNanos - poolWaitNanos);
+	}
+
+	void recordError(Throwable error) {
+		errors.incrementAndGet();
+		Class<?> type = error.getClass();
+		AtomicLong counter = errorsByType.get(type);
+		if (counter == null) {
+			// allocates only the first time this type is seen
+			AtomicLong existing = errorsByType.putIfAbsent(type,
+					counter = new AtomicLong());
+			if (existing != null) {
+				counter = existing;
+			}
+		}
+		counter.incrementAndGet();
+	}
+
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	public LatencyHistogram getPoolWait() {
+		return poolWait;
+	}
+
+	public LatencyHistogram getWire() {
+		return wire;
+	}
+
+	@Override
+	public long getCount() {
+		return latency.getCount();
+	}
+
+	@Override
+	public long getErrorCount() {
+		return errors.get();
+	}
+
+	@Override
+	public Map<String, Long> getErrorsByType() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<Class<?>, AtomicLong> entry : errorsByType.entrySet()) {
+			// same simple name in different packages is summed up
+			String name = entry.getKey().getSimpleName();
+			Long count = result.get(name);
+			result.put(name, entry.getValue().get()
+					+ (count != null ? count : 0));
+		}
+		return result;
+	}
+
+	@Override
+	public double getLatencyMeanMillis() {
+		return latency.getMean(TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public double getLatencyP50Millis() {
+		return latency.getPercentile(50, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public double getLatencyP99Millis() {
+		return latency.getPercentile(99, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public double getLatencyP999Millis() {
+		return latency.getPercentile(99.9, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public double getPoolWaitMeanMillis() {
+		return poolWait.getMean(TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public double getPoolWaitP99Millis() {
+		return poolWait.getPercentile(99, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public double getWireP50Millis() {
+		return wire.getPercentile(50, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public double getWireP99Millis() {
+		return wire.getPercentile(99, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public double getWireP999Millis() {
+		return wire.getPercentile(99.9, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void reset() {
+		latency.reset();
+		poolWait.reset();
+		wire.reset();
+		errors.set(0);
+		errorsByType.clear();
+	}
+}
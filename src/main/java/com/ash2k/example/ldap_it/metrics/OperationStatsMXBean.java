@@ -0,0 +1,40 @@
+package com.ash2k.example.ldap_it.metrics;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link OperationStats}. Durations are in
+ * milliseconds.
+ * 
+ * @author Mikhail Mazursky
+ */
+public interface OperationStatsMXBean {
+	long getCount();
+
+	long getErrorCount();
+
+	/**
+	 * @return number of failures keyed by simple name of the exception class
+	 */
+	Map<String, Long> getErrorsByType();
+
+	double getLatencyMeanMillis();
+
+	double getLatencyP50Millis();
+
+	double getLatencyP99Millis();
+
+	double getLatencyP999Millis();
+
+	double getPoolWaitMeanMillis();
+
+	double getPoolWaitP99Millis();
+
+	double getWireP50Millis();
+
+	double getWireP99Millis();
+
+	double getWireP999Millis();
+
+	void reset();
+}
@@ -0,0 +1,32 @@
+package com.ash2k.example.ldap_it.metrics;
+
+/**
+ * Accumulates time the current thread spent waiting for pooled connections.
+ * Callers take the total before and after an operation to find out how much
+ * of it was spent waiting.
+ * 
+ * @author Mikhail Mazursky
+ */
+public final class PoolWaitTime {
+
+	private static final ThreadLocal<long[]> total = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+
+	private PoolWaitTime() {
+	}
+
+	public static void record(long nanos) {
+		total.get()[0] += nanos;
+	}
+
+	/**
+	 * @return total wait time of the current thread in nanoseconds
+	 */
+	public static long total() {
+		return total.get()[0];
+	}
+}
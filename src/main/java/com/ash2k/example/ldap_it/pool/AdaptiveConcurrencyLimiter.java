@@ -0,0 +1,188 @@
+package com.ash2k.example.ldap_it.pool;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.util.Assert;
+
+/**
+ * Limit of concurrent directory operations that adapts to their latency with
+ * additive increase and multiplicative decrease (AIMD). While operations
+ * complete within the latency threshold and at least half of the limit is in
+ * use, every completed operation adds {@code 1 / limit}, i.e. the limit grows
+ * by about one per round trip. An operation slower than the threshold
+ * multiplies the limit by the backoff ratio. Operations that started before
+ * the last backoff don't back off again, so a burst of slow operations cuts
+ * the limit once rather than once per operation.
+ * <p>
+ * Operations over the limit are rejected right away instead of waiting for a
+ * slot, so that callers shed load while the directory is slow. Can be
+ * registered with an MBean server as is.
+ * 
+ * @author Mikhail Mazursky
+ */
+public class AdaptiveConcurrencyLimiter implements
+		AdaptiveConcurrencyLimiterMBean {
+
+	public static final double DEFAULT_BACKOFF_RATIO = 0.9;
+
+	private final int minLimit;
+	private final int maxLimit;
+	private final long latencyThresholdNanos;
+	private volatile double backoffRatio = DEFAULT_BACKOFF_RATIO;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicLong acquired = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong backoffs = new AtomicLong();
+
+	/** Whole part of {@link #limit} read without locking */
+	private volatile int currentLimit;
+	// guarded by this
+	private double limit;
+	private boolean backedOff;
+	private long lastBackoff;
+
+	/**
+	 * @param latencyThreshold
+	 *            latency of a single operation above which the limit is
+	 *            decreased
+	 */
+	public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit,
+			int maxLimit, long latencyThreshold, TimeUnit unit) {
+		Assert.isTrue(minLimit > 0, "Min limit must be positive");
+		Assert.isTrue(minLimit <= initialLimit && initialLimit <= maxLimit,
+				"Initial limit must be between min and max limits");
+		Assert.isTrue(latencyThreshold > 0,
+				"Latency threshold must be positive");
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.latencyThresholdNanos = unit.toNanos(latencyThreshold);
+		this.limit = initialLimit;
+		this.currentLimit = initialLimit;
+	}
+
+	/**
+	 * Sets the factor the limit is multiplied by when an operation is slow.
+	 */
+	public void setBackoffRatio(double backoffRatio) {
+		Assert.isTrue(backoffRatio > 0 && backoffRatio < 1,
+				"Backoff ratio must be between 0 and 1");
+		this.backoffRatio = backoffRatio;
+	}
+
+	/**
+	 * Takes a slot for an operation. The returned permit must be released in
+	 * a finally block.
+	 * 
+	 * @throws RejectedExecutionException
+	 *             if the limit is reached
+	 */
+	public Permit acquire() {
+		int current;
+		do {
+			current = inFlight.get();
+			if (current >= currentLimit) {
+				rejected.incrementAndGet();
+				throw new RejectedExecutionException("Concurrency limit of "
+						+ currentLimit + " reached");
+			}
+		} while (!inFlight.compareAndSet(current, current + 1));
+		acquired.incrementAndGet();
+		return new Permit(nanoTime());
+	}
+
+	@Override
+	public int getLimit() {
+		return currentLimit;
+	}
+
+	@Override
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	@Override
+	public long getAcquiredCount() {
+		return acquired.get();
+	}
+
+	/**
+	 * @return number of operations rejected because the limit was reached
+	 */
+	@Override
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return number of times the limit was decreased
+	 */
+	@Override
+	public long getBackoffCount() {
+		return backoffs.get();
+	}
+
+	// protected to make it testable
+	protected long nanoTime() {
+		return System.nanoTime();
+	}
+
+	private synchronized void sample(long start, int operations, int used) {
+		if (operations <= 0) {
+			return;
+		}
+		long now = nanoTime();
+		if ((now - start) / operations > latencyThresholdNanos) {
+			if (!backedOff || start - lastBackoff >= 0) {
+				limit = Math.max(minLimit, limit * backoffRatio);
+				backedOff = true;
+				lastBackoff = now;
+				backoffs.incrementAndGet();
+			}
+		} else if (used * 2 >= limit) {
+			// don't grow the limit while it is not what holds callers back
+			limit = Math.min(maxLimit, limit + 1 / limit);
+		}
+		currentLimit = (int) limit;
+	}
+
+	/**
+	 * Slot taken by an operation.
+	 */
+	public final class Permit {
+
+		private final long start;
+		private boolean released;
+
+		Permit(long start) {
+			this.start = start;
+		}
+
+		/**
+		 * Frees the slot taken by a single operation.
+		 */
+		public void release() {
+			release(1);
+		}
+
+		/**
+		 * Frees the slot. Latency per operation is compared with the
+		 * threshold. Subsequent calls do nothing.
+		 * 
+		 * @param operations
+		 *            number of operations made with the permit, e.g. entries
+		 *            written over one connection; zero for operations of
+		 *            unpredictable duration that must not affect the limit
+		 */
+		public void release(int operations) {
+			if (released) {
+				return;
+			}
+			released = true;
+			sample(start, operations, inFlight.getAndDecrement());
+		}
+	}
+}
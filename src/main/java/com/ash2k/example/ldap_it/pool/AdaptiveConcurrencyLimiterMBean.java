@@ -0,0 +1,18 @@
+package com.ash2k.example.ldap_it.pool;
+
+/**
+ * Management interface of {@link AdaptiveConcurrencyLimiter}.
+ * 
+ * @author Mikhail Mazursky
+ */
+public interface AdaptiveConcurrencyLimiterMBean {
+	int getLimit();
+
+	int getInFlight();
+
+	long getAcquiredCount();
+
+	long getRejectedCount();
+
+	long getBackoffCount();
+}
@@ -0,0 +1,114 @@
+package com.ash2k.example.ldap_it.pool;
+
+import javax.naming.directory.DirContext;
+
+import org.apache.commons.pool.BaseKeyedPoolableObjectFactory;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.ldap.pool.DirContextType;
+import org.springframework.ldap.pool.factory.MutablePoolingContextSource;
+import org.springframework.ldap.pool.validation.DefaultDirContextValidator;
+import org.springframework.ldap.pool.validation.DirContextValidator;
+import org.springframework.util.Assert;
+
+import com.ash2k.example.ldap_it.metrics.PoolWaitTime;
+
+/**
+ * Pooling context source that records how long callers wait for a connection
+ * and what happens to pooled connections. Metrics are available through
+ * {@link #getMetrics()}; wait time is also added to {@link PoolWaitTime} of
+ * the calling thread.
+ * <p>
+ * Contexts are mutable, i.e. accept request controls. Unlike the base class it
+ * uses {@link DefaultDirContextValidator} unless another validator is set, so
+ * that testOnBorrow, testOnReturn and testWhileIdle work out of the box.
+ * 
+ * @author Mikhail Mazursky
+ */
+public class InstrumentedPoolingContextSource extends
+		MutablePoolingContextSource {
+
+	private final PoolMetrics metrics = new PoolMetrics(this);
+
+	private volatile ContextSource contextSource;
+	private volatile DirContextValidator dirContextValidator = new DefaultDirContextValidator();
+
+	@SuppressWarnings("deprecation")
+	public InstrumentedPoolingContextSource() {
+		// base factory is not extensible - replace it with one that counts
+		keyedObjectPool.setFactory(new InstrumentedDirContextFactory());
+	}
+
+	public PoolMetrics getMetrics() {
+		return metrics;
+	}
+
+	@Override
+	public ContextSource getContextSource() {
+		return contextSource;
+	}
+
+	@Override
+	public void setContextSource(ContextSource contextSource) {
+		this.contextSource = contextSource;
+	}
+
+	@Override
+	public DirContextValidator getDirContextValidator() {
+		return dirContextValidator;
+	}
+
+	@Override
+	public void setDirContextValidator(DirContextValidator dirContextValidator) {
+		this.dirContextValidator = dirContextValidator;
+	}
+
+	@Override
+	protected DirContext getContext(DirContextType dirContextType) {
+		long start = System.nanoTime();
+		try {
+			DirContext ctx = super.getContext(dirContextType);
+			long wait = System.nanoTime() - start;
+			metrics.borrowed(wait);
+			PoolWaitTime.record(wait);
+			return ctx;
+		} catch (DataAccessResourceFailureException e) {
+			// pool exhausted or new connection could not be made
+			metrics.borrowFailed();
+			PoolWaitTime.record(System.nanoTime() - start);
+			throw e;
+		}
+	}
+
+	private final class InstrumentedDirContextFactory extends
+			BaseKeyedPoolableObjectFactory {
+
+		@Override
+		public Object makeObject(Object key) throws Exception {
+			ContextSource cs = contextSource;
+			Assert.notNull(cs, "ContextSource may not be null");
+			DirContext ctx = key == DirContextType.READ_ONLY ? cs
+					.getReadOnlyContext() : cs.getReadWriteContext();
+			metrics.created();
+			return ctx;
+		}
+
+		@Override
+		public boolean validateObject(Object key, Object obj) {
+			DirContextValidator validator = dirContextValidator;
+			Assert.notNull(validator, "DirContextValidator may not be null");
+			boolean valid = validator.validateDirContext((DirContextType) key,
+					(DirContext) obj);
+			if (!valid) {
+				metrics.validationFailed();
+			}
+			return valid;
+		}
+
+		@Override
+		public void destroyObject(Object key, Object obj) throws Exception {
+			metrics.destroyed();
+			((DirContext) obj).close();
+		}
+	}
+}
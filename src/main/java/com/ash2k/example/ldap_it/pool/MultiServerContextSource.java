@@ -0,0 +1,387 @@
+package com.ash2k.example.ldap_it.pool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.naming.directory.DirContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.ldap.CommunicationException;
+import org.springframework.ldap.ServiceUnavailableException;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.ldap.pool.DirContextType;
+import org.springframework.ldap.pool.validation.DefaultDirContextValidator;
+import org.springframework.ldap.pool.validation.DirContextValidator;
+import org.springframework.util.Assert;
+
+/**
+ * Context source that spreads connections over several directory servers,
+ * each with a pool of its own.
+ * <p>
+ * Every server is probed periodically over a fresh (non-pooled) connection.
+ * New contexts are taken from the pool of the available server with the
+ * lowest smoothed probe latency. A server that fails a probe or a connection
+ * attempt is ejected and probed again after a backoff that doubles with every
+ * consecutive failure. If no server is available all of them are tried, so a
+ * wrong health verdict never makes the directory unreachable.
+ * <p>
+ * Only communication failures cause failover; other errors (e.g. invalid
+ * credentials) are passed to the caller as is.
+ * 
+ * @author Mikhail Mazursky
+ */
+public class MultiServerContextSource implements ContextSource {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(MultiServerContextSource.class);
+
+	/** Weight of the latest probe in smoothed latency */
+	static final double LATENCY_SMOOTHING = 0.3;
+
+	private final List<Server> servers;
+
+	private volatile DirContextValidator dirContextValidator = new DefaultDirContextValidator();
+	private long healthCheckIntervalMillis = 1000;
+	private long initialBackoffMillis = 500;
+	private long maxBackoffMillis = 30000;
+	private ScheduledExecutorService scheduler;
+
+	public MultiServerContextSource(List<Server> servers) {
+		Assert.notEmpty(servers, "Servers must not be empty");
+		this.servers = new ArrayList<Server>(servers);
+	}
+
+	public void setDirContextValidator(DirContextValidator dirContextValidator) {
+		Assert.notNull(dirContextValidator, "Validator must not be null");
+		this.dirContextValidator = dirContextValidator;
+	}
+
+	public void setHealthCheckIntervalMillis(long healthCheckIntervalMillis) {
+		Assert.isTrue(healthCheckIntervalMillis > 0,
+				"Health check interval must be positive");
+		this.healthCheckIntervalMillis = healthCheckIntervalMillis;
+	}
+
+	/**
+	 * Sets how long a server is ejected after its first failure. Every
+	 * consecutive failure doubles it up to {@link #setMaxBackoffMillis(long)}.
+	 */
+	public void setInitialBackoffMillis(long initialBackoffMillis) {
+		Assert.isTrue(initialBackoffMillis > 0,
+				"Initial backoff must be positive");
+		this.initialBackoffMillis = initialBackoffMillis;
+	}
+
+	public void setMaxBackoffMillis(long maxBackoffMillis) {
+		Assert.isTrue(maxBackoffMillis > 0, "Max backoff must be positive");
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	/**
+	 * Probes all servers once and starts periodic health checks.
+	 */
+	@PostConstruct
+	public synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+		checkHealth();
+		scheduler = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "ldap-health-check");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					checkHealth();
+				} catch (RuntimeException e) {
+					logger.warn("Health check failed", e);
+				}
+			}
+		}, healthCheckIntervalMillis, healthCheckIntervalMillis,
+				TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Probes every server that is available or whose backoff has elapsed.
+	 */
+	public void checkHealth() {
+		long now = nanoTime();
+		for (Server server : servers) {
+			if (!server.available && now - server.retryAt < 0) {
+				continue;
+			}
+			long start = nanoTime();
+			boolean healthy;
+			try {
+				healthy = probe(server);
+			} catch (RuntimeException e) {
+				logger.debug("Probe of " + server.name + " failed", e);
+				healthy = false;
+			}
+			if (healthy) {
+				server.succeeded(nanoTime() - start);
+			} else {
+				failed(server);
+			}
+		}
+	}
+
+	/**
+	 * @return state of every server in the order they were given
+	 */
+	public List<ServerStatus> getServerStatuses() {
+		List<ServerStatus> statuses = new ArrayList<ServerStatus>(
+				servers.size());
+		for (Server server : servers) {
+			statuses.add(new ServerStatus(server.name, server.available,
+					server.latencyNanos, server.failures));
+		}
+		return statuses;
+	}
+
+	@Override
+	public DirContext getReadOnlyContext() {
+		return getContext(DirContextType.READ_ONLY, null, null);
+	}
+
+	@Override
+	public DirContext getReadWriteContext() {
+		return getContext(DirContextType.READ_WRITE, null, null);
+	}
+
+	/**
+	 * Authenticates over a non-pooled connection to the best server.
+	 */
+	@Override
+	public DirContext getContext(String principal, String credentials) {
+		return getContext(null, principal, credentials);
+	}
+
+	// protected to make it testable
+	protected long nanoTime() {
+		return System.nanoTime();
+	}
+
+	private boolean probe(Server server) {
+		DirContext ctx = server.direct.getReadOnlyContext();
+		try {
+			return dirContextValidator.validateDirContext(
+					DirContextType.READ_ONLY, ctx);
+		} finally {
+			try {
+				ctx.close();
+			} catch (javax.naming.NamingException e) {
+				// ignore
+			}
+		}
+	}
+
+	private DirContext getContext(DirContextType type, String principal,
+			String credentials) {
+		RuntimeException lastFailure = null;
+		for (Server server : candidates()) {
+			try {
+				if (type == DirContextType.READ_ONLY) {
+					return server.pool.getReadOnlyContext();
+				}
+				if (type == DirContextType.READ_WRITE) {
+					return server.pool.getReadWriteContext();
+				}
+				return server.direct.getContext(principal, credentials);
+			} catch (CommunicationException e) {
+				lastFailure = e;
+			} catch (ServiceUnavailableException e) {
+				lastFailure = e;
+			} catch (DataAccessResourceFailureException e) {
+				if (e.getCause() instanceof NoSuchElementException) {
+					// pool is exhausted, server is fine
+					throw e;
+				}
+				// pool failed to make a connection
+				lastFailure = e;
+			}
+			logger.warn("Server " + server.name
+					+ " failed, trying the next one", lastFailure);
+			failed(server);
+		}
+		throw lastFailure;
+	}
+
+	/**
+	 * @return available servers by latency followed by the rest by time
+	 *         they are to be probed again
+	 */
+	private List<Server> candidates() {
+		List<Server> available = new ArrayList<Server>(servers.size());
+		List<Server> ejected = new ArrayList<Server>(servers.size());
+		for (Server server : servers) {
+			(server.available ? available : ejected).add(server);
+		}
+		Collections.sort(available, BY_LATENCY);
+		Collections.sort(ejected, BY_RETRY_TIME);
+		available.addAll(ejected);
+		return available;
+	}
+
+	private void failed(Server server) {
+		long backoff = server.failed(initialBackoffMillis, maxBackoffMillis,
+				nanoTime());
+		logger.info("Server {} ejected for {} ms", server.name, backoff);
+	}
+
+	private static final Comparator<Server> BY_LATENCY = new Comparator<Server>() {
+		@Override
+		public int compare(Server o1, Server o2) {
+			long l1 = o1.latencyNanos;
+			long l2 = o2.latencyNanos;
+			return l1 < l2 ? -1 : (l1 == l2 ? 0 : 1);
+		}
+	};
+
+	private static final Comparator<Server> BY_RETRY_TIME = new Comparator<Server>() {
+		@Override
+		public int compare(Server o1, Server o2) {
+			long diff = o1.retryAt - o2.retryAt;
+			return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
+		}
+	};
+
+	/**
+	 * Directory server to route connections to.
+	 */
+	public static final class Server {
+		final String name;
+		final ContextSource pool;
+		final ContextSource direct;
+
+		volatile boolean available = true;
+		volatile long latencyNanos;
+		volatile int failures;
+		volatile long retryAt;
+
+		/**
+		 * @param name
+		 *            name for logs and statuses, e.g. URL
+		 * @param pool
+		 *            pooling context source of the server
+		 * @param direct
+		 *            non-pooled context source of the same server, used for
+		 *            probes and authentication
+		 */
+		public Server(String name, ContextSource pool, ContextSource direct) {
+			Assert.notNull(name, "Name must not be null");
+			Assert.notNull(pool, "Pool must not be null");
+			Assert.notNull(direct, "Direct context source must not be null");
+			this.name = name;
+			this.pool = pool;
+			this.direct = direct;
+		}
+
+		synchronized void succeeded(long latency) {
+			if (failures == 0 && latencyNanos != 0) {
+				latencyNanos = (long) (LATENCY_SMOOTHING * latency
+						+ (1 - LATENCY_SMOOTHING) * latencyNanos);
+			} else {
+				// first probe or server is back - history is irrelevant
+				latencyNanos = latency;
+			}
+			if (!available) {
+				logger.info("Server {} is available again", name);
+			}
+			failures = 0;
+			available = true;
+		}
+
+		/**
+		 * @return backoff in milliseconds
+		 */
+		synchronized long failed(long initialBackoffMillis,
+				long maxBackoffMillis, long now) {
+			if (!available && now - retryAt < 0) {
+				// concurrent failures of one outage count once
+				return TimeUnit.NANOSECONDS.toMillis(retryAt - now);
+			}
+			int n = ++failures;
+			long backoff = initialBackoffMillis << Math.min(n - 1, 30);
+			if (backoff <= 0 || backoff > maxBackoffMillis) {
+				backoff = maxBackoffMillis;
+			}
+			available = false;
+			retryAt = now + TimeUnit.MILLISECONDS.toNanos(backoff);
+			return backoff;
+		}
+	}
+
+	/**
+	 * Snapshot of state of one server.
+	 */
+	public static final class ServerStatus {
+		private final String name;
+		private final boolean available;
+		private final long latencyNanos;
+		private final int failures;
+
+		ServerStatus(String name, boolean available, long latencyNanos,
+				int failures) {
+			this.name = name;
+			this.available = available;
+			this.latencyNanos = latencyNanos;
+			this.failures = failures;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public boolean isAvailable() {
+			return available;
+		}
+
+		/**
+		 * @return smoothed probe latency
+		 */
+		public double getLatencyMillis() {
+			return (double) latencyNanos / TimeUnit.MILLISECONDS.toNanos(1);
+		}
+
+		/**
+		 * @return number of consecutive failures
+		 */
+		public int getFailureCount() {
+			return failures;
+		}
+
+		@Override
+		public String toString() {
+			return "ServerStatus [name=" + name + ", available=" + available
+					+ ", latencyMillis=" + getLatencyMillis() + ", failures="
+					+ failures + "]";
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package com.ash2k.example.ldap_it.pool;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.ldap.pool.factory.PoolingContextSource;
+
+import com.ash2k.example.ldap_it.metrics.LatencyHistogram;
+
+/**
+ * Live metrics of a connection pool. Can be registered with an MBean server
+ * as is.
+ * 
+ * @author Mikhail Mazursky
+ */
+public final class PoolMetrics implements PoolMetricsMBean {
+
+	private final PoolingContextSource pool;
+	private final LatencyHistogram borrowWait = new LatencyHistogram();
+	private final AtomicLong borrowFailures = new AtomicLong();
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong validationFailures = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	PoolMetrics(PoolingContextSource pool) {
+		this.pool = pool;
+	}
+
+	@Override
+	public int getNumActive() {
+		return pool.getNumActive();
+	}
+
+	@Override
+	public int getNumIdle() {
+		return pool.getNumIdle();
+	}
+
+	/**
+	 * @return time callers waited for a connection, including time to create
+	 *         it if pool had no idle ones
+	 */
+	public LatencyHistogram getBorrowWait() {
+		return borrowWait;
+	}
+
+	@Override
+	public long getBorrowCount() {
+		return borrowWait.getCount();
+	}
+
+	/**
+	 * @return number of borrow attempts that failed because pool was
+	 *         exhausted or connection could not be made
+	 */
+	@Override
+	public long getBorrowFailureCount() {
+		return borrowFailures.get();
+	}
+
+	@Override
+	public double getBorrowWaitMeanMillis() {
+		return borrowWait.getMean(TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public double getBorrowWaitP50Millis() {
+		return borrowWait.getPercentile(50, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public double getBorrowWaitP99Millis() {
+		return borrowWait.getPercentile(99, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public double getBorrowWaitP999Millis() {
+		return borrowWait.getPercentile(99.9, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public double getBorrowWaitMaxMillis() {
+		return borrowWait.getPercentile(100, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public long getCreatedCount() {
+		return created.get();
+	}
+
+	@Override
+	public long getValidationFailureCount() {
+		return validationFailures.get();
+	}
+
+	/**
+	 * @return number of connections closed by the pool: evicted while idle,
+	 *         failed validation or returned when there were enough idle ones
+	 *         already
+	 */
+	@Override
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	@Override
+	public void resetBorrowWait() {
+		borrowWait.reset();
+	}
+
+	void borrowed(long waitNanos) {
+		borrowWait.record(waitNanos);
+	}
+
+	void borrowFailed() {
+		borrowFailures.incrementAndGet();
+	}
+
+	void created() {
+		created.incrementAndGet();
+	}
+
+	void validationFailed() {
+		validationFailures.incrementAndGet();
+	}
+
+	void destroyed() {
+		evictions.incrementAndGet();
+	}
+}
@@ -0,0 +1,37 @@
+package com.ash2k.example.ldap_it.pool;
+
+/**
+ * Management interface of {@link PoolMetrics}. Durations are in milliseconds.
+ * 
+ * @author Mikhail Mazursky
+ */
+public interface PoolMetricsMBean {
+	int getNumActive();
+
+	int getNumIdle();
+
+	long getBorrowCount();
+
+	long getBorrowFailureCount();
+
+	double getBorrowWaitMeanMillis();
+
+	double getBorrowWaitP50Millis();
+
+	double getBorrowWaitP99Millis();
+
+	double getBorrowWaitP999Millis();
+
+	double getBorrowWaitMaxMillis();
+
+	long getCreatedCount();
+
+	long getValidationFailureCount();
+
+	long getEvictionCount();
+
+	/**
+	 * Forgets recorded borrow wait times.
+	 */
+	void resetBorrowWait();
+}
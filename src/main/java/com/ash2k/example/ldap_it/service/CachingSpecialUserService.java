@@ -0,0 +1,348 @@
+package com.ash2k.example.ldap_it.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.springframework.ldap.NameNotFoundException;
+
+import com.ash2k.example.ldap_it.api.BatchResult;
+import com.ash2k.example.ldap_it.api.SpecialUserService;
+import com.ash2k.example.ldap_it.api.UpsertOutcome;
+import com.ash2k.example.ldap_it.cache.ExpiringLruCache;
+import com.ash2k.example.ldap_it.domain.SpecialUser;
+
+/**
+ * Read-through caching decorator for {@link SpecialUserService}.
+ * <p>
+ * Users are cached by normalized (lower case) username because directory
+ * matches names case-insensitively. Persisted users replace cached entries.
+ * A load that raced with a write of the same user does not cache what it
+ * read, as it may be the value the write replaced.
+ * <p>
+ * Optionally names of users that were not found are cached too (negative
+ * cache) so that repeated lookups of unknown names do not reach the
+ * directory. Such entries should have short TTL; they are invalidated when
+ * the user is persisted through this service. Users deleted through this
+ * service are put into it.
+ * 
+ * @author Mikhail Mazursky
+ */
+public class CachingSpecialUserService extends ForwardingSpecialUserService {
+
+	public static final int DEFAULT_MAX_SIZE = 10000;
+	public static final long DEFAULT_TTL_SECONDS = 300;
+
+	/** Number of write generation stripes, a power of two */
+	private static final int GENERATION_STRIPES = 64;
+
+	private final ExpiringLruCache<String, SpecialUser> cache;
+	private final ExpiringLruCache<String, Boolean> negativeCache;
+	/**
+	 * Write generations striped by key hash. Every write increments the
+	 * generation of its key, loads compare it before and after the directory
+	 * is queried
+	 */
+	private final AtomicLongArray generations = new AtomicLongArray(
+			GENERATION_STRIPES);
+
+	public CachingSpecialUserService(SpecialUserService delegate) {
+		this(delegate, new ExpiringLruCache<String, SpecialUser>(
+				DEFAULT_MAX_SIZE, DEFAULT_TTL_SECONDS, TimeUnit.SECONDS));
+	}
+
+	public CachingSpecialUserService(SpecialUserService delegate,
+			ExpiringLruCache<String, SpecialUser> cache) {
+		this(delegate, cache, null);
+	}
+
+	/**
+	 * @param negativeCache
+	 *            cache for names of users that do not exist, may be
+	 *            {@code null}
+	 */
+	public CachingSpecialUserService(SpecialUserService delegate,
+			ExpiringLruCache<String, SpecialUser> cache,
+			ExpiringLruCache<String, Boolean> negativeCache) {
+		super(delegate);
+		this.cache = cache;
+		this.negativeCache = negativeCache;
+	}
+
+	@Override
+	public void persist(SpecialUser user) {
+		String key = normalize(user.getUsername());
+		try {
+			delegate.persist(user);
+		} catch (RuntimeException e) {
+			// state of the entry in directory is unknown now
+			invalidate(key);
+			throw e;
+		}
+		cached(key, user);
+	}
+
+	@Override
+	public BatchResult persistAll(Collection<SpecialUser> users) {
+		BatchResult result;
+		try {
+			result = delegate.persistAll(users);
+		} catch (RuntimeException e) {
+			for (SpecialUser user : users) {
+				invalidate(normalize(user.getUsername()));
+			}
+			throw e;
+		}
+		for (SpecialUser user : users) {
+			String key = normalize(user.getUsername());
+			if (result.getFailed().containsKey(user.getUsername())) {
+				invalidate(key);
+			} else {
+				cached(key, user);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public UpsertOutcome upsert(SpecialUser user) {
+		String key = normalize(user.getUsername());
+		UpsertOutcome outcome;
+		try {
+			outcome = delegate.upsert(user);
+		} catch (RuntimeException e) {
+			invalidate(key);
+			throw e;
+		}
+		cached(key, user);
+		return outcome;
+	}
+
+	@Override
+	public void delete(String username) {
+		String key = normalize(username);
+		try {
+			delegate.delete(username);
+		} catch (RuntimeException e) {
+			invalidate(key);
+			throw e;
+		}
+		deleted(key);
+	}
+
+	@Override
+	public BatchResult deleteAll(Collection<String> usernames) {
+		BatchResult result;
+		try {
+			result = delegate.deleteAll(usernames);
+		} catch (RuntimeException e) {
+			for (String username : usernames) {
+				invalidate(normalize(username));
+			}
+			throw e;
+		}
+		for (String username : usernames) {
+			String key = normalize(username);
+			if (result.getFailed().containsKey(username)) {
+				invalidate(key);
+			} else {
+				deleted(key);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public SpecialUser load(String username) {
+		String key = normalize(username);
+		SpecialUser user = cache.get(key);
+		if (user == null) {
+			if (isKnownMissing(key)) {
+				throw new NameNotFoundException("User '" + username
+						+ "' does not exist");
+			}
+			long generation = generation(key);
+			try {
+				user = delegate.load(username);
+			} catch (NameNotFoundException e) {
+				missing(key, generation);
+				throw e;
+			}
+			cacheLoaded(key, generation, user);
+		}
+		return user;
+	}
+
+	@Override
+	public Map<String, SpecialUser> loadAll(Collection<String> usernames) {
+		Map<String, SpecialUser> users = new HashMap<String, SpecialUser>(
+				usernames.size() * 4 / 3 + 1);
+		List<String> missing = new ArrayList<String>();
+		for (String username : usernames) {
+			String key = normalize(username);
+			SpecialUser user = cache.get(key);
+			if (user != null) {
+				users.put(username, user);
+			} else if (!isKnownMissing(key)) {
+				missing.add(username);
+			}
+		}
+		if (!missing.isEmpty()) {
+			long[] before = new long[missing.size()];
+			for (int i = 0; i < before.length; i++) {
+				before[i] = generation(normalize(missing.get(i)));
+			}
+			Map<String, SpecialUser> loaded = delegate.loadAll(missing);
+			for (int i = 0; i < before.length; i++) {
+				String username = missing.get(i);
+				SpecialUser user = loaded.get(username);
+				if (user == null) {
+					missing(normalize(username), before[i]);
+				} else {
+					cacheLoaded(normalize(username), before[i], user);
+				}
+			}
+			users.putAll(loaded);
+		}
+		return users;
+	}
+
+	@Override
+	public boolean exists(String username) {
+		String key = normalize(username);
+		if (cache.get(key) != null) {
+			return true;
+		}
+		if (isKnownMissing(key)) {
+			return false;
+		}
+		long generation = generation(key);
+		boolean exists = delegate.exists(username);
+		if (!exists) {
+			missing(key, generation);
+		}
+		return exists;
+	}
+
+	public void invalidate(String username) {
+		String key = normalize(username);
+		written(key);
+		cache.invalidate(key);
+		if (negativeCache != null) {
+			negativeCache.invalidate(key);
+		}
+	}
+
+	public void invalidateAll() {
+		for (int i = 0; i < GENERATION_STRIPES; i++) {
+			generations.incrementAndGet(i);
+		}
+		cache.invalidateAll();
+		if (negativeCache != null) {
+			negativeCache.invalidateAll();
+		}
+	}
+
+	public long getHitCount() {
+		return cache.getHitCount();
+	}
+
+	public long getMissCount() {
+		return cache.getMissCount();
+	}
+
+	public long getEvictionCount() {
+		return cache.getEvictionCount() + cache.getExpirationCount();
+	}
+
+	/**
+	 * @return number of lookups answered by negative cache
+	 */
+	public long getNegativeHitCount() {
+		return negativeCache == null ? 0 : negativeCache.getHitCount();
+	}
+
+	/**
+	 * Caches a user that was written to the directory.
+	 */
+	private void cached(String key, SpecialUser user) {
+		written(key);
+		if (negativeCache != null) {
+			negativeCache.invalidate(key);
+		}
+		cache.put(key, user);
+	}
+
+	/**
+	 * Remembers a user that was deleted from the directory.
+	 */
+	private void deleted(String key) {
+		written(key);
+		cache.invalidate(key);
+		if (negativeCache != null) {
+			negativeCache.put(key, Boolean.TRUE);
+		}
+	}
+
+	/**
+	 * Caches a user read from the directory unless the user was written since
+	 * the generation was taken. The generation is checked again after the put
+	 * because a write may finish in between.
+	 */
+	private void cacheLoaded(String key, long generation, SpecialUser user) {
+		if (generation(key) != generation) {
+			return;
+		}
+		cache.put(key, user);
+		if (generation(key) != generation) {
+			cache.invalidate(key);
+		}
+	}
+
+	/**
+	 * Remembers that the user was not found unless the user was written since
+	 * the generation was taken, the same way as {@link #cacheLoaded}.
+	 */
+	private void missing(String key, long generation) {
+		if (negativeCache == null || generation(key) != generation) {
+			return;
+		}
+		negativeCache.put(key, Boolean.TRUE);
+		if (generation(key) != generation) {
+			negativeCache.invalidate(key);
+		}
+	}
+
+	private boolean isKnownMissing(String key) {
+		return negativeCache != null && negativeCache.get(key) != null;
+	}
+
+	/**
+	 * Must be called after the directory was written and before the cache is
+	 * updated.
+	 */
+	private void written(String key) {
+		generations.incrementAndGet(stripe(key));
+	}
+
+	private long generation(String key) {
+		return generations.get(stripe(key));
+	}
+
+	private static int stripe(String key) {
+		int h = key.hashCode();
+		// spread bits as HashMap does to make use of higher bits too
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return h & (GENERATION_STRIPES - 1);
+	}
+
+	static String normalize(String username) {
+		return username.toLowerCase(Locale.ENGLISH);
+	}
+}
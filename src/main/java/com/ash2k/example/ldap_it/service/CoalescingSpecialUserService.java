@@ -0,0 +1,147 @@
+package com.ash2k.example.ldap_it.service;
+
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import com.ash2k.example.ldap_it.api.BatchResult;
+import com.ash2k.example.ldap_it.api.SpecialUserService;
+import com.ash2k.example.ldap_it.api.UpsertOutcome;
+import com.ash2k.example.ldap_it.domain.SpecialUser;
+
+/**
+ * Decorator for {@link SpecialUserService} that merges concurrent
+ * {@link #load(String)} calls for the same normalized username into one call
+ * to the delegate (single flight). The first caller runs the load on its own
+ * thread; callers that arrive while it is in flight wait for it and get the
+ * same user or exception.
+ * <p>
+ * A load that is already in flight is never joined after a write or delete
+ * of the same user went through this service, so a caller that persisted a
+ * user does not get its state from before the write.
+ * <p>
+ * Counters are available through {@link #getStats()}.
+ * 
+ * @author Mikhail Mazursky
+ */
+public class CoalescingSpecialUserService extends ForwardingSpecialUserService {
+
+	private final ConcurrentMap<String, FutureTask<SpecialUser>> inFlight = new ConcurrentHashMap<String, FutureTask<SpecialUser>>();
+	private final CoalescingStats stats = new CoalescingStats();
+
+	public CoalescingSpecialUserService(SpecialUserService delegate) {
+		super(delegate);
+	}
+
+	@Override
+	public void persist(SpecialUser user) {
+		try {
+			delegate.persist(user);
+		} finally {
+			written(user.getUsername());
+		}
+	}
+
+	@Override
+	public BatchResult persistAll(Collection<SpecialUser> users) {
+		try {
+			return delegate.persistAll(users);
+		} finally {
+			for (SpecialUser user : users) {
+				written(user.getUsername());
+			}
+		}
+	}
+
+	@Override
+	public UpsertOutcome upsert(SpecialUser user) {
+		try {
+			return delegate.upsert(user);
+		} finally {
+			written(user.getUsername());
+		}
+	}
+
+	@Override
+	public void delete(String username) {
+		try {
+			delegate.delete(username);
+		} finally {
+			written(username);
+		}
+	}
+
+	@Override
+	public BatchResult deleteAll(Collection<String> usernames) {
+		try {
+			return delegate.deleteAll(usernames);
+		} finally {
+			for (String username : usernames) {
+				written(username);
+			}
+		}
+	}
+
+	@Override
+	public SpecialUser load(final String username) {
+		stats.loaded();
+		String key = CachingSpecialUserService.normalize(username);
+		FutureTask<SpecialUser> task = new FutureTask<SpecialUser>(
+				new Callable<SpecialUser>() {
+					@Override
+					public SpecialUser call() {
+						return delegate.load(username);
+					}
+				});
+		FutureTask<SpecialUser> running = inFlight.putIfAbsent(key, task);
+		if (running == null) {
+			try {
+				task.run();
+			} finally {
+				inFlight.remove(key, task);
+			}
+			running = task;
+		} else {
+			stats.merged();
+		}
+		return result(running);
+	}
+
+	public CoalescingStats getStats() {
+		return stats;
+	}
+
+	private void written(String username) {
+		inFlight.remove(CachingSpecialUserService.normalize(username));
+	}
+
+	private static SpecialUser result(FutureTask<SpecialUser> task) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return task.get();
+				} catch (InterruptedException e) {
+					// a plain load() is not interruptible either
+					interrupted = true;
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					}
+					if (cause instanceof Error) {
+						throw (Error) cause;
+					}
+					throw new IllegalStateException(cause);
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
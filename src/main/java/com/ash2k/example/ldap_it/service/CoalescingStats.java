@@ -0,0 +1,45 @@
+package com.ash2k.example.ldap_it.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live counters of a {@link CoalescingSpecialUserService}. Can be registered
+ * with an MBean server as is.
+ * 
+ * @author Mikhail Mazursky
+ */
+public final class CoalescingStats implements CoalescingStatsMBean {
+
+	private final AtomicLong loads = new AtomicLong();
+	private final AtomicLong merged = new AtomicLong();
+
+	CoalescingStats() {
+	}
+
+	/**
+	 * @return number of {@link CoalescingSpecialUserService#load(String)}
+	 *         calls
+	 */
+	@Override
+	public long getLoadCount() {
+		return loads.get();
+	}
+
+	/**
+	 * @return number of {@link CoalescingSpecialUserService#load(String)}
+	 *         calls that joined a load in flight instead of calling the
+	 *         delegate
+	 */
+	@Override
+	public long getMergedCount() {
+		return merged.get();
+	}
+
+	void loaded() {
+		loads.incrementAndGet();
+	}
+
+	void merged() {
+		merged.incrementAndGet();
+	}
+}
@@ -0,0 +1,12 @@
+package com.ash2k.example.ldap_it.service;
+
+/**
+ * Management interface of {@link CoalescingStats}. Read-only.
+ * 
+ * @author Mikhail Mazursky
+ */
+public interface CoalescingStatsMBean {
+	long getLoadCount();
+
+	long getMergedCount();
+}
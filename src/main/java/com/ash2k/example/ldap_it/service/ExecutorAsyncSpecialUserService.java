@@ -0,0 +1,225 @@
+package com.ash2k.example.ldap_it.service;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.Assert;
+
+import com.ash2k.example.ldap_it.api.AsyncCallback;
+import com.ash2k.example.ldap_it.api.AsyncSpecialUserService;
+import com.ash2k.example.ldap_it.api.SpecialUserService;
+import com.ash2k.example.ldap_it.domain.SpecialUser;
+
+/**
+ * {@link AsyncSpecialUserService} that runs blocking {@link SpecialUserService}
+ * calls on a bounded thread pool.
+ * <p>
+ * Both the number of threads and the number of queued operations are limited.
+ * When the queue is full new operations are rejected right away so that a
+ * slow directory is visible to callers as backpressure. Virtual threads are
+ * used as workers if requested and the runtime supports them.
+ * 
+ * @author Mikhail Mazursky
+ */
+public class ExecutorAsyncSpecialUserService implements
+		AsyncSpecialUserService {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(ExecutorAsyncSpecialUserService.class);
+
+	private final SpecialUserService delegate;
+	private final ThreadPoolExecutor executor;
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * @param threads
+	 *            maximum number of concurrently executing operations; should
+	 *            not exceed size of the connection pool
+	 * @param queueCapacity
+	 *            maximum number of operations waiting for a thread
+	 * @param preferVirtualThreads
+	 *            use virtual threads if the runtime supports them
+	 */
+	public ExecutorAsyncSpecialUserService(SpecialUserService delegate,
+			int threads, int queueCapacity, boolean preferVirtualThreads) {
+		Assert.notNull(delegate, "Delegate must not be null");
+		Assert.isTrue(threads > 0, "Number of threads must be positive");
+		Assert.isTrue(queueCapacity > 0, "Queue capacity must be positive");
+
+		this.delegate = delegate;
+		ThreadFactory threadFactory = preferVirtualThreads ? virtualThreadFactory()
+				: null;
+		if (threadFactory == null) {
+			threadFactory = new DaemonThreadFactory();
+		}
+		executor = new ThreadPoolExecutor(threads, threads, 60L,
+				TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+						queueCapacity), threadFactory, new CountingAbortPolicy());
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	@Override
+	public Future<Void> persistAsync(SpecialUser user) {
+		return persistAsync(user, null);
+	}
+
+	@Override
+	public Future<Void> persistAsync(final SpecialUser user,
+			AsyncCallback<Void> callback) {
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() {
+				delegate.persist(user);
+				return null;
+			}
+		}, callback);
+	}
+
+	@Override
+	public Future<SpecialUser> loadAsync(String username) {
+		return loadAsync(username, null);
+	}
+
+	@Override
+	public Future<SpecialUser> loadAsync(final String username,
+			AsyncCallback<SpecialUser> callback) {
+		return submit(new Callable<SpecialUser>() {
+			@Override
+			public SpecialUser call() {
+				return delegate.load(username);
+			}
+		}, callback);
+	}
+
+	/**
+	 * @return number of operations waiting for a thread
+	 */
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * @return number of operations being executed right now
+	 */
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	/**
+	 * @return number of operations rejected because the queue was full
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * Stops accepting new operations and waits for queued ones to complete.
+	 */
+	@PreDestroy
+	public void shutdown() throws InterruptedException {
+		executor.shutdown();
+		if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+			logger.warn("{} operations were not completed in time",
+					executor.shutdownNow().size());
+		}
+	}
+
+	private <T> Future<T> submit(Callable<T> task,
+			final AsyncCallback<T> callback) {
+		FutureTask<T> future = new FutureTask<T>(task) {
+			@Override
+			protected void done() {
+				if (callback != null && !isCancelled()) {
+					notifyCallback(this, callback);
+				}
+			}
+		};
+		executor.execute(future);
+		return future;
+	}
+
+	private static <T> void notifyCallback(Future<T> future,
+			AsyncCallback<T> callback) {
+		T result;
+		try {
+			result = future.get();
+		} catch (InterruptedException e) {
+			// can't happen - future is done
+			Thread.currentThread().interrupt();
+			return;
+		} catch (ExecutionException e) {
+			try {
+				callback.onFailure(e.getCause());
+			} catch (RuntimeException ce) {
+				logger.error("Callback failed", ce);
+			}
+			return;
+		}
+		try {
+			callback.onSuccess(result);
+		} catch (RuntimeException ce) {
+			logger.error("Callback failed", ce);
+		}
+	}
+
+	/**
+	 * @return virtual thread factory or {@code null} if this runtime has no
+	 *         virtual threads
+	 */
+	private static ThreadFactory virtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder")
+					.getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (Exception e) {
+			logger.debug("Virtual threads are not available: {}",
+					e.toString());
+			return null;
+		}
+	}
+
+	private final class CountingAbortPolicy implements
+			RejectedExecutionHandler {
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			if (executor.isShutdown()) {
+				// not backpressure, must not be reported as such
+				throw new RejectedExecutionException("Service is shut down");
+			}
+			rejected.incrementAndGet();
+			throw new RejectedExecutionException("Queue is full ("
+					+ executor.getQueue().size() + " operations waiting)");
+		}
+	}
+
+	private static final class DaemonThreadFactory implements ThreadFactory {
+		private static final AtomicInteger poolNumber = new AtomicInteger();
+
+		private final String prefix = "special-user-async-"
+				+ poolNumber.incrementAndGet() + "-";
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + threadNumber.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package com.ash2k.example.ldap_it.service;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.util.Assert;
+
+import com.ash2k.example.ldap_it.api.BatchResult;
+import com.ash2k.example.ldap_it.api.SpecialUserHandler;
+import com.ash2k.example.ldap_it.api.SpecialUserService;
+import com.ash2k.example.ldap_it.api.UpsertOutcome;
+import com.ash2k.example.ldap_it.domain.SpecialUser;
+
+/**
+ * Base class for {@link SpecialUserService} decorators. Forwards all calls to
+ * the delegate; subclasses override what they need.
+ * 
+ * @author Mikhail Mazursky
+ */
+public abstract class ForwardingSpecialUserService implements
+		SpecialUserService {
+
+	protected final SpecialUserService delegate;
+
+	protected ForwardingSpecialUserService(SpecialUserService delegate) {
+		Assert.notNull(delegate, "Delegate must not be null");
+		this.delegate = delegate;
+	}
+
+	@Override
+	public void persist(SpecialUser user) {
+		delegate.persist(user);
+	}
+
+	@Override
+	public BatchResult persistAll(Collection<SpecialUser> users) {
+		return delegate.persistAll(users);
+	}
+
+	@Override
+	public UpsertOutcome upsert(SpecialUser user) {
+		return delegate.upsert(user);
+	}
+
+	@Override
+	public void delete(String username) {
+		delegate.delete(username);
+	}
+
+	@Override
+	public BatchResult deleteAll(Collection<String> usernames) {
+		return delegate.deleteAll(usernames);
+	}
+
+	@Override
+	public SpecialUser load(String username) {
+		return delegate.load(username);
+	}
+
+	@Override
+	public Map<String, SpecialUser> loadAll(Collection<String> usernames) {
+		return delegate.loadAll(usernames);
+	}
+
+	@Override
+	public boolean exists(String username) {
+		return delegate.exists(username);
+	}
+
+	@Override
+	public long streamAll(SpecialUserHandler handler) {
+		return delegate.streamAll(handler);
+	}
+
+	@Override
+	public List<SpecialUser> findBySpecial(String special) {
+		return delegate.findBySpecial(special);
+	}
+
+	@Override
+	public List<SpecialUser> findBySpecialPrefix(String prefix) {
+		return delegate.findBySpecialPrefix(prefix);
+	}
+}
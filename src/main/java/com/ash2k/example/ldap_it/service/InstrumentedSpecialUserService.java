@@ -0,0 +1,228 @@
+package com.ash2k.example.ldap_it.service;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.util.Assert;
+
+import com.ash2k.example.ldap_it.api.BatchResult;
+import com.ash2k.example.ldap_it.api.SpecialUserHandler;
+import com.ash2k.example.ldap_it.api.SpecialUserService;
+import com.ash2k.example.ldap_it.api.UpsertOutcome;
+import com.ash2k.example.ldap_it.domain.SpecialUser;
+import com.ash2k.example.ldap_it.metrics.MetricsRecorder;
+import com.ash2k.example.ldap_it.metrics.PoolWaitTime;
+
+/**
+ * Decorator that reports latency and outcome of every call to a
+ * {@link MetricsRecorder}.
+ * <p>
+ * Pool wait is taken from {@link PoolWaitTime}, so it only covers
+ * connections borrowed on the calling thread (i.e. not chunks of a batch
+ * processed by an executor). Time of {@link #streamAll(SpecialUserHandler)}
+ * includes time spent in the handler.
+ * 
+ * @author Mikhail Mazursky
+ */
+public class InstrumentedSpecialUserService extends
+		ForwardingSpecialUserService {
+
+	public static final String OP_PERSIST = "persist";
+	public static final String OP_PERSIST_ALL = "persistAll";
+	public static final String OP_UPSERT = "upsert";
+	public static final String OP_DELETE = "delete";
+	public static final String OP_DELETE_ALL = "deleteAll";
+	public static final String OP_LOAD = "load";
+	public static final String OP_LOAD_ALL = "loadAll";
+	public static final String OP_EXISTS = "exists";
+	public static final String OP_STREAM_ALL = "streamAll";
+	public static final String OP_FIND_BY_SPECIAL = "findBySpecial";
+	public static final String OP_FIND_BY_SPECIAL_PREFIX = "findBySpecialPrefix";
+	/** Names of all recorded operations */
+	public static final String[] OPERATIONS = new String[] { OP_PERSIST,
+			OP_PERSIST_ALL, OP_UPSERT, OP_DELETE, OP_DELETE_ALL, OP_LOAD,
+			OP_LOAD_ALL, OP_EXISTS, OP_STREAM_ALL, OP_FIND_BY_SPECIAL,
+			OP_FIND_BY_SPECIAL_PREFIX };
+
+	private final MetricsRecorder recorder;
+
+	public InstrumentedSpecialUserService(SpecialUserService delegate,
+			MetricsRecorder recorder) {
+		super(delegate);
+		Assert.notNull(recorder, "Recorder must not be null");
+		this.recorder = recorder;
+	}
+
+	@Override
+	public void persist(SpecialUser user) {
+		long start = System.nanoTime();
+		long wait = PoolWaitTime.total();
+		try {
+			delegate.persist(user);
+		} catch (RuntimeException e) {
+			failure(OP_PERSIST, e, start, wait);
+			throw e;
+		}
+		success(OP_PERSIST, start, wait);
+	}
+
+	@Override
+	public BatchResult persistAll(Collection<SpecialUser> users) {
+		long start = System.nanoTime();
+		long wait = PoolWaitTime.total();
+		BatchResult result;
+		try {
+			result = delegate.persistAll(users);
+		} catch (RuntimeException e) {
+			failure(OP_PERSIST_ALL, e, start, wait);
+			throw e;
+		}
+		success(OP_PERSIST_ALL, start, wait);
+		return result;
+	}
+
+	@Override
+	public UpsertOutcome upsert(SpecialUser user) {
+		long start = System.nanoTime();
+		long wait = PoolWaitTime.total();
+		UpsertOutcome outcome;
+		try {
+			outcome = delegate.upsert(user);
+		} catch (RuntimeException e) {
+			failure(OP_UPSERT, e, start, wait);
+			throw e;
+		}
+		success(OP_UPSERT, start, wait);
+		return outcome;
+	}
+
+	@Override
+	public void delete(String username) {
+		long start = System.nanoTime();
+		long wait = PoolWaitTime.total();
+		try {
+			delegate.delete(username);
+		} catch (RuntimeException e) {
+			failure(OP_DELETE, e, start, wait);
+			throw e;
+		}
+		success(OP_DELETE, start, wait);
+	}
+
+	@Override
+	public BatchResult deleteAll(Collection<String> usernames) {
+		long start = System.nanoTime();
+		long wait = PoolWaitTime.total();
+		BatchResult result;
+		try {
+			result = delegate.deleteAll(usernames);
+		} catch (RuntimeException e) {
+			failure(OP_DELETE_ALL, e, start, wait);
+			throw e;
+		}
+		success(OP_DELETE_ALL, start, wait);
+		return result;
+	}
+
+	@Override
+	public SpecialUser load(String username) {
+		long start = System.nanoTime();
+		long wait = PoolWaitTime.total();
+		SpecialUser user;
+		try {
+			user = delegate.load(username);
+		} catch (RuntimeException e) {
+			failure(OP_LOAD, e, start, wait);
+			throw e;
+		}
+		success(OP_LOAD, start, wait);
+		return user;
+	}
+
+	@Override
+	public Map<String, SpecialUser> loadAll(Collection<String> usernames) {
+		long start = System.nanoTime();
+		long wait = PoolWaitTime.total();
+		Map<String, SpecialUser> users;
+		try {
+			users = delegate.loadAll(usernames);
+		} catch (RuntimeException e) {
+			failure(OP_LOAD_ALL, e, start, wait);
+			throw e;
+		}
+		success(OP_LOAD_ALL, start, wait);
+		return users;
+	}
+
+	@Override
+	public boolean exists(String username) {
+		long start = System.nanoTime();
+		long wait = PoolWaitTime.total();
+		boolean exists;
+		try {
+			exists = delegate.exists(username);
+		} catch (RuntimeException e) {
+			failure(OP_EXISTS, e, start, wait);
+			throw e;
+		}
+		success(OP_EXISTS, start, wait);
+		return exists;
+	}
+
+	@Override
+	public long streamAll(SpecialUserHandler handler) {
+		long start = System.nanoTime();
+		long wait = PoolWaitTime.total();
+		long count;
+		try {
+			count = delegate.streamAll(handler);
+		} catch (RuntimeException e) {
+			failure(OP_STREAM_ALL, e, start, wait);
+			throw e;
+		}
+		success(OP_STREAM_ALL, start, wait);
+		return count;
+	}
+
+	@Override
+	public List<SpecialUser> findBySpecial(String special) {
+		long start = System.nanoTime();
+		long wait = PoolWaitTime.total();
+		List<SpecialUser> users;
+		try {
+			users = delegate.findBySpecial(special);
+		} catch (RuntimeException e) {
+			failure(OP_FIND_BY_SPECIAL, e, start, wait);
+			throw e;
+		}
+		success(OP_FIND_BY_SPECIAL, start, wait);
+		return users;
+	}
+
+	@Override
+	public List<SpecialUser> findBySpecialPrefix(String prefix) {
+		long start = System.nanoTime();
+		long wait = PoolWaitTime.total();
+		List<SpecialUser> users;
+		try {
+			users = delegate.findBySpecialPrefix(prefix);
+		} catch (RuntimeException e) {
+			failure(OP_FIND_BY_SPECIAL_PREFIX, e, start, wait);
+			throw e;
+		}
+		success(OP_FIND_BY_SPECIAL_PREFIX, start, wait);
+		return users;
+	}
+
+	private void success(String operation, long start, long waitBefore) {
+		recorder.recordSuccess(operation, System.nanoTime() - start,
+				PoolWaitTime.total() - waitBefore);
+	}
+
+	private void failure(String operation, RuntimeException e, long start,
+			long waitBefore) {
+		recorder.recordFailure(operation, e, System.nanoTime() - start,
+				PoolWaitTime.total() - waitBefore);
+	}
+}
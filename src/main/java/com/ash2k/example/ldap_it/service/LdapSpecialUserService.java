@@ -1,26 +1,98 @@
 package com.ash2k.example.ldap_it.service;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.naming.ContextNotEmptyException;
+import javax.naming.NameClassPair;
+import javax.naming.NamingException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+import javax.naming.directory.SearchControls;
+import javax.naming.ldap.BasicControl;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.ldap.NameNotFoundException;
+import org.springframework.ldap.SizeLimitExceededException;
+import org.springframework.ldap.control.PagedResultsCookie;
+import org.springframework.ldap.control.PagedResultsDirContextProcessor;
+import org.springframework.ldap.core.AttributesMapper;
+import org.springframework.ldap.core.AttributesMapperCallbackHandler;
+import org.springframework.ldap.core.ContextExecutor;
 import org.springframework.ldap.core.ContextMapper;
 import org.springframework.ldap.core.DirContextAdapter;
 import org.springframework.ldap.core.DirContextOperations;
+import org.springframework.ldap.core.DistinguishedName;
 import org.springframework.ldap.core.LdapEncoder;
 import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.ldap.core.NameClassPairCallbackHandler;
 import org.springframework.ldap.core.support.AbstractContextMapper;
+import org.springframework.ldap.core.support.CountNameClassPairCallbackHandler;
+import org.springframework.ldap.core.support.SingleContextSource;
+import org.springframework.ldap.filter.EqualsFilter;
+import org.springframework.ldap.filter.OrFilter;
+import org.springframework.ldap.support.LdapUtils;
 import org.springframework.stereotype.Service;
+import org.springframework.util.Assert;
 
+import com.ash2k.example.ldap_it.api.BatchResult;
+import com.ash2k.example.ldap_it.api.SpecialUserHandler;
 import com.ash2k.example.ldap_it.api.SpecialUserService;
+import com.ash2k.example.ldap_it.api.UpsertOutcome;
+import com.ash2k.example.ldap_it.cache.ExpiringLruCache;
 import com.ash2k.example.ldap_it.domain.SpecialUser;
+import com.ash2k.example.ldap_it.pool.AdaptiveConcurrencyLimiter;
+import com.ash2k.example.ldap_it.pool.AdaptiveConcurrencyLimiter.Permit;
 
 /**
  * Service that can persist and load {@link SpecialUser}s to/from directory.
+ * <p>
+ * Reads and writes may go through different templates, e.g. to read from a
+ * pool of replica connections and write to a pool of primary connections.
+ * Replicas lag behind the primary, so reads of a user can be sent to the
+ * primary for a while after the user was written, see
+ * {@link #setRecentWrites(ExpiringLruCache)}.
+ * <p>
+ * Number of concurrent directory operations can be bounded by an
+ * {@link AdaptiveConcurrencyLimiter}, see
+ * {@link #setConcurrencyLimiter(AdaptiveConcurrencyLimiter)}.
  * 
  * @author Mikhail Mazursky
  */
 @Service
 public final class LdapSpecialUserService implements SpecialUserService {
 
-	public static final String USERDN_FORMAT = "uid=%s,ou=users";
+	public static final String USERS_BASE = "ou=users";
+	/** User DN is prefix, encoded username and suffix */
+	public static final String USERDN_PREFIX = "uid=";
+	public static final String USERDN_SUFFIX = "," + USERS_BASE;
+	/**
+	 * Format of user DN for {@link String#format(String, Object...)}, the
+	 * username has to be encoded with {@link LdapEncoder#nameEncode(String)}.
+	 * Same as {@link #USERDN_PREFIX} and {@link #USERDN_SUFFIX} which the
+	 * service itself uses as they are faster to concatenate.
+	 */
+	public static final String USERDN_FORMAT = USERDN_PREFIX + "%s"
+			+ USERDN_SUFFIX;
 
 	public static final String LDAP_MAIN_CLASS = "specialUser";
 	public static final String LDAP_OBJECT_CLASS = "objectclass";
@@ -30,32 +102,813 @@ public final class LdapSpecialUserService implements SpecialUserService {
 	public static final String LDAP_USERNAME = "cn";
 	public static final String LDAP_SURNAME = "sn";
 	public static final String LDAP_SPECIAL = "special";
+	/** Special attribute list that asks server to return no attributes */
+	public static final String[] LDAP_NO_ATTRIBUTES = new String[] { "1.1" };
+	public static final String LDAP_ANY_OBJECT_FILTER = "(objectclass=*)";
+	public static final String LDAP_USER_FILTER = "(" + LDAP_OBJECT_CLASS
+			+ "=" + LDAP_MAIN_CLASS + ")";
+	public static final String[] LDAP_USER_ATTRIBUTES = new String[] {
+			LDAP_USERNAME, LDAP_SPECIAL };
+	/** All attributes written by {@link #persist(SpecialUser)} */
+	public static final String[] LDAP_PERSISTED_ATTRIBUTES = new String[] {
+			LDAP_OBJECT_CLASS, LDAP_USERNAME, LDAP_SURNAME, LDAP_SPECIAL };
+
+	/** Tree Delete control, see draft-armijo-ldap-treedelete */
+	public static final String TREE_DELETE_CONTROL_OID = "1.2.840.113556.1.4.805";
+
+	public static final int DEFAULT_BATCH_SIZE = 100;
+	public static final int DEFAULT_FILTER_SIZE = 50;
+	public static final int DEFAULT_PAGE_SIZE = 500;
+	public static final int DEFAULT_MAX_RESULTS = 100;
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(LdapSpecialUserService.class);
 
-	private static final ContextMapper mapper = new SpecialUserContextMapper();
+	private static final AttributesMapper mapper = new SpecialUserAttributesMapper();
 
 	private final LdapTemplate ldapTemplate;
+	private final LdapTemplate readTemplate;
+
+	private volatile int batchSize = DEFAULT_BATCH_SIZE;
+	private volatile int filterSize = DEFAULT_FILTER_SIZE;
+	private volatile int pageSize = DEFAULT_PAGE_SIZE;
+	private volatile int maxResults = DEFAULT_MAX_RESULTS;
+	private volatile ExecutorService batchExecutor;
+	private volatile ExpiringLruCache<String, Boolean> recentWrites;
+	private volatile AdaptiveConcurrencyLimiter concurrencyLimiter;
+	/** {@code null} until the first tree delete */
+	private volatile Boolean treeDeleteSupported;
 
 	@Autowired
 	public LdapSpecialUserService(LdapTemplate ldapTemplate) {
+		this(ldapTemplate, ldapTemplate);
+	}
+
+	/**
+	 * @param ldapTemplate
+	 *            template used for writes and for reads of recently written
+	 *            users
+	 * @param readTemplate
+	 *            template used for all other reads
+	 */
+	public LdapSpecialUserService(LdapTemplate ldapTemplate,
+			LdapTemplate readTemplate) {
+		Assert.notNull(ldapTemplate, "Template must not be null");
+		Assert.notNull(readTemplate, "Read template must not be null");
 		this.ldapTemplate = ldapTemplate;
+		this.readTemplate = readTemplate;
+	}
+
+	/**
+	 * Sets maximum number of entries written over one connection by
+	 * {@link #persistAll(Collection)}.
+	 */
+	public void setBatchSize(int batchSize) {
+		Assert.isTrue(batchSize > 0, "Batch size must be positive");
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Sets maximum number of usernames put into one search filter by
+	 * {@link #loadAll(Collection)}.
+	 */
+	public void setFilterSize(int filterSize) {
+		Assert.isTrue(filterSize > 0, "Filter size must be positive");
+		this.filterSize = filterSize;
+	}
+
+	/**
+	 * Sets number of entries requested per page by
+	 * {@link #streamAll(SpecialUserHandler)}.
+	 */
+	public void setPageSize(int pageSize) {
+		Assert.isTrue(pageSize > 0, "Page size must be positive");
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Sets maximum number of users returned by searches.
+	 */
+	public void setMaxResults(int maxResults) {
+		Assert.isTrue(maxResults > 0, "Max results must be positive");
+		this.maxResults = maxResults;
+	}
+
+	/**
+	 * Sets executor used to process chunks of a batch in parallel. Each chunk
+	 * borrows its own connection so parallelism should not exceed the size of
+	 * the connection pool. Chunks are processed sequentially on the caller
+	 * thread if no executor is set.
+	 */
+	public void setBatchExecutor(ExecutorService batchExecutor) {
+		this.batchExecutor = batchExecutor;
+	}
+
+	/**
+	 * Enables read-your-writes: usernames written by this service are kept in
+	 * the given cache and reads of them by username ({@link #load(String)},
+	 * {@link #exists(String)} and {@link #loadAll(Collection)}) use the write
+	 * template until their entries expire. Cache TTL should exceed
+	 * replication lag. Searches always use the read template.
+	 */
+	public void setRecentWrites(ExpiringLruCache<String, Boolean> recentWrites) {
+		this.recentWrites = recentWrites;
+	}
+
+	/**
+	 * Bounds number of concurrent directory operations. Every template call
+	 * takes a slot of the limiter, so calls over the limit fail with
+	 * {@link java.util.concurrent.RejectedExecutionException} without touching
+	 * the directory; in batches the chunks that could not get a slot are
+	 * reported as failed. Latency of writes is measured per entry, latency of
+	 * {@link #streamAll(SpecialUserHandler)} and of subtree deletes does not
+	 * affect the limit. Operations are not limited if no limiter is set.
+	 */
+	public void setConcurrencyLimiter(
+			AdaptiveConcurrencyLimiter concurrencyLimiter) {
+		this.concurrencyLimiter = concurrencyLimiter;
 	}
 
 	@Override
 	public void persist(SpecialUser user) {
-		String userDn = String.format(USERDN_FORMAT,
-				LdapEncoder.nameEncode(user.getUsername()));
+		DirContextOperations userCtx = new DirContextAdapter(
+				userDn(user.getUsername()));
+		setAttributes(userCtx, user);
+		Permit permit = acquire();
+		try {
+			ldapTemplate.bind(userCtx);
+		} finally {
+			release(permit, 1);
+		}
+		written(user.getUsername());
+	}
+
+	@Override
+	public BatchResult persistAll(Collection<SpecialUser> users) {
+		return processChunks(users, batchSize, new ChunkProcessor<SpecialUser>() {
+			@Override
+			public BatchResult process(List<SpecialUser> chunk) {
+				return persistChunk(chunk);
+			}
+
+			@Override
+			public String name(SpecialUser user) {
+				return user.getUsername();
+			}
+		});
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * @throws NameNotFoundException
+	 *             if user does not exist
+	 */
+	@Override
+	public void delete(String username) {
+		Permit permit = acquire();
+		try {
+			ldapTemplate.unbind(userDn(username));
+		} finally {
+			release(permit, 1);
+		}
+		written(username);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Chunks of the batch are deleted like chunks of
+	 * {@link #persistAll(Collection)}: each over one connection, in parallel
+	 * if there is a batch executor. Users that do not exist fail with
+	 * {@link NameNotFoundException}.
+	 */
+	@Override
+	public BatchResult deleteAll(Collection<String> usernames) {
+		return processChunks(usernames, batchSize, new ChunkProcessor<String>() {
+			@Override
+			public BatchResult process(List<String> chunk) {
+				return deleteChunk(chunk, true);
+			}
+
+			@Override
+			public String name(String username) {
+				return username;
+			}
+		});
+	}
+
+	/**
+	 * Deletes the entry with given DN (relative to the base) and all entries
+	 * below it.
+	 * <p>
+	 * The whole subtree is deleted by the server in one operation if it
+	 * supports Tree Delete control ({@value #TREE_DELETE_CONTROL_OID}).
+	 * Otherwise entries are deleted one by one, deepest first: children of
+	 * every entry are read in pages of at most the page size entries and each
+	 * page is deleted like a batch of {@link #deleteAll(Collection)}, so only
+	 * a page per level of the tree is held in memory. Whether the control is
+	 * supported is found out by the first call and remembered.
+	 * <p>
+	 * Context source must allow request controls to be set on its contexts,
+	 * i.e. pooled contexts have to come from a MutablePoolingContextSource.
+	 * 
+	 * @throws NameNotFoundException
+	 *             if the entry does not exist
+	 */
+	public void deleteSubtree(String dn) {
+		DistinguishedName name = new DistinguishedName(dn);
+		if (!treeDelete(name, false)) {
+			long deleted = deleteChildren(name);
+			unbindEmpty(name);
+			logger.debug("Deleted {} entries of {} one by one", deleted + 1,
+					dn);
+		}
+	}
+
+	/**
+	 * Deletes all entries below {@value #USERS_BASE} keeping the container
+	 * itself. Uses Tree Delete control if possible, see
+	 * {@link #deleteSubtree(String)}: the container is deleted with its
+	 * subtree and then created again with the same attributes, so writes made
+	 * in between fail. Caches of decorators are not aware of the purge.
+	 */
+	public void purgeUsers() {
+		DistinguishedName name = new DistinguishedName(USERS_BASE);
+		if (!treeDelete(name, true)) {
+			long deleted = deleteChildren(name);
+			logger.debug("Deleted {} entries of {} one by one", deleted,
+					USERS_BASE);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Current entry is read and written over the same connection. Modified
+	 * attributes are computed by {@link DirContextAdapter} in update mode and
+	 * sent in a single modify operation.
+	 */
+	@Override
+	public UpsertOutcome upsert(final SpecialUser user) {
+		UpsertOutcome outcome;
+		Permit permit = acquire();
+		try {
+			outcome = (UpsertOutcome) ldapTemplate
+					.executeReadWrite(new ContextExecutor() {
+						@Override
+						public Object executeWithContext(DirContext ctx)
+								throws NamingException {
+							DistinguishedName dn = new DistinguishedName(userDn(user
+									.getUsername()));
+							try {
+								return update(ctx, dn, user);
+							} catch (javax.naming.NameNotFoundException e) {
+								// fall through and create it
+							}
+							DirContextAdapter userCtx = new DirContextAdapter(dn);
+							setAttributes(userCtx, user);
+							try {
+								ctx.bind(dn, null, userCtx.getAttributes());
+								return UpsertOutcome.CREATED;
+							} catch (javax.naming.NameAlreadyBoundException e) {
+								// created concurrently, update it once more
+								return update(ctx, dn, user);
+							}
+						}
+					});
+		} finally {
+			release(permit, 1);
+		}
+		if (outcome != UpsertOutcome.UNCHANGED) {
+			written(user.getUsername());
+		}
+		return outcome;
+	}
 
-		DirContextOperations userCtx = new DirContextAdapter(userDn);
+	private UpsertOutcome update(DirContext ctx, DistinguishedName dn,
+			SpecialUser user) throws NamingException {
+		Attributes current = ctx.getAttributes(dn, LDAP_PERSISTED_ATTRIBUTES);
+		DirContextAdapter userCtx = new DirContextAdapter(current, dn);
+		userCtx.setUpdateMode(true);
 		setAttributes(userCtx, user);
-		ldapTemplate.bind(userCtx);
+
+		ModificationItem[] mods = userCtx.getModificationItems();
+		if (mods.length == 0) {
+			return UpsertOutcome.UNCHANGED;
+		}
+		ctx.modifyAttributes(dn, mods);
+		return UpsertOutcome.UPDATED;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Only attributes of {@link SpecialUser} are requested and they are mapped
+	 * directly, without building a {@link DirContextAdapter}.
+	 */
 	@Override
 	public SpecialUser load(String username) {
-		String userDn = String.format(USERDN_FORMAT,
-				LdapEncoder.nameEncode(username));
+		Permit permit = acquire();
+		try {
+			return (SpecialUser) templateFor(username).lookup(
+					userDn(username), LDAP_USER_ATTRIBUTES, mapper);
+		} finally {
+			release(permit, 1);
+		}
+	}
+
+	@Override
+	public boolean exists(String username) {
+		SearchControls controls = new SearchControls(
+				SearchControls.OBJECT_SCOPE, 1, 0, LDAP_NO_ATTRIBUTES, false,
+				false);
+		CountNameClassPairCallbackHandler handler = new CountNameClassPairCallbackHandler();
+		Permit permit = acquire();
+		try {
+			templateFor(username).search(userDn(username),
+					LDAP_ANY_OBJECT_FILTER, controls, handler);
+		} catch (NameNotFoundException e) {
+			return false;
+		} finally {
+			release(permit, 1);
+		}
+		return handler.getNoOfRows() > 0;
+	}
+
+	@Override
+	public Map<String, SpecialUser> loadAll(Collection<String> usernames) {
+		Map<String, SpecialUser> users = new HashMap<String, SpecialUser>(
+				usernames.size() * 4 / 3 + 1);
+		for (List<String> chunk : chunks(usernames, filterSize)) {
+			// cn has case-insensitive matching rule so results are matched
+			// back to requested names case-insensitively too
+			Map<String, String> requested = new HashMap<String, String>(
+					chunk.size() * 4 / 3 + 1);
+			OrFilter filter = new OrFilter();
+			LdapTemplate template = readTemplate;
+			for (String username : chunk) {
+				requested.put(username.toLowerCase(Locale.ENGLISH), username);
+				filter.or(new EqualsFilter(LDAP_USERNAME, username));
+				template = template == ldapTemplate ? template
+						: templateFor(username);
+			}
+
+			SearchControls controls = new SearchControls(
+					SearchControls.ONELEVEL_SCOPE, chunk.size(), 0,
+					LDAP_USER_ATTRIBUTES, false, false);
+			List<?> found;
+			Permit permit = acquire();
+			try {
+				found = template.search(USERS_BASE, filter.encode(), controls,
+						mapper);
+			} finally {
+				release(permit, 1);
+			}
+			for (Object o : found) {
+				SpecialUser user = (SpecialUser) o;
+				String username = requested.get(user.getUsername().toLowerCase(
+						Locale.ENGLISH));
+				if (username != null) {
+					users.put(username, user);
+				}
+			}
+		}
+		return users;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Users are read with Paged Results control, so only one page of entries
+	 * is held in memory at a time and server size limit does not apply. All
+	 * pages are read over the same connection which is returned to the pool
+	 * when iteration is finished or the handler throws.
+	 * <p>
+	 * Context source must allow request controls to be set on its contexts,
+	 * i.e. pooled contexts have to come from a MutablePoolingContextSource.
+	 */
+	@Override
+	public long streamAll(final SpecialUserHandler handler) {
+		final int pageSize = this.pageSize;
+		Permit permit = acquire();
+		try {
+			return (Long) readTemplate.executeReadOnly(new ContextExecutor() {
+				@Override
+				public Object executeWithContext(DirContext ctx)
+						throws NamingException {
+					// paged results cookie is only valid on the same connection
+					LdapTemplate template = new LdapTemplate(
+							new SingleContextSource(ctx));
+					SearchControls controls = new SearchControls(
+							SearchControls.ONELEVEL_SCOPE, 0, 0,
+							LDAP_USER_ATTRIBUTES, false, false);
+					StreamingCallbackHandler callbackHandler = new StreamingCallbackHandler(
+							handler);
+
+					PagedResultsCookie cookie = null;
+					try {
+						do {
+							PagedResultsDirContextProcessor processor = new PagedResultsDirContextProcessor(
+									pageSize, cookie);
+							template.search(USERS_BASE, LDAP_USER_FILTER,
+									controls, callbackHandler, processor);
+							cookie = processor.getCookie();
+						} while (cookie != null && cookie.getCookie() != null);
+					} finally {
+						// pooled context keeps request controls - don't let the
+						// paging control leak into unrelated operations
+						if (ctx instanceof LdapContext) {
+							((LdapContext) ctx).setRequestControls(null);
+						}
+					}
+
+					return callbackHandler.count;
+				}
+			});
+		} finally {
+			// duration depends on the handler
+			release(permit, 0);
+		}
+	}
+
+	@Override
+	public List<SpecialUser> findBySpecial(String special) {
+		return findUsers(new EqualsFilter(LDAP_SPECIAL, special).encode());
+	}
+
+	@Override
+	public List<SpecialUser> findBySpecialPrefix(String prefix) {
+		Assert.hasLength(prefix, "Prefix must not be empty");
+		// encode the whole prefix so that '*' in it is not a wildcard
+		return findUsers("(" + LDAP_SPECIAL + "="
+				+ LdapEncoder.filterEncode(prefix) + "*)");
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<SpecialUser> findUsers(String filter) {
+		SearchControls controls = new SearchControls(
+				SearchControls.ONELEVEL_SCOPE, maxResults, 0,
+				LDAP_USER_ATTRIBUTES, false, false);
+		AttributesMapperCallbackHandler handler = new AttributesMapperCallbackHandler(
+				mapper);
+		Permit permit = acquire();
+		try {
+			readTemplate.search(USERS_BASE, filter, controls, handler);
+		} catch (SizeLimitExceededException e) {
+			// there are more matches than we asked for
+		} finally {
+			release(permit, 1);
+		}
+		return handler.getList();
+	}
+
+	private LdapTemplate templateFor(String username) {
+		ExpiringLruCache<String, Boolean> writes = recentWrites;
+		if (writes != null
+				&& writes.get(username.toLowerCase(Locale.ENGLISH)) != null) {
+			return ldapTemplate;
+		}
+		return readTemplate;
+	}
+
+	private void written(String username) {
+		ExpiringLruCache<String, Boolean> writes = recentWrites;
+		if (writes != null) {
+			writes.put(username.toLowerCase(Locale.ENGLISH), Boolean.TRUE);
+		}
+	}
+
+	private Permit acquire() {
+		AdaptiveConcurrencyLimiter limiter = concurrencyLimiter;
+		return limiter != null ? limiter.acquire() : null;
+	}
+
+	private static void release(Permit permit, int operations) {
+		if (permit != null) {
+			permit.release(operations);
+		}
+	}
+
+	/**
+	 * Binds all users of the chunk using a single connection.
+	 */
+	private BatchResult persistChunk(final List<SpecialUser> chunk) {
+		final List<String> succeeded = new ArrayList<String>(chunk.size());
+		final Map<String, RuntimeException> failed = new LinkedHashMap<String, RuntimeException>();
+
+		Permit permit = null;
+		try {
+			permit = acquire();
+			ldapTemplate.executeReadWrite(new ContextExecutor() {
+				@Override
+				public Object executeWithContext(DirContext ctx)
+						throws NamingException {
+					for (SpecialUser user : chunk) {
+						DirContextAdapter userCtx = new DirContextAdapter(
+								userDn(user.getUsername()));
+						setAttributes(userCtx, user);
+						try {
+							ctx.bind(userCtx.getDn(), null,
+									userCtx.getAttributes());
+							succeeded.add(user.getUsername());
+						} catch (NamingException e) {
+							failed.put(user.getUsername(),
+									LdapUtils.convertLdapException(e));
+						}
+					}
+					return null;
+				}
+			});
+		} catch (RuntimeException e) {
+			// Could not get a slot or a connection - whatever is left failed
+			failRemaining(usernames(chunk), succeeded, failed, e);
+		} finally {
+			release(permit, chunk.size());
+		}
+		for (String username : succeeded) {
+			written(username);
+		}
+		return new BatchResult(succeeded, failed);
+	}
+
+	/**
+	 * Deletes users of the chunk using a single connection.
+	 * 
+	 * @param users
+	 *            {@code true} if chunk holds usernames, {@code false} if it
+	 *            holds DNs
+	 */
+	private BatchResult deleteChunk(final List<String> chunk, final boolean users) {
+		final List<String> succeeded = new ArrayList<String>(chunk.size());
+		final Map<String, RuntimeException> failed = new LinkedHashMap<String, RuntimeException>();
+
+		Permit permit = null;
+		try {
+			permit = acquire();
+			ldapTemplate.executeReadWrite(new ContextExecutor() {
+				@Override
+				public Object executeWithContext(DirContext ctx)
+						throws NamingException {
+					for (String name : chunk) {
+						try {
+							ctx.unbind(users ? userDn(name) : name);
+							succeeded.add(name);
+						} catch (NamingException e) {
+							failed.put(name, LdapUtils.convertLdapException(e));
+						}
+					}
+					return null;
+				}
+			});
+		} catch (RuntimeException e) {
+			// Could not get a slot or a connection - whatever is left failed
+			failRemaining(chunk, succeeded, failed, e);
+		} finally {
+			release(permit, users ? chunk.size() : 0);
+		}
+		if (users) {
+			for (String username : succeeded) {
+				written(username);
+			}
+		}
+		return new BatchResult(succeeded, failed);
+	}
+
+	/**
+	 * Deletes the entry and its subtree with Tree Delete control.
+	 * 
+	 * @param recreate
+	 *            {@code true} to create the entry again, without children
+	 * @return {@code false} if server does not support the control
+	 */
+	private boolean treeDelete(final DistinguishedName dn,
+			final boolean recreate) {
+		if (Boolean.FALSE.equals(treeDeleteSupported)) {
+			return false;
+		}
+		Boolean deleted;
+		Permit permit = acquire();
+		try {
+			deleted = (Boolean) ldapTemplate
+					.executeReadWrite(new ContextExecutor() {
+						@Override
+						public Object executeWithContext(DirContext ctx)
+								throws NamingException {
+							if (!(ctx instanceof LdapContext)) {
+								return Boolean.FALSE;
+							}
+							LdapContext ldapCtx = (LdapContext) ctx;
+							Attributes attributes = recreate ? ctx
+									.getAttributes(dn) : null;
+							ldapCtx.setRequestControls(new Control[] { new BasicControl(
+									TREE_DELETE_CONTROL_OID, true, null) });
+							try {
+								ctx.unbind(dn);
+							} catch (OperationNotSupportedException e) {
+								// critical control is not supported
+								return Boolean.FALSE;
+							} catch (ContextNotEmptyException e) {
+								// control is ignored
+								return Boolean.FALSE;
+							} finally {
+								// pooled context keeps request controls
+								ldapCtx.setRequestControls(null);
+							}
+							if (recreate) {
+								ctx.bind(dn, null, attributes);
+							}
+							return Boolean.TRUE;
+						}
+					});
+		} finally {
+			release(permit, 0);
+		}
+		if (treeDeleteSupported == null) {
+			logger.info("Tree Delete control is {}supported",
+					deleted ? "" : "not ");
+		}
+		treeDeleteSupported = deleted;
+		return deleted;
+	}
+
+	/**
+	 * Deletes all entries below given one, page by page and deepest first.
+	 * 
+	 * @return number of deleted entries
+	 */
+	private long deleteChildren(DistinguishedName parent) {
+		SearchControls controls = new SearchControls(
+				SearchControls.ONELEVEL_SCOPE, pageSize, 0,
+				LDAP_NO_ATTRIBUTES, false, false);
+		long deleted = 0;
+		while (true) {
+			NameCollectingCallbackHandler handler = new NameCollectingCallbackHandler(
+					parent);
+			Permit permit = acquire();
+			try {
+				ldapTemplate.search(parent, LDAP_ANY_OBJECT_FILTER, controls,
+						handler);
+			} catch (SizeLimitExceededException e) {
+				// the rest is deleted on the next rounds
+			} finally {
+				release(permit, 0);
+			}
+			if (handler.names.isEmpty()) {
+				return deleted;
+			}
+			BatchResult result = processChunks(handler.names, batchSize,
+					new ChunkProcessor<String>() {
+						@Override
+						public BatchResult process(List<String> chunk) {
+							return deleteChunk(chunk, false);
+						}
+
+						@Override
+						public String name(String dn) {
+							return dn;
+						}
+					});
+			deleted += result.getSucceeded().size();
+			for (Map.Entry<String, RuntimeException> entry : result
+					.getFailed().entrySet()) {
+				if (!(entry.getValue() instanceof org.springframework.ldap.ContextNotEmptyException)) {
+					throw entry.getValue();
+				}
+				DistinguishedName child = new DistinguishedName(entry.getKey());
+				deleted += deleteChildren(child);
+				unbindEmpty(child);
+				deleted++;
+			}
+		}
+	}
+
+	/**
+	 * Deletes an entry whose children were deleted already.
+	 */
+	private void unbindEmpty(DistinguishedName dn) {
+		Permit permit = acquire();
+		try {
+			ldapTemplate.unbind(dn);
+		} finally {
+			release(permit, 0);
+		}
+	}
+
+	/**
+	 * Splits items into chunks of given size and processes them sequentially
+	 * or in parallel if there is a batch executor.
+	 */
+	private <T> BatchResult processChunks(Collection<T> items, int size,
+			final ChunkProcessor<T> processor) {
+		List<List<T>> chunks = chunks(items, size);
+		ExecutorService executor = batchExecutor;
+
+		if (executor == null || chunks.size() < 2) {
+			List<BatchResult> results = new ArrayList<BatchResult>(
+					chunks.size());
+			for (List<T> chunk : chunks) {
+				results.add(processor.process(chunk));
+			}
+			return BatchResult.combine(results);
+		}
+
+		List<Future<BatchResult>> futures = new ArrayList<Future<BatchResult>>(
+				chunks.size());
+		for (final List<T> chunk : chunks) {
+			futures.add(executor.submit(new Callable<BatchResult>() {
+				@Override
+				public BatchResult call() {
+					return processor.process(chunk);
+				}
+			}));
+		}
+		return BatchResult.combine(collect(futures, chunks, processor));
+	}
+
+	/**
+	 * Waits for all chunks. Waiting is not interruptible: a chunk that is
+	 * still running may write to the directory after an interrupt, so
+	 * reporting it as failed would be wrong. Interrupt status is restored
+	 * when all chunks are done.
+	 */
+	private static <T> List<BatchResult> collect(
+			List<Future<BatchResult>> futures, List<List<T>> chunks,
+			ChunkProcessor<T> processor) {
+		List<BatchResult> results = new ArrayList<BatchResult>(futures.size());
+		boolean interrupted = false;
+		for (int i = 0; i < futures.size(); i++) {
+			RuntimeException failure = null;
+			BatchResult result = null;
+			while (result == null && failure == null) {
+				try {
+					result = futures.get(i).get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e
+							.getCause() : new IllegalStateException(e.getCause());
+				}
+			}
+			if (result != null) {
+				results.add(result);
+				continue;
+			}
+			List<String> names = new ArrayList<String>(chunks.get(i).size());
+			for (T item : chunks.get(i)) {
+				names.add(processor.name(item));
+			}
+			Map<String, RuntimeException> failed = new LinkedHashMap<String, RuntimeException>();
+			failRemaining(names, Collections.<String> emptyList(), failed,
+					failure);
+			results.add(new BatchResult(Collections.<String> emptyList(),
+					failed));
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		return results;
+	}
+
+	private static void failRemaining(List<String> names,
+			List<String> succeeded, Map<String, RuntimeException> failed,
+			RuntimeException e) {
+		Set<String> done = new HashSet<String>(succeeded);
+		for (String name : names) {
+			if (!failed.containsKey(name) && !done.contains(name)) {
+				failed.put(name, e);
+			}
+		}
+	}
+
+	private static List<String> usernames(List<SpecialUser> users) {
+		List<String> usernames = new ArrayList<String>(users.size());
+		for (SpecialUser user : users) {
+			usernames.add(user.getUsername());
+		}
+		return usernames;
+	}
+
+	private static <T> List<List<T>> chunks(Collection<T> items, int size) {
+		List<List<T>> chunks = new ArrayList<List<T>>(
+				(items.size() + size - 1) / size);
+		List<T> chunk = null;
+		for (T item : items) {
+			if (chunk == null || chunk.size() == size) {
+				chunk = new ArrayList<T>(size);
+				chunks.add(chunk);
+			}
+			chunk.add(item);
+		}
+		return chunks;
+	}
 
-		return (SpecialUser) ldapTemplate.lookup(userDn, mapper);
+	// package private to make it testable
+	static String userDn(String username) {
+		String encoded = LdapEncoder.nameEncode(username);
+		return new StringBuilder(USERDN_PREFIX.length() + encoded.length()
+				+ USERDN_SUFFIX.length()).append(USERDN_PREFIX)
+				.append(encoded).append(USERDN_SUFFIX).toString();
 	}
 
 	private void setAttributes(DirContextOperations userCtx, SpecialUser user) {
@@ -65,6 +918,67 @@ public final class LdapSpecialUserService implements SpecialUserService {
 		userCtx.setAttributeValue(LDAP_SPECIAL, user.getSpecial());
 	}
 
+	/**
+	 * Processes one chunk of a batch.
+	 */
+	private interface ChunkProcessor<T> {
+		BatchResult process(List<T> chunk);
+
+		/**
+		 * @return name of the item in {@link BatchResult}
+		 */
+		String name(T item);
+	}
+
+	/**
+	 * Collects DNs (relative to the base) of entries found below the parent.
+	 */
+	private static final class NameCollectingCallbackHandler implements
+			NameClassPairCallbackHandler {
+
+		private final DistinguishedName parent;
+		final List<String> names = new ArrayList<String>();
+
+		NameCollectingCallbackHandler(DistinguishedName parent) {
+			this.parent = parent;
+		}
+
+		@Override
+		public void handleNameClassPair(NameClassPair nameClassPair) {
+			// search result names are relative to the search base
+			DistinguishedName name = (DistinguishedName) parent.clone();
+			name.append(new DistinguishedName(nameClassPair.getName()));
+			names.add(name.toString());
+		}
+	}
+
+	/**
+	 * Passes mapped entries to the handler instead of collecting them.
+	 */
+	private static final class StreamingCallbackHandler extends
+			AttributesMapperCallbackHandler {
+
+		private final SpecialUserHandler handler;
+		long count;
+
+		StreamingCallbackHandler(SpecialUserHandler handler) {
+			super(mapper);
+			this.handler = handler;
+		}
+
+		@Override
+		public void handleNameClassPair(NameClassPair nameClassPair) {
+			handler.handle((SpecialUser) getObjectFromNameClassPair(nameClassPair));
+			count++;
+		}
+	}
+
+	/**
+	 * Maps a whole entry read through {@link DirContextAdapter}, e.g. by
+	 * {@link LdapTemplate#lookup(String, ContextMapper)}. The service reads
+	 * only attributes of {@link SpecialUser} and maps them with
+	 * {@link SpecialUserAttributesMapper} instead.
+	 */
 	// package private to make it testable
 	static final class SpecialUserContextMapper extends AbstractContextMapper {
 
@@ -74,4 +988,20 @@ public final class LdapSpecialUserService implements SpecialUserService {
 					ctx.getStringAttribute(LDAP_SPECIAL));
 		}
 	}
+
+	// package private to make it testable
+	static final class SpecialUserAttributesMapper implements AttributesMapper {
+
+		@Override
+		public Object mapFromAttributes(Attributes attributes)
+				throws NamingException {
+			return new SpecialUser(stringValue(attributes.get(LDAP_USERNAME)),
+					stringValue(attributes.get(LDAP_SPECIAL)));
+		}
+
+		private static String stringValue(Attribute attribute)
+				throws NamingException {
+			return attribute != null ? (String) attribute.get() : null;
+		}
+	}
 }
@@ -0,0 +1,520 @@
+package com.ash2k.example.ldap_it.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.ldap.NameAlreadyBoundException;
+import org.springframework.util.Assert;
+
+import com.ash2k.example.ldap_it.api.BatchResult;
+import com.ash2k.example.ldap_it.api.SpecialUserService;
+import com.ash2k.example.ldap_it.api.UpsertOutcome;
+import com.ash2k.example.ldap_it.domain.SpecialUser;
+
+/**
+ * Write-behind decorator for {@link SpecialUserService}.
+ * <p>
+ * {@link #persist(SpecialUser)} only puts the user into a bounded queue and
+ * returns. Repeated writes of the same (normalized) username that are still
+ * queued are collapsed so only the latest one is sent. Queued users are sent
+ * with {@link SpecialUserService#persistAll(Collection)} by a small pool of
+ * workers: when a full batch is queued and in any case every flush interval.
+ * Two writes of the same user are never sent concurrently.
+ * <p>
+ * Queued writes have upsert semantics: a user that already exists in the
+ * directory when the batch is sent is written again with
+ * {@link SpecialUserService#upsert(SpecialUser)}, so the latest accepted
+ * state always wins, even when an earlier write of the same user was flushed
+ * already.
+ * <p>
+ * Writes that fail in the delegate are reported to the
+ * {@link WriteFailureListener}. Users that are written but not yet flushed are
+ * returned by {@link #load(String)} and {@link #exists(String)} of this
+ * service. Other writes and deletes are synchronous: they drop queued writes
+ * of the same users and wait for their writes in flight.
+ * 
+ * @author Mikhail Mazursky
+ */
+public class WriteBehindSpecialUserService extends ForwardingSpecialUserService {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(WriteBehindSpecialUserService.class);
+
+	public static final int DEFAULT_BATCH_SIZE = 100;
+	public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 100;
+
+	private final int capacity;
+	private final int batchSize;
+	private final ExecutorService workers;
+	private final ScheduledExecutorService timer;
+
+	private final Object lock = new Object();
+	// guarded by lock
+	private final LinkedHashMap<String, Pending> queued = new LinkedHashMap<String, Pending>();
+	private final Map<String, Pending> inFlight = new HashMap<String, Pending>();
+	private long lastSeq;
+	private boolean shutdown;
+	private long writeCount;
+	private long coalescedCount;
+	private long flushedCount;
+	private long failedCount;
+	private long batchCount;
+
+	private volatile WriteFailureListener failureListener = new LoggingFailureListener();
+
+	public WriteBehindSpecialUserService(SpecialUserService delegate,
+			int capacity, int threads) {
+		this(delegate, capacity, threads, DEFAULT_BATCH_SIZE,
+				DEFAULT_FLUSH_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * @param capacity
+	 *            maximum number of users that are written but not flushed yet
+	 * @param threads
+	 *            maximum number of batches sent concurrently; should not
+	 *            exceed size of the connection pool
+	 * @param batchSize
+	 *            number of queued users that triggers a flush and maximum
+	 *            size of one batch
+	 * @param flushIntervalMillis
+	 *            maximum time a user waits in the queue
+	 */
+	public WriteBehindSpecialUserService(SpecialUserService delegate,
+			int capacity, int threads, int batchSize, long flushIntervalMillis) {
+		super(delegate);
+		Assert.isTrue(capacity > 0, "Capacity must be positive");
+		Assert.isTrue(threads > 0, "Number of threads must be positive");
+		Assert.isTrue(batchSize > 0, "Batch size must be positive");
+		Assert.isTrue(flushIntervalMillis > 0,
+				"Flush interval must be positive");
+		this.capacity = capacity;
+		this.batchSize = batchSize;
+		workers = Executors.newFixedThreadPool(threads, new DaemonThreadFactory(
+				"special-user-write-behind-"));
+		timer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(
+				"special-user-write-behind-timer-"));
+		timer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (lock) {
+					dispatch(true);
+				}
+			}
+		}, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public void setFailureListener(WriteFailureListener failureListener) {
+		Assert.notNull(failureListener, "Listener must not be null");
+		this.failureListener = failureListener;
+	}
+
+	/**
+	 * Queues the user to be persisted later. The user is created or, if it
+	 * exists by then, updated.
+	 * 
+	 * @throws RejectedExecutionException
+	 *             if the queue is full or the service is shut down
+	 */
+	@Override
+	public void persist(SpecialUser user) {
+		String key = CachingSpecialUserService.normalize(user.getUsername());
+		synchronized (lock) {
+			if (shutdown) {
+				throw new RejectedExecutionException("Service is shut down");
+			}
+			Pending pending = queued.get(key);
+			if (pending != null) {
+				pending.user = user;
+				writeCount++;
+				coalescedCount++;
+				return;
+			}
+			if (queued.size() + inFlight.size() >= capacity) {
+				throw new RejectedExecutionException("Queue is full ("
+						+ (queued.size() + inFlight.size())
+						+ " users waiting)");
+			}
+			queued.put(key, new Pending(key, user, ++lastSeq));
+			writeCount++;
+			if (queued.size() >= batchSize) {
+				dispatch(false);
+			}
+		}
+	}
+
+	@Override
+	public BatchResult persistAll(Collection<SpecialUser> users) {
+		List<String> usernames = new ArrayList<String>(users.size());
+		for (SpecialUser user : users) {
+			usernames.add(user.getUsername());
+		}
+		superseded(usernames);
+		return delegate.persistAll(users);
+	}
+
+	@Override
+	public UpsertOutcome upsert(SpecialUser user) {
+		superseded(Collections.singleton(user.getUsername()));
+		return delegate.upsert(user);
+	}
+
+	@Override
+	public void delete(String username) {
+		superseded(Collections.singleton(username));
+		delegate.delete(username);
+	}
+
+	@Override
+	public BatchResult deleteAll(Collection<String> usernames) {
+		superseded(usernames);
+		return delegate.deleteAll(usernames);
+	}
+
+	@Override
+	public SpecialUser load(String username) {
+		SpecialUser user = unflushed(username);
+		return user != null ? user : delegate.load(username);
+	}
+
+	@Override
+	public Map<String, SpecialUser> loadAll(Collection<String> usernames) {
+		Map<String, SpecialUser> users = new HashMap<String, SpecialUser>(
+				usernames.size() * 4 / 3 + 1);
+		List<String> missing = new ArrayList<String>();
+		for (String username : usernames) {
+			SpecialUser user = unflushed(username);
+			if (user != null) {
+				users.put(username, user);
+			} else {
+				missing.add(username);
+			}
+		}
+		if (!missing.isEmpty()) {
+			users.putAll(delegate.loadAll(missing));
+		}
+		return users;
+	}
+
+	@Override
+	public boolean exists(String username) {
+		return unflushed(username) != null || delegate.exists(username);
+	}
+
+	/**
+	 * Sends all queued users and waits until they and writes that are in
+	 * flight are done. Writes made after this call started are not waited
+	 * for.
+	 */
+	public void flush() throws InterruptedException {
+		synchronized (lock) {
+			long target = lastSeq;
+			while (true) {
+				dispatch(true);
+				if (oldestUnflushedSeq() > target) {
+					return;
+				}
+				lock.wait();
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting writes, flushes queued ones and stops workers.
+	 */
+	@PreDestroy
+	public void shutdown() throws InterruptedException {
+		synchronized (lock) {
+			shutdown = true;
+		}
+		timer.shutdownNow();
+		flush();
+		workers.shutdown();
+		if (!workers.awaitTermination(30, TimeUnit.SECONDS)) {
+			logger.warn("Write-behind workers did not stop in time");
+		}
+	}
+
+	/**
+	 * @return number of users written but not flushed yet
+	 */
+	public int getPendingCount() {
+		synchronized (lock) {
+			return queued.size() + inFlight.size();
+		}
+	}
+
+	/**
+	 * @return number of {@link #persist(SpecialUser)} calls accepted
+	 */
+	public long getWriteCount() {
+		synchronized (lock) {
+			return writeCount;
+		}
+	}
+
+	/**
+	 * @return number of writes replaced by a later write of the same user
+	 *         before being sent
+	 */
+	public long getCoalescedCount() {
+		synchronized (lock) {
+			return coalescedCount;
+		}
+	}
+
+	/**
+	 * @return number of users successfully sent to the delegate
+	 */
+	public long getFlushedCount() {
+		synchronized (lock) {
+			return flushedCount;
+		}
+	}
+
+	/**
+	 * @return number of users the delegate failed to persist
+	 */
+	public long getFailedCount() {
+		synchronized (lock) {
+			return failedCount;
+		}
+	}
+
+	/**
+	 * @return number of batches sent to the delegate
+	 */
+	public long getBatchCount() {
+		synchronized (lock) {
+			return batchCount;
+		}
+	}
+
+	private SpecialUser unflushed(String username) {
+		String key = CachingSpecialUserService.normalize(username);
+		synchronized (lock) {
+			Pending pending = queued.get(key);
+			if (pending == null) {
+				pending = inFlight.get(key);
+			}
+			return pending == null ? null : pending.user;
+		}
+	}
+
+	/**
+	 * Drops queued writes of the users and waits for their writes in flight,
+	 * so that a synchronous operation is applied after them.
+	 */
+	private void superseded(Collection<String> usernames) {
+		List<String> keys = new ArrayList<String>(usernames.size());
+		for (String username : usernames) {
+			keys.add(CachingSpecialUserService.normalize(username));
+		}
+		boolean interrupted = false;
+		synchronized (lock) {
+			for (String key : keys) {
+				if (queued.remove(key) != null) {
+					coalescedCount++;
+				}
+			}
+			lock.notifyAll();
+			for (String key : keys) {
+				while (inFlight.containsKey(key)) {
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Hands queued users over to workers in batches. Users whose previous
+	 * write is still in flight stay queued.
+	 * 
+	 * @param all
+	 *            {@code true} to send a partial batch too
+	 */
+	private void dispatch(boolean all) {
+		while (true) {
+			List<Pending> batch = new ArrayList<Pending>(Math.min(batchSize,
+					queued.size()));
+			for (Pending pending : queued.values()) {
+				if (!inFlight.containsKey(pending.key)) {
+					batch.add(pending);
+					if (batch.size() == batchSize) {
+						break;
+					}
+				}
+			}
+			if (batch.isEmpty() || (!all && batch.size() < batchSize)) {
+				return;
+			}
+			for (Pending pending : batch) {
+				queued.remove(pending.key);
+				inFlight.put(pending.key, pending);
+			}
+			batchCount++;
+			workers.execute(new Flush(batch));
+		}
+	}
+
+	private long oldestUnflushedSeq() {
+		long oldest = Long.MAX_VALUE;
+		for (Pending pending : queued.values()) {
+			oldest = Math.min(oldest, pending.seq);
+		}
+		for (Pending pending : inFlight.values()) {
+			oldest = Math.min(oldest, pending.seq);
+		}
+		return oldest;
+	}
+
+	private void notifyFailure(SpecialUser user, RuntimeException cause) {
+		try {
+			failureListener.onWriteFailure(user, cause);
+		} catch (RuntimeException e) {
+			logger.error("Failure listener failed", e);
+		}
+	}
+
+	/**
+	 * Notified of users that were accepted by
+	 * {@link WriteBehindSpecialUserService#persist(SpecialUser)} but could not
+	 * be persisted. It is invoked on a worker thread so it should not block.
+	 */
+	public interface WriteFailureListener {
+		void onWriteFailure(SpecialUser user, RuntimeException cause);
+	}
+
+	/**
+	 * Write of the latest state of one user.
+	 */
+	private static final class Pending {
+		final String key;
+		// seq of the oldest write this one stands for
+		final long seq;
+		SpecialUser user;
+
+		Pending(String key, SpecialUser user, long seq) {
+			this.key = key;
+			this.user = user;
+			this.seq = seq;
+		}
+	}
+
+	private final class Flush implements Runnable {
+		private final List<Pending> batch;
+
+		Flush(List<Pending> batch) {
+			this.batch = batch;
+		}
+
+		@Override
+		public void run() {
+			List<SpecialUser> users = new ArrayList<SpecialUser>(batch.size());
+			for (Pending pending : batch) {
+				users.add(pending.user);
+			}
+			// stays null if an Error is thrown, whole batch counts as failed
+			Map<String, RuntimeException> failed = null;
+			try {
+				try {
+					failed = new HashMap<String, RuntimeException>(delegate
+							.persistAll(users).getFailed());
+				} catch (RuntimeException e) {
+					failed = new HashMap<String, RuntimeException>();
+					for (SpecialUser user : users) {
+						failed.put(user.getUsername(), e);
+					}
+				}
+				upsertExisting(users, failed);
+				// listener is done before flush() returns
+				if (!failed.isEmpty()) {
+					for (SpecialUser user : users) {
+						RuntimeException cause = failed.get(user.getUsername());
+						if (cause != null) {
+							notifyFailure(user, cause);
+						}
+					}
+				}
+			} finally {
+				// always release the users, flush() and shutdown() wait for it
+				int failures = failed == null ? users.size() : failed.size();
+				synchronized (lock) {
+					for (Pending pending : batch) {
+						inFlight.remove(pending.key);
+					}
+					flushedCount += users.size() - failures;
+					failedCount += failures;
+					lock.notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Batch only creates users; the ones that exist already are updated
+		 * one by one. They are removed from {@code failed} unless the update
+		 * fails too.
+		 */
+		private void upsertExisting(List<SpecialUser> users,
+				Map<String, RuntimeException> failed) {
+			for (SpecialUser user : users) {
+				RuntimeException cause = failed.get(user.getUsername());
+				if (cause instanceof NameAlreadyBoundException) {
+					try {
+						delegate.upsert(user);
+						failed.remove(user.getUsername());
+					} catch (RuntimeException e) {
+						failed.put(user.getUsername(), e);
+					}
+				}
+			}
+		}
+	}
+
+	private static final class LoggingFailureListener implements
+			WriteFailureListener {
+		@Override
+		public void onWriteFailure(SpecialUser user, RuntimeException cause) {
+			logger.error("Failed to persist user " + user.getUsername(), cause);
+		}
+	}
+
+	private static final class DaemonThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger threadNumber = new AtomicInteger();
+
+		DaemonThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + threadNumber.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
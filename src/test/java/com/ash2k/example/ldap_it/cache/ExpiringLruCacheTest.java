@@ -0,0 +1,80 @@
+package com.ash2k.example.ldap_it.cache;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test for {@link ExpiringLruCache}.
+ * 
+ * @author Mikhail Mazursky
+ */
+public class ExpiringLruCacheTest {
+
+	long now;
+	ExpiringLruCache<String, String> cache;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		now = 0;
+		cache = new ExpiringLruCache<String, String>(2, 10, TimeUnit.SECONDS,
+				1) {
+			@Override
+			protected long nanoTime() {
+				return now;
+			}
+		};
+	}
+
+	@Test
+	public void getShouldCountHitsAndMisses() {
+		// arrange
+		cache.put("a", "1");
+
+		// act
+		String hit = cache.get("a");
+		String miss = cache.get("b");
+
+		// assert
+		assertEquals(hit, "1");
+		assertNull(miss);
+		assertEquals(cache.getHitCount(), 1);
+		assertEquals(cache.getMissCount(), 1);
+	}
+
+	@Test
+	public void putShouldEvictLeastRecentlyUsedEntry() {
+		// arrange
+		cache.put("a", "1");
+		cache.put("b", "2");
+		cache.get("a");
+
+		// act
+		cache.put("c", "3");
+
+		// assert
+		assertEquals(cache.size(), 2);
+		assertNull(cache.get("b"));
+		assertEquals(cache.get("a"), "1");
+		assertEquals(cache.getEvictionCount(), 1);
+	}
+
+	@Test
+	public void getShouldNotReturnExpiredEntry() {
+		// arrange
+		cache.put("a", "1");
+		now += TimeUnit.SECONDS.toNanos(10);
+
+		// act
+		String value = cache.get("a");
+
+		// assert
+		assertNull(value);
+		assertEquals(cache.size(), 0);
+		assertEquals(cache.getExpirationCount(), 1);
+	}
+}
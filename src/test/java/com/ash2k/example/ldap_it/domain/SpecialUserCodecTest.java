@@ -0,0 +1,167 @@
+package com.ash2k.example.ldap_it.domain;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test for {@link SpecialUserCodec} and serialized form of
+ * {@link SpecialUser}.
+ * 
+ * @author Mikhail Mazursky
+ */
+public class SpecialUserCodecTest {
+
+	@DataProvider
+	public Object[][] users() {
+		return new Object[][] { { new SpecialUser("user1", "user1_special") },
+				{ new SpecialUser("\u043F\u043E\u043B\u044C\u0437\u043E",
+						"sp\u00E9cial \u20AC") },
+				{ new SpecialUser("user\uD83D\uDE00", "") },
+				{ new SpecialUser(null, null) },
+				{ new SpecialUser("user1", repeat('x', 300)) } };
+	}
+
+	@Test(dataProvider = "users")
+	public void userShouldSurviveRoundTrip(SpecialUser user) {
+		// arrange
+		ByteBuffer buffer = ByteBuffer.allocate(1024);
+		buffer.position(3);
+
+		// act
+		SpecialUserCodec.encode(user, buffer);
+		int written = buffer.position() - 3;
+		buffer.flip().position(3);
+		SpecialUser decoded = SpecialUserCodec.decode(buffer);
+
+		// assert
+		assertEquals(decoded, user);
+		assertEquals(written, SpecialUserCodec.encodedSize(user));
+		assertFalse(buffer.hasRemaining());
+	}
+
+	@Test
+	public void batchShouldSurviveRoundTripThroughDirectBuffer() {
+		// arrange
+		List<SpecialUser> users = Arrays.asList(new SpecialUser("user1",
+				"user1_special"), new SpecialUser("\u00C4rger", null));
+		ByteBuffer buffer = ByteBuffer.allocateDirect(SpecialUserCodec
+				.encodedSize(users));
+
+		// act
+		SpecialUserCodec.encodeAll(users, buffer);
+		buffer.flip();
+		List<SpecialUser> decoded = SpecialUserCodec.decodeAll(buffer);
+
+		// assert
+		assertEquals(decoded, users);
+		assertFalse(buffer.hasRemaining());
+	}
+
+	@Test
+	public void encodingShouldMatchStringUtf8() throws Exception {
+		// arrange
+		String special = "a\u00E9\u20AC\uD83D\uDE00\uD800b";
+
+		// act
+		byte[] bytes = SpecialUserCodec.toBytes(new SpecialUser(null, special));
+
+		// assert
+		byte[] utf8 = special.getBytes("UTF-8");
+		assertEquals(Arrays.copyOfRange(bytes, 3, bytes.length), utf8);
+		assertEquals(bytes[2], utf8.length + 1);
+	}
+
+	@Test
+	public void unknownVersionShouldBeRejected() {
+		// arrange
+		byte[] bytes = SpecialUserCodec.toBytes(new SpecialUser("u", "s"));
+		bytes[0] = SpecialUserCodec.VERSION + 1;
+
+		// act
+		try {
+			SpecialUserCodec.fromBytes(bytes);
+			fail("Exception expected");
+		} catch (IllegalArgumentException e) {
+			// assert
+			assertEquals(e.getMessage(), "Unsupported version "
+					+ (SpecialUserCodec.VERSION + 1));
+		}
+	}
+
+	@Test
+	public void truncatedDataShouldBeRejected() {
+		// arrange
+		byte[] bytes = SpecialUserCodec.toBytes(new SpecialUser("user1",
+				"user1_special"));
+
+		// act
+		try {
+			SpecialUserCodec.fromBytes(Arrays.copyOf(bytes, bytes.length - 1));
+			fail("Exception expected");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test(dataProvider = "users")
+	public void userShouldSurviveJavaSerialization(SpecialUser user)
+			throws Exception {
+		// arrange
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+
+		// act
+		out.writeObject(user);
+		out.close();
+		Object read = new ObjectInputStream(new ByteArrayInputStream(
+				bytes.toByteArray())).readObject();
+
+		// assert
+		assertEquals(read, user);
+	}
+
+	@Test
+	public void userShouldBeReadFromDefaultSerializedForm() throws Exception {
+		// arrange
+		// written by SpecialUser without SerializedForm
+		byte[] bytes = hex("aced00057372002c636f6d2e617368326b2e6578616d706c"
+				+ "652e6c6461705f69742e646f6d61696e2e5370656369616c55736572"
+				+ "d7d49f2e1e6a11570200024c00077370656369616c7400124c6a6176"
+				+ "612f6c616e672f537472696e673b4c0008757365726e616d6571007e"
+				+ "0001787074000d75736572315f7370656369616c7400057573657231");
+
+		// act
+		Object read = new ObjectInputStream(new ByteArrayInputStream(bytes))
+				.readObject();
+
+		// assert
+		assertEquals(read, new SpecialUser("user1", "user1_special"));
+	}
+
+	private static byte[] hex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(
+					hex.substring(i * 2, i * 2 + 2), 16);
+		}
+		return bytes;
+	}
+
+	private static String repeat(char c, int times) {
+		char[] chars = new char[times];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+}
@@ -0,0 +1,79 @@
+package com.ash2k.example.ldap_it.metrics;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test for {@link LatencyHistogram}.
+ * 
+ * @author Mikhail Mazursky
+ */
+public class LatencyHistogramTest {
+
+	LatencyHistogram histogram;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		histogram = new LatencyHistogram();
+	}
+
+	@Test
+	public void getPercentileShouldStayWithinRelativeError() {
+		// arrange
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+		}
+
+		// act
+		double p50 = histogram.getPercentile(50, TimeUnit.MICROSECONDS);
+		double p99 = histogram.getPercentile(99, TimeUnit.MICROSECONDS);
+		double max = histogram.getPercentile(100, TimeUnit.MICROSECONDS);
+
+		// assert
+		assertEquals(histogram.getCount(), 1000);
+		assertTrue(p50 >= 500 && p50 <= 500 * 1.125, "p50 = " + p50);
+		assertTrue(p99 >= 990 && p99 <= 990 * 1.125, "p99 = " + p99);
+		assertEquals(max, 1000.0);
+		assertEquals(histogram.getMean(TimeUnit.MICROSECONDS), 500.5);
+	}
+
+	@Test
+	public void getPercentileShouldReturnZeroWhenEmpty() {
+		// act
+		double p99 = histogram.getPercentile(99, TimeUnit.MILLISECONDS);
+
+		// assert
+		assertEquals(p99, 0.0);
+	}
+
+	@Test
+	public void bucketsShouldCoverWholeRange() {
+		// act
+		int last = LatencyHistogram.bucketOf(Long.MAX_VALUE);
+
+		// assert
+		assertEquals(last, LatencyHistogram.BUCKETS - 1);
+		assertEquals(LatencyHistogram.upperBoundOf(last), Long.MAX_VALUE);
+		assertEquals(LatencyHistogram.bucketOf(7), 7);
+		assertEquals(LatencyHistogram.upperBoundOf(LatencyHistogram
+				.bucketOf(8)), 8);
+	}
+
+	@Test
+	public void resetShouldForgetValues() {
+		// arrange
+		histogram.record(100);
+
+		// act
+		histogram.reset();
+
+		// assert
+		assertEquals(histogram.getCount(), 0);
+		assertEquals(histogram.getMax(TimeUnit.NANOSECONDS), 0);
+	}
+}
@@ -0,0 +1,121 @@
+package com.ash2k.example.ldap_it.pool;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.ash2k.example.ldap_it.pool.AdaptiveConcurrencyLimiter.Permit;
+
+/**
+ * Unit test for {@link AdaptiveConcurrencyLimiter}.
+ * 
+ * @author Mikhail Mazursky
+ */
+public class AdaptiveConcurrencyLimiterTest {
+	static final long THRESHOLD_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	long now;
+	AdaptiveConcurrencyLimiter limiter;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		now = 0;
+		limiter = limiter(2, 1, 4);
+	}
+
+	@Test
+	public void acquireShouldBeRejectedWhenLimitIsReached() {
+		// arrange
+		Permit permit = limiter.acquire();
+		limiter.acquire();
+
+		// act
+		try {
+			limiter.acquire();
+			fail("Exception expected");
+		} catch (RejectedExecutionException e) {
+			// assert
+			assertEquals(limiter.getRejectedCount(), 1);
+			assertEquals(limiter.getInFlight(), 2);
+		}
+		permit.release();
+		permit.release();
+		limiter.acquire();
+		assertEquals(limiter.getAcquiredCount(), 3);
+	}
+
+	@Test
+	public void slowOperationsShouldBackOffOncePerRoundTrip() {
+		// arrange
+		limiter = limiter(10, 1, 10);
+		Permit first = limiter.acquire();
+		Permit second = limiter.acquire();
+		now += THRESHOLD_NANOS + 1;
+
+		// act
+		first.release();
+		second.release();
+		Permit third = limiter.acquire();
+		now += THRESHOLD_NANOS + 1;
+		third.release();
+
+		// assert
+		assertEquals(limiter.getLimit(), 8);
+		assertEquals(limiter.getBackoffCount(), 2);
+	}
+
+	@Test
+	public void limitShouldGrowOnlyWhileItIsUsed() {
+		// arrange
+		int rounds = 3;
+
+		// act
+		for (int i = 0; i < rounds; i++) {
+			Permit first = limiter.acquire();
+			Permit second = limiter.acquire();
+			first.release();
+			second.release();
+		}
+		int grown = limiter.getLimit();
+		for (int i = 0; i < 10; i++) {
+			limiter.acquire().release();
+		}
+
+		// assert
+		assertEquals(grown, 3);
+		assertEquals(limiter.getLimit(), 3);
+	}
+
+	@Test
+	public void latencyShouldBeMeasuredPerOperation() {
+		// arrange
+		Permit batch = limiter.acquire();
+		Permit unsampled = limiter.acquire();
+		now += 5 * THRESHOLD_NANOS;
+
+		// act
+		batch.release(10);
+		unsampled.release(0);
+
+		// assert
+		assertEquals(limiter.getBackoffCount(), 0);
+		assertEquals(limiter.getLimit(), 2);
+		assertEquals(limiter.getInFlight(), 0);
+	}
+
+	private AdaptiveConcurrencyLimiter limiter(int initialLimit, int minLimit,
+			int maxLimit) {
+		return new AdaptiveConcurrencyLimiter(initialLimit, minLimit,
+				maxLimit, THRESHOLD_NANOS, TimeUnit.NANOSECONDS) {
+			@Override
+			protected long nanoTime() {
+				return now;
+			}
+		};
+	}
+}
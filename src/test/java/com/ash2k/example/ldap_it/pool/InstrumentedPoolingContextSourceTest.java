@@ -0,0 +1,90 @@
+package com.ash2k.example.ldap_it.pool;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+import javax.naming.directory.DirContext;
+import javax.naming.ldap.LdapContext;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.ldap.pool.DirContextType;
+import org.springframework.ldap.pool.validation.DirContextValidator;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Unit test for {@link InstrumentedPoolingContextSource} and
+ * {@link PoolMetrics}.
+ * 
+ * @author Mikhail Mazursky
+ */
+public class InstrumentedPoolingContextSourceTest {
+
+	@Mock
+	ContextSource contextSource;
+	@Mock
+	LdapContext ldapContext;
+	@Mock
+	DirContextValidator validator;
+
+	InstrumentedPoolingContextSource pool;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		MockitoAnnotations.initMocks(this);
+		when(contextSource.getReadOnlyContext()).thenReturn(ldapContext);
+		when(contextSource.getReadWriteContext()).thenReturn(ldapContext);
+		pool = new InstrumentedPoolingContextSource();
+		pool.setContextSource(contextSource);
+		pool.setDirContextValidator(validator);
+	}
+
+	@Test
+	public void getContextShouldRecordBorrowsAndPoolState() throws Exception {
+		// act
+		DirContext ctx = pool.getReadOnlyContext();
+		int active = pool.getMetrics().getNumActive();
+		ctx.close();
+
+		// assert
+		PoolMetrics metrics = pool.getMetrics();
+		assertEquals(active, 1);
+		assertEquals(metrics.getNumActive(), 0);
+		assertEquals(metrics.getNumIdle(), 1);
+		assertEquals(metrics.getBorrowCount(), 1);
+		assertEquals(metrics.getCreatedCount(), 1);
+		assertEquals(metrics.getBorrowFailureCount(), 0);
+	}
+
+	@Test
+	public void getContextShouldCountValidationFailuresAndEvictions()
+			throws Exception {
+		// arrange
+		pool.setTestOnBorrow(true);
+		when(
+				validator.validateDirContext(any(DirContextType.class),
+						any(DirContext.class))).thenReturn(false);
+
+		// act
+		try {
+			pool.getReadWriteContext();
+			fail("Borrow of invalid context should fail");
+		} catch (DataAccessResourceFailureException e) {
+			// expected
+		}
+
+		// assert
+		PoolMetrics metrics = pool.getMetrics();
+		assertEquals(metrics.getValidationFailureCount(), 1);
+		assertEquals(metrics.getEvictionCount(), 1);
+		assertEquals(metrics.getBorrowFailureCount(), 1);
+		assertEquals(metrics.getBorrowCount(), 0);
+		verify(ldapContext).close();
+	}
+}
@@ -0,0 +1,243 @@
+package com.ash2k.example.ldap_it.pool;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.directory.DirContext;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.ldap.AuthenticationException;
+import org.springframework.ldap.CommunicationException;
+import org.springframework.ldap.core.ContextSource;
+import org.springframework.ldap.pool.DirContextType;
+import org.springframework.ldap.pool.validation.DirContextValidator;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.ash2k.example.ldap_it.pool.MultiServerContextSource.Server;
+import com.ash2k.example.ldap_it.pool.MultiServerContextSource.ServerStatus;
+
+/**
+ * Unit test for {@link MultiServerContextSource}.
+ * 
+ * @author Mikhail Mazursky
+ */
+public class MultiServerContextSourceTest {
+
+	static final long INITIAL_BACKOFF_MILLIS = 100;
+
+	long now;
+	FakeServer slow, fast;
+	DirContextValidator validator;
+	MultiServerContextSource cs;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		now = 0;
+		slow = new FakeServer("slow", 20);
+		fast = new FakeServer("fast", 5);
+		validator = mock(DirContextValidator.class);
+		when(
+				validator.validateDirContext(any(DirContextType.class),
+						any(DirContext.class))).thenReturn(true);
+		cs = new MultiServerContextSource(Arrays.asList(slow.server,
+				fast.server)) {
+			@Override
+			protected long nanoTime() {
+				return now;
+			}
+		};
+		cs.setDirContextValidator(validator);
+		cs.setInitialBackoffMillis(INITIAL_BACKOFF_MILLIS);
+		cs.setMaxBackoffMillis(4 * INITIAL_BACKOFF_MILLIS);
+	}
+
+	@Test
+	public void shouldRouteToServerWithLowestLatency() {
+		// arrange
+		cs.checkHealth();
+
+		// act
+		DirContext ctx = cs.getReadOnlyContext();
+
+		// assert
+		assertSame(ctx, fast.pooledContext);
+		assertEquals(cs.getServerStatuses().get(0).getLatencyMillis(), 20.0);
+		assertEquals(cs.getServerStatuses().get(1).getLatencyMillis(), 5.0);
+	}
+
+	@Test
+	public void shouldFailOverAndEjectServerThatCanNotConnect() {
+		// arrange
+		cs.checkHealth();
+		when(fast.pool.getReadWriteContext()).thenThrow(
+				new DataAccessResourceFailureException("Failed to borrow",
+						new CommunicationException(
+								new javax.naming.CommunicationException())));
+
+		// act
+		DirContext first = cs.getReadWriteContext();
+		DirContext second = cs.getReadWriteContext();
+
+		// assert
+		assertSame(first, slow.pooledContext);
+		assertSame(second, slow.pooledContext);
+		ServerStatus status = cs.getServerStatuses().get(1);
+		assertFalse(status.isAvailable());
+		assertEquals(status.getFailureCount(), 1);
+	}
+
+	@Test
+	public void ejectedServerShouldBeProbedAfterBackoffOnly() {
+		// arrange
+		fast.down = true;
+		cs.checkHealth();
+		fast.down = false;
+
+		// act
+		now += TimeUnit.MILLISECONDS.toNanos(INITIAL_BACKOFF_MILLIS - 1);
+		cs.checkHealth();
+		boolean availableBeforeBackoff = cs.getServerStatuses().get(1)
+				.isAvailable();
+		now += TimeUnit.MILLISECONDS.toNanos(1);
+		cs.checkHealth();
+
+		// assert
+		assertFalse(availableBeforeBackoff);
+		assertTrue(cs.getServerStatuses().get(1).isAvailable());
+		assertSame(cs.getReadOnlyContext(), fast.pooledContext);
+	}
+
+	@Test
+	public void backoffShouldDoubleUpToMax() {
+		// arrange
+		fast.down = true;
+		long[] backoffs = { 1, 2, 4, 4 };
+
+		for (int i = 0; i < backoffs.length; i++) {
+			// act
+			cs.checkHealth();
+			now += TimeUnit.MILLISECONDS.toNanos(backoffs[i]
+					* INITIAL_BACKOFF_MILLIS - 1);
+			cs.checkHealth();
+			now += TimeUnit.MILLISECONDS.toNanos(1);
+
+			// assert
+			assertEquals(fast.probes, i + 1);
+		}
+		cs.checkHealth();
+		assertEquals(fast.probes, backoffs.length + 1);
+		assertEquals(cs.getServerStatuses().get(1).getFailureCount(),
+				backoffs.length + 1);
+	}
+
+	@Test
+	public void shouldTryEjectedServersWhenNoneIsAvailable() {
+		// arrange
+		slow.down = true;
+		fast.down = true;
+		cs.checkHealth();
+		slow.down = false;
+
+		// act
+		DirContext ctx = cs.getReadOnlyContext();
+
+		// assert
+		assertSame(ctx, slow.pooledContext);
+	}
+
+	@Test
+	public void shouldNotFailOverOnOtherErrors() {
+		// arrange
+		cs.checkHealth();
+		AuthenticationException authFailure = new AuthenticationException(
+				new javax.naming.AuthenticationException());
+		when(fast.direct.getContext("user", "wrong")).thenThrow(authFailure);
+		DataAccessResourceFailureException exhausted = new DataAccessResourceFailureException(
+				"Failed to borrow", new NoSuchElementException());
+		when(fast.pool.getReadOnlyContext()).thenThrow(exhausted);
+
+		// act
+		try {
+			cs.getContext("user", "wrong");
+			fail("Authentication failure was not passed to the caller");
+		} catch (AuthenticationException e) {
+			assertSame(e, authFailure);
+		}
+		try {
+			cs.getReadOnlyContext();
+			fail("Pool exhaustion was not passed to the caller");
+		} catch (DataAccessResourceFailureException e) {
+			assertSame(e, exhausted);
+		}
+
+		// assert
+		verify(slow.direct, never()).getContext("user", "wrong");
+		assertTrue(cs.getServerStatuses().get(1).isAvailable());
+	}
+
+	@Test
+	public void shouldThrowLastFailureWhenAllServersFail() {
+		// arrange
+		CommunicationException failure = new CommunicationException(
+				new javax.naming.CommunicationException());
+		when(slow.pool.getReadOnlyContext()).thenThrow(failure);
+		when(fast.pool.getReadOnlyContext()).thenThrow(failure);
+
+		// act
+		try {
+			cs.getReadOnlyContext();
+			fail("Failure was not passed to the caller");
+		} catch (CommunicationException e) {
+			// assert
+			assertSame(e, failure);
+		}
+		assertFalse(cs.getServerStatuses().get(0).isAvailable());
+		assertFalse(cs.getServerStatuses().get(1).isAvailable());
+	}
+
+	/**
+	 * Mocked server whose probes take given time on the fake clock.
+	 */
+	final class FakeServer {
+		final ContextSource pool = mock(ContextSource.class);
+		final ContextSource direct = mock(ContextSource.class);
+		final DirContext pooledContext = mock(DirContext.class);
+		final Server server;
+		boolean down;
+		int probes;
+
+		FakeServer(String name, final long latencyMillis) {
+			server = new Server(name, pool, direct);
+			when(pool.getReadOnlyContext()).thenReturn(pooledContext);
+			when(pool.getReadWriteContext()).thenReturn(pooledContext);
+			when(direct.getReadOnlyContext()).thenAnswer(
+					new Answer<DirContext>() {
+						@Override
+						public DirContext answer(InvocationOnMock invocation) {
+							probes++;
+							if (down) {
+								throw new CommunicationException(
+										new javax.naming.CommunicationException());
+							}
+							now += TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+							return mock(DirContext.class);
+						}
+					});
+		}
+	}
+}
@@ -0,0 +1,368 @@
+package com.ash2k.example.ldap_it.service;
+
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.ldap.NameAlreadyBoundException;
+import org.springframework.ldap.NameNotFoundException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.ash2k.example.ldap_it.api.SpecialUserService;
+import com.ash2k.example.ldap_it.cache.ExpiringLruCache;
+import com.ash2k.example.ldap_it.domain.SpecialUser;
+
+/**
+ * Unit test for {@link CachingSpecialUserService}.
+ * 
+ * @author Mikhail Mazursky
+ */
+public class CachingSpecialUserServiceTest {
+	static final String USERNAME = "user1";
+	static final String SPECIAL = "user1_special";
+
+	@Mock
+	SpecialUserService delegate;
+
+	CachingSpecialUserService service;
+	ExecutorService executor;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		MockitoAnnotations.initMocks(this);
+		service = new CachingSpecialUserService(delegate,
+				new ExpiringLruCache<String, SpecialUser>(10, 1,
+						TimeUnit.MINUTES), new ExpiringLruCache<String, Boolean>(
+						10, 1, TimeUnit.MINUTES));
+		executor = Executors.newSingleThreadExecutor();
+	}
+
+	@AfterMethod
+	public void afterMethod() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void loadShouldHitDelegateOncePerNormalizedName() {
+		// arrange
+		SpecialUser user = new SpecialUser(USERNAME, SPECIAL);
+		when(delegate.load(USERNAME)).thenReturn(user);
+
+		// act
+		service.load(USERNAME);
+		SpecialUser cached = service.load(USERNAME.toUpperCase());
+
+		// assert
+		assertEquals(cached, user);
+		verify(delegate, times(1)).load(USERNAME);
+		assertEquals(service.getHitCount(), 1);
+		assertEquals(service.getMissCount(), 1);
+	}
+
+	@Test
+	public void persistShouldRefreshCachedUser() {
+		// arrange
+		when(delegate.load(USERNAME)).thenReturn(
+				new SpecialUser(USERNAME, "old"));
+		service.load(USERNAME);
+		SpecialUser user = new SpecialUser(USERNAME, SPECIAL);
+
+		// act
+		service.persist(user);
+
+		// assert
+		assertEquals(service.load(USERNAME), user);
+		verify(delegate, times(1)).load(USERNAME);
+	}
+
+	@Test
+	public void failedPersistShouldInvalidateCachedUser() {
+		// arrange
+		SpecialUser user = new SpecialUser(USERNAME, SPECIAL);
+		when(delegate.load(USERNAME)).thenReturn(user);
+		service.load(USERNAME);
+		doThrow(new NameAlreadyBoundException(null)).when(delegate).persist(
+				user);
+
+		// act
+		try {
+			service.persist(user);
+			fail("Exception expected");
+		} catch (NameAlreadyBoundException e) {
+			// expected
+		}
+
+		// assert
+		service.load(USERNAME);
+		verify(delegate, times(2)).load(USERNAME);
+	}
+
+	@Test
+	public void loadAllShouldOnlyAskDelegateForMissingUsers() {
+		// arrange
+		SpecialUser user1 = new SpecialUser(USERNAME, SPECIAL);
+		SpecialUser user2 = new SpecialUser("user2", SPECIAL);
+		when(delegate.load(USERNAME)).thenReturn(user1);
+		service.load(USERNAME);
+		when(delegate.loadAll(Arrays.asList("user2", "user3"))).thenReturn(
+				Collections.singletonMap("user2", user2));
+
+		// act
+		Map<String, SpecialUser> users = service.loadAll(Arrays.asList(
+				USERNAME, "user2", "user3"));
+
+		// assert
+		assertEquals(users.size(), 2);
+		assertEquals(users.get(USERNAME), user1);
+		assertEquals(users.get("user2"), user2);
+		assertEquals(service.load("user2"), user2);
+	}
+
+	@Test(timeOut = 5000)
+	public void loadRacingWithPersistShouldNotCacheReplacedUser()
+			throws Exception {
+		// arrange
+		final SpecialUser old = new SpecialUser(USERNAME, "old");
+		SpecialUser user = new SpecialUser(USERNAME, SPECIAL);
+		final CountDownLatch loading = new CountDownLatch(1);
+		final CountDownLatch persisted = new CountDownLatch(1);
+		when(delegate.load(USERNAME)).thenAnswer(new Answer<SpecialUser>() {
+			@Override
+			public SpecialUser answer(InvocationOnMock invocation)
+					throws InterruptedException {
+				loading.countDown();
+				persisted.await();
+				return old;
+			}
+		});
+		Future<SpecialUser> load = executor.submit(new Callable<SpecialUser>() {
+			@Override
+			public SpecialUser call() {
+				return service.load(USERNAME);
+			}
+		});
+		loading.await();
+
+		// act
+		service.persist(user);
+		persisted.countDown();
+		SpecialUser raced = load.get();
+
+		// assert
+		assertEquals(raced, old);
+		assertEquals(service.load(USERNAME), user);
+		verify(delegate, times(1)).load(USERNAME);
+	}
+
+	@Test(timeOut = 5000)
+	public void loadRacingWithDeleteShouldNotCacheDeletedUser()
+			throws Exception {
+		// arrange
+		final SpecialUser old = new SpecialUser(USERNAME, SPECIAL);
+		final CountDownLatch loading = new CountDownLatch(1);
+		final CountDownLatch deleted = new CountDownLatch(1);
+		when(delegate.load(USERNAME)).thenAnswer(new Answer<SpecialUser>() {
+			@Override
+			public SpecialUser answer(InvocationOnMock invocation)
+					throws InterruptedException {
+				loading.countDown();
+				deleted.await();
+				return old;
+			}
+		});
+		Future<SpecialUser> load = executor.submit(new Callable<SpecialUser>() {
+			@Override
+			public SpecialUser call() {
+				return service.load(USERNAME);
+			}
+		});
+		loading.await();
+
+		// act
+		service.delete(USERNAME);
+		deleted.countDown();
+		load.get();
+
+		// assert
+		assertFalse(service.exists(USERNAME));
+		verify(delegate, times(1)).load(USERNAME);
+		verify(delegate, never()).exists(USERNAME);
+	}
+
+	@Test(timeOut = 5000)
+	public void loadAllRacingWithPersistShouldNotCacheReplacedUser()
+			throws Exception {
+		// arrange
+		final SpecialUser old = new SpecialUser(USERNAME, "old");
+		SpecialUser user = new SpecialUser(USERNAME, SPECIAL);
+		final CountDownLatch loading = new CountDownLatch(1);
+		final CountDownLatch persisted = new CountDownLatch(1);
+		when(delegate.loadAll(Arrays.asList(USERNAME))).thenAnswer(
+				new Answer<Map<String, SpecialUser>>() {
+					@Override
+					public Map<String, SpecialUser> answer(
+							InvocationOnMock invocation)
+							throws InterruptedException {
+						loading.countDown();
+						persisted.await();
+						return Collections.singletonMap(USERNAME, old);
+					}
+				});
+		Future<Map<String, SpecialUser>> loadAll = executor
+				.submit(new Callable<Map<String, SpecialUser>>() {
+					@Override
+					public Map<String, SpecialUser> call() {
+						return service.loadAll(Arrays.asList(USERNAME));
+					}
+				});
+		loading.await();
+
+		// act
+		service.persist(user);
+		persisted.countDown();
+		Map<String, SpecialUser> raced = loadAll.get();
+
+		// assert
+		assertEquals(raced.get(USERNAME), old);
+		assertEquals(service.load(USERNAME), user);
+		verify(delegate, never()).load(USERNAME);
+	}
+
+	@Test
+	public void loadShouldRememberMissingUser() {
+		// arrange
+		when(delegate.load(USERNAME)).thenThrow(
+				new NameNotFoundException(USERNAME));
+		try {
+			service.load(USERNAME);
+			fail("Exception expected");
+		} catch (NameNotFoundException e) {
+			// expected
+		}
+
+		// act
+		boolean exists = service.exists(USERNAME);
+
+		// assert
+		assertFalse(exists);
+		verify(delegate, times(1)).load(USERNAME);
+		verify(delegate, times(0)).exists(USERNAME);
+		assertEquals(service.getNegativeHitCount(), 1);
+	}
+
+	@Test
+	public void persistShouldInvalidateMissingUser() {
+		// arrange
+		when(delegate.exists(USERNAME)).thenReturn(false);
+		service.exists(USERNAME);
+
+		// act
+		service.persist(new SpecialUser(USERNAME, SPECIAL));
+
+		// assert
+		assertTrue(service.exists(USERNAME));
+		verify(delegate, times(1)).exists(USERNAME);
+	}
+
+	@Test(timeOut = 5000)
+	public void loadRacingWithPersistShouldNotRememberMissingUser()
+			throws Exception {
+		// arrange
+		SpecialUser user = new SpecialUser(USERNAME, SPECIAL);
+		final CountDownLatch loading = new CountDownLatch(1);
+		final CountDownLatch persisted = new CountDownLatch(1);
+		when(delegate.load(USERNAME)).thenAnswer(new Answer<SpecialUser>() {
+			@Override
+			public SpecialUser answer(InvocationOnMock invocation)
+					throws InterruptedException {
+				loading.countDown();
+				persisted.await();
+				throw new NameNotFoundException(USERNAME);
+			}
+		});
+		Future<SpecialUser> load = executor.submit(new Callable<SpecialUser>() {
+			@Override
+			public SpecialUser call() {
+				return service.load(USERNAME);
+			}
+		});
+		loading.await();
+
+		// act
+		service.persist(user);
+		// drop cached user so that only negative cache could answer
+		service.invalidate(USERNAME);
+		persisted.countDown();
+		try {
+			load.get();
+			fail("Exception expected");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof NameNotFoundException);
+		}
+
+		// assert
+		when(delegate.exists(USERNAME)).thenReturn(true);
+		assertTrue(service.exists(USERNAME));
+		assertEquals(service.getNegativeHitCount(), 0);
+	}
+
+	@Test(timeOut = 5000)
+	public void existsRacingWithPersistShouldNotRememberMissingUser()
+			throws Exception {
+		// arrange
+		SpecialUser user = new SpecialUser(USERNAME, SPECIAL);
+		final CountDownLatch checking = new CountDownLatch(1);
+		final CountDownLatch persisted = new CountDownLatch(1);
+		when(delegate.exists(USERNAME)).thenAnswer(new Answer<Boolean>() {
+			@Override
+			public Boolean answer(InvocationOnMock invocation)
+					throws InterruptedException {
+				checking.countDown();
+				persisted.await();
+				return false;
+			}
+		});
+		Future<Boolean> exists = executor.submit(new Callable<Boolean>() {
+			@Override
+			public Boolean call() {
+				return service.exists(USERNAME);
+			}
+		});
+		checking.await();
+
+		// act
+		service.persist(user);
+		// drop cached user so that only negative cache could answer
+		service.invalidate(USERNAME);
+		persisted.countDown();
+		exists.get();
+
+		// assert
+		when(delegate.load(USERNAME)).thenReturn(user);
+		assertEquals(service.load(USERNAME), user);
+		assertEquals(service.getNegativeHitCount(), 0);
+	}
+}
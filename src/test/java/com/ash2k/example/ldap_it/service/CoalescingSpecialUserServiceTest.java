@@ -0,0 +1,171 @@
+package com.ash2k.example.ldap_it.service;
+
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.ldap.NameNotFoundException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.ash2k.example.ldap_it.api.SpecialUserService;
+import com.ash2k.example.ldap_it.domain.SpecialUser;
+
+/**
+ * Unit test for {@link CoalescingSpecialUserService}.
+ * 
+ * @author Mikhail Mazursky
+ */
+public class CoalescingSpecialUserServiceTest {
+	static final String USERNAME = "user1";
+	static final String SPECIAL = "user1_special";
+	static final int FOLLOWERS = 4;
+
+	@Mock
+	SpecialUserService delegate;
+
+	CoalescingSpecialUserService service;
+	ExecutorService executor;
+	CountDownLatch started;
+	CountDownLatch release;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		MockitoAnnotations.initMocks(this);
+		service = new CoalescingSpecialUserService(delegate);
+		executor = Executors.newCachedThreadPool();
+		started = new CountDownLatch(1);
+		release = new CountDownLatch(1);
+	}
+
+	@AfterMethod
+	public void afterMethod() {
+		release.countDown();
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void concurrentLoadsShouldShareOneDelegateCall() throws Exception {
+		// arrange
+		SpecialUser user = new SpecialUser(USERNAME, SPECIAL);
+		when(delegate.load(USERNAME)).thenAnswer(blockingAnswer(user));
+
+		// act
+		List<Future<SpecialUser>> loads = startLoads();
+		release.countDown();
+
+		// assert
+		for (Future<SpecialUser> load : loads) {
+			assertSame(load.get(5, TimeUnit.SECONDS), user);
+		}
+		verify(delegate, times(1)).load(USERNAME);
+		assertEquals(service.getStats().getLoadCount(), FOLLOWERS + 1);
+		assertEquals(service.getStats().getMergedCount(), FOLLOWERS);
+	}
+
+	@Test
+	public void concurrentLoadsShouldShareFailure() throws Exception {
+		// arrange
+		NameNotFoundException failure = new NameNotFoundException(USERNAME);
+		when(delegate.load(USERNAME)).thenAnswer(blockingAnswer(failure));
+
+		// act
+		List<Future<SpecialUser>> loads = startLoads();
+		release.countDown();
+
+		// assert
+		for (Future<SpecialUser> load : loads) {
+			try {
+				load.get(5, TimeUnit.SECONDS);
+				fail("Exception expected");
+			} catch (ExecutionException e) {
+				assertSame(e.getCause(), failure);
+			}
+		}
+		verify(delegate, times(1)).load(USERNAME);
+	}
+
+	@Test
+	public void loadAfterPersistShouldNotJoinEarlierLoad() throws Exception {
+		// arrange
+		SpecialUser user = new SpecialUser(USERNAME, SPECIAL);
+		when(delegate.load(USERNAME)).thenAnswer(
+				blockingAnswer(new SpecialUser(USERNAME, "old"))).thenReturn(
+				user);
+		Future<SpecialUser> earlier = executor.submit(load(USERNAME));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		// act
+		service.persist(user);
+		SpecialUser loaded = service.load(USERNAME);
+
+		// assert
+		assertSame(loaded, user);
+		release.countDown();
+		earlier.get(5, TimeUnit.SECONDS);
+		verify(delegate, times(2)).load(USERNAME);
+		assertEquals(service.getStats().getMergedCount(), 0);
+	}
+
+	/**
+	 * Starts a load, waits until it reaches the delegate and then starts
+	 * {@value #FOLLOWERS} more loads that join it.
+	 */
+	private List<Future<SpecialUser>> startLoads() throws Exception {
+		List<Future<SpecialUser>> loads = new ArrayList<Future<SpecialUser>>();
+		loads.add(executor.submit(load(USERNAME)));
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		for (int i = 0; i < FOLLOWERS; i++) {
+			loads.add(executor.submit(load(USERNAME.toUpperCase())));
+		}
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (service.getStats().getMergedCount() < FOLLOWERS) {
+			assertTrue(System.nanoTime() < deadline, "Loads were not merged");
+			Thread.sleep(1);
+		}
+		return loads;
+	}
+
+	private Callable<SpecialUser> load(final String username) {
+		return new Callable<SpecialUser>() {
+			@Override
+			public SpecialUser call() {
+				return service.load(username);
+			}
+		};
+	}
+
+	private Answer<SpecialUser> blockingAnswer(final Object result) {
+		return new Answer<SpecialUser>() {
+			@Override
+			public SpecialUser answer(InvocationOnMock invocation)
+					throws Throwable {
+				started.countDown();
+				release.await();
+				if (result instanceof RuntimeException) {
+					throw (RuntimeException) result;
+				}
+				return (SpecialUser) result;
+			}
+		};
+	}
+}
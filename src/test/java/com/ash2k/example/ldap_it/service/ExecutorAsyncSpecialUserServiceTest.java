@@ -0,0 +1,143 @@
+package com.ash2k.example.ldap_it.service;
+
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.ldap.NameNotFoundException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.ash2k.example.ldap_it.api.AsyncCallback;
+import com.ash2k.example.ldap_it.api.SpecialUserService;
+import com.ash2k.example.ldap_it.domain.SpecialUser;
+
+/**
+ * Unit test for {@link ExecutorAsyncSpecialUserService}.
+ * 
+ * @author Mikhail Mazursky
+ */
+public class ExecutorAsyncSpecialUserServiceTest {
+	static final String USERNAME = "user1";
+	static final String SPECIAL = "user1_special";
+
+	@Mock
+	SpecialUserService delegate;
+
+	ExecutorAsyncSpecialUserService service;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		MockitoAnnotations.initMocks(this);
+		service = new ExecutorAsyncSpecialUserService(delegate, 1, 1, true);
+	}
+
+	@AfterMethod
+	public void afterMethod() throws InterruptedException {
+		service.shutdown();
+	}
+
+	@Test
+	public void loadAsyncShouldCompleteWithLoadedUser() throws Exception {
+		// arrange
+		SpecialUser user = new SpecialUser(USERNAME, SPECIAL);
+		when(delegate.load(USERNAME)).thenReturn(user);
+
+		// act
+		SpecialUser loaded = service.loadAsync(USERNAME).get(5,
+				TimeUnit.SECONDS);
+
+		// assert
+		assertEquals(loaded, user);
+	}
+
+	@Test
+	public void loadAsyncShouldNotifyCallbackOfFailure() throws Exception {
+		// arrange
+		when(delegate.load(USERNAME)).thenThrow(
+				new NameNotFoundException(USERNAME));
+		final CountDownLatch done = new CountDownLatch(1);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		// act
+		service.loadAsync(USERNAME, new AsyncCallback<SpecialUser>() {
+			@Override
+			public void onSuccess(SpecialUser result) {
+				done.countDown();
+			}
+
+			@Override
+			public void onFailure(Throwable cause) {
+				failure.set(cause);
+				done.countDown();
+			}
+		});
+
+		// assert
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertTrue(failure.get() instanceof NameNotFoundException);
+	}
+
+	@Test
+	public void loadAsyncShouldRejectWhenQueueIsFull() throws Exception {
+		// arrange
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		when(delegate.load(USERNAME)).thenAnswer(new Answer<SpecialUser>() {
+			@Override
+			public SpecialUser answer(InvocationOnMock invocation)
+					throws Throwable {
+				started.countDown();
+				release.await();
+				return null;
+			}
+		});
+		service.loadAsync(USERNAME);
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		service.loadAsync(USERNAME);
+
+		// act
+		try {
+			service.loadAsync(USERNAME);
+			fail("Exception expected");
+		} catch (RejectedExecutionException e) {
+			// expected
+		} finally {
+			release.countDown();
+		}
+
+		// assert
+		assertEquals(service.getRejectedCount(), 1);
+	}
+
+	@Test
+	public void loadAsyncShouldRejectWithoutCountingWhenShutDown()
+			throws Exception {
+		// arrange
+		service.shutdown();
+
+		// act
+		String message = null;
+		try {
+			service.loadAsync(USERNAME);
+			fail("Exception expected");
+		} catch (RejectedExecutionException e) {
+			message = e.getMessage();
+		}
+
+		// assert
+		assertEquals(message, "Service is shut down");
+		assertEquals(service.getRejectedCount(), 0);
+	}
+}
@@ -0,0 +1,110 @@
+package com.ash2k.example.ldap_it.service;
+
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.ldap.NameAlreadyBoundException;
+import org.springframework.ldap.NameNotFoundException;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.ash2k.example.ldap_it.api.SpecialUserService;
+import com.ash2k.example.ldap_it.domain.SpecialUser;
+import com.ash2k.example.ldap_it.metrics.HistogramMetricsRecorder;
+import com.ash2k.example.ldap_it.metrics.OperationStats;
+import com.ash2k.example.ldap_it.metrics.PoolWaitTime;
+
+/**
+ * Unit test for {@link InstrumentedSpecialUserService}.
+ * 
+ * @author Mikhail Mazursky
+ */
+public class InstrumentedSpecialUserServiceTest {
+	static final String USERNAME = "user1";
+	static final String SPECIAL = "user1_special";
+
+	@Mock
+	SpecialUserService delegate;
+
+	HistogramMetricsRecorder recorder;
+	InstrumentedSpecialUserService service;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		MockitoAnnotations.initMocks(this);
+		recorder = new HistogramMetricsRecorder(
+				InstrumentedSpecialUserService.OPERATIONS);
+		service = new InstrumentedSpecialUserService(delegate, recorder);
+	}
+
+	@Test
+	public void loadShouldRecordPoolWaitSeparately() {
+		// arrange
+		final long wait = TimeUnit.MILLISECONDS.toNanos(5);
+		when(delegate.load(USERNAME)).thenAnswer(new Answer<SpecialUser>() {
+			@Override
+			public SpecialUser answer(InvocationOnMock invocation) {
+				PoolWaitTime.record(wait);
+				return new SpecialUser(USERNAME, SPECIAL);
+			}
+		});
+
+		// act
+		service.load(USERNAME);
+
+		// assert
+		OperationStats stats = recorder
+				.getStats(InstrumentedSpecialUserService.OP_LOAD);
+		assertEquals(stats.getCount(), 1);
+		assertEquals(stats.getErrorCount(), 0);
+		assertEquals(stats.getPoolWait().getMax(TimeUnit.NANOSECONDS), wait);
+		assertEquals(stats.getWire().getCount(), 1);
+	}
+
+	@Test
+	public void callsShouldCountErrorsByType() {
+		// arrange
+		when(delegate.load(USERNAME)).thenThrow(
+				new NameNotFoundException(USERNAME));
+		doThrow(new NameAlreadyBoundException(null)).when(delegate).persist(
+				new SpecialUser(USERNAME, SPECIAL));
+
+		// act
+		try {
+			service.load(USERNAME);
+			fail("Failure should be rethrown");
+		} catch (NameNotFoundException e) {
+			// expected
+		}
+		try {
+			service.persist(new SpecialUser(USERNAME, SPECIAL));
+			fail("Failure should be rethrown");
+		} catch (NameAlreadyBoundException e) {
+			// expected
+		}
+		service.exists(USERNAME);
+
+		// assert
+		OperationStats load = recorder
+				.getStats(InstrumentedSpecialUserService.OP_LOAD);
+		assertEquals(load.getCount(), 1);
+		assertEquals(load.getErrorsByType(),
+				Collections.singletonMap("NameNotFoundException", 1L));
+		assertEquals(
+				recorder.getStats(InstrumentedSpecialUserService.OP_PERSIST)
+						.getErrorsByType(), Collections.singletonMap(
+						"NameAlreadyBoundException", 1L));
+		assertEquals(
+				recorder.getStats(InstrumentedSpecialUserService.OP_EXISTS)
+						.getErrorCount(), 0);
+	}
+}
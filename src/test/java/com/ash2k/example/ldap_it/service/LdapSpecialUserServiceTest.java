@@ -1,25 +1,73 @@
 package com.ash2k.example.ldap_it.service;
 
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.isNull;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.Name;
+import javax.naming.NameAlreadyBoundException;
+import javax.naming.NameNotFoundException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.BasicAttribute;
+import javax.naming.directory.BasicAttributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.ModificationItem;
+import javax.naming.directory.SearchControls;
+import javax.naming.ldap.Control;
+import javax.naming.ldap.LdapContext;
 
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.ldap.SizeLimitExceededException;
+import org.springframework.ldap.core.AttributesMapper;
+import org.springframework.ldap.core.AttributesMapperCallbackHandler;
+import org.springframework.ldap.core.ContextExecutor;
 import org.springframework.ldap.core.DirContextOperations;
+import org.springframework.ldap.core.DistinguishedName;
+import org.springframework.ldap.core.LdapEncoder;
 import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.ldap.core.NameClassPairCallbackHandler;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import com.ash2k.example.ldap_it.api.BatchResult;
+import com.ash2k.example.ldap_it.api.UpsertOutcome;
+import com.ash2k.example.ldap_it.cache.ExpiringLruCache;
 import com.ash2k.example.ldap_it.domain.SpecialUser;
+import com.ash2k.example.ldap_it.pool.AdaptiveConcurrencyLimiter;
+import com.ash2k.example.ldap_it.service.LdapSpecialUserService.SpecialUserAttributesMapper;
 import com.ash2k.example.ldap_it.service.LdapSpecialUserService.SpecialUserContextMapper;
 
 /**
- * Unit test for {@link LdapSpecialUserService} and
- * {@link SpecialUserContextMapper}.
+ * Unit test for {@link LdapSpecialUserService},
+ * {@link SpecialUserContextMapper} and {@link SpecialUserAttributesMapper}.
  * 
  * @author Mikhail Mazursky
  */
@@ -31,6 +79,12 @@ public class LdapSpecialUserServiceTest {
 	DirContextOperations ctx;
 	@Mock
 	LdapTemplate ldapTemplate;
+	@Mock
+	LdapTemplate readTemplate;
+	@Mock
+	DirContext dirContext;
+	@Mock
+	LdapContext ldapContext;
 	@Captor
 	ArgumentCaptor<DirContextOperations> ctxCaptor;
 
@@ -67,6 +121,354 @@ public class LdapSpecialUserServiceTest {
 				user.getSpecial());
 	}
 
+	@Test
+	public void persistAllShouldReuseContextAndReportFailures()
+			throws Exception {
+		// arrange
+		SpecialUser user1 = new SpecialUser("user1", SPECIAL);
+		SpecialUser user2 = new SpecialUser("user2", SPECIAL);
+		SpecialUser user3 = new SpecialUser("user3", SPECIAL);
+		service.setBatchSize(2);
+		executeWithDirContext();
+		doThrow(new NameAlreadyBoundException("user2")).when(dirContext)
+				.bind(eq(new DistinguishedName("uid=user2,ou=users")),
+						isNull(), any(Attributes.class));
+
+		// act
+		BatchResult result = service.persistAll(Arrays.asList(user1, user2,
+				user3));
+
+		// assert
+		verify(ldapTemplate, times(2)).executeReadWrite(
+				any(ContextExecutor.class));
+		verify(dirContext, times(3)).bind(any(Name.class), isNull(),
+				any(Attributes.class));
+		assertEquals(result.getSucceeded(), Arrays.asList("user1", "user3"));
+		assertEquals(result.getFailed().keySet(),
+				Collections.singleton("user2"));
+		assertTrue(result.getFailed().get("user2") instanceof
+				org.springframework.ldap.NameAlreadyBoundException);
+	}
+
+	@Test
+	public void persistAllShouldProcessChunksInParallel() throws Exception {
+		// arrange
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		service.setBatchSize(1);
+		service.setBatchExecutor(executor);
+		executeWithDirContext();
+
+		// act
+		BatchResult result;
+		try {
+			result = service.persistAll(Arrays.asList(new SpecialUser(
+					"user1", SPECIAL), new SpecialUser("user2", SPECIAL)));
+		} finally {
+			executor.shutdown();
+		}
+
+		// assert
+		verify(ldapTemplate, times(2)).executeReadWrite(
+				any(ContextExecutor.class));
+		assertTrue(result.isSuccessful());
+		assertEquals(result.size(), 2);
+	}
+
+	@Test
+	public void interruptShouldNotFailChunksStillRunning() throws Exception {
+		// arrange
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		service.setBatchSize(1);
+		service.setBatchExecutor(executor);
+		executeWithDirContext();
+		Thread.currentThread().interrupt();
+
+		// act
+		BatchResult result;
+		boolean interrupted;
+		try {
+			result = service.persistAll(Arrays.asList(new SpecialUser(
+					"user1", SPECIAL), new SpecialUser("user2", SPECIAL)));
+		} finally {
+			interrupted = Thread.interrupted();
+			executor.shutdown();
+		}
+
+		// assert
+		assertTrue(interrupted);
+		assertTrue(result.isSuccessful());
+		assertEquals(result.getSucceeded(), Arrays.asList("user1", "user2"));
+	}
+
+	@Test
+	public void deleteAllShouldReuseContextAndReportMissingUsers()
+			throws Exception {
+		// arrange
+		service.setBatchSize(2);
+		executeWithDirContext();
+		doThrow(new NameNotFoundException("user2")).when(dirContext).unbind(
+				"uid=user2,ou=users");
+
+		// act
+		BatchResult result = service.deleteAll(Arrays.asList("user1",
+				"user2", "user3"));
+
+		// assert
+		verify(ldapTemplate, times(2)).executeReadWrite(
+				any(ContextExecutor.class));
+		verify(dirContext).unbind("uid=user1,ou=users");
+		verify(dirContext).unbind("uid=user3,ou=users");
+		assertEquals(result.getSucceeded(), Arrays.asList("user1", "user3"));
+		assertTrue(result.getFailed().get("user2") instanceof
+				org.springframework.ldap.NameNotFoundException);
+	}
+
+	@Test
+	public void purgeUsersShouldRecreateContainerDeletedWithTreeDelete()
+			throws Exception {
+		// arrange
+		executeWithContext(ldapContext);
+		DistinguishedName usersDn = new DistinguishedName(
+				LdapSpecialUserService.USERS_BASE);
+		Attributes container = new BasicAttributes("ou", "users", true);
+		when(ldapContext.getAttributes(usersDn)).thenReturn(container);
+		ArgumentCaptor<Control[]> controls = ArgumentCaptor
+				.forClass(Control[].class);
+
+		// act
+		service.purgeUsers();
+
+		// assert
+		InOrder inOrder = inOrder(ldapContext);
+		inOrder.verify(ldapContext).setRequestControls(controls.capture());
+		inOrder.verify(ldapContext).unbind(usersDn);
+		inOrder.verify(ldapContext).setRequestControls(null);
+		inOrder.verify(ldapContext).bind(usersDn, null, container);
+		assertEquals(controls.getAllValues().get(0)[0].getID(),
+				LdapSpecialUserService.TREE_DELETE_CONTROL_OID);
+		assertTrue(controls.getAllValues().get(0)[0].isCritical());
+	}
+
+	@Test
+	public void unsupportedTreeDeleteShouldNotBeTriedAgain() throws Exception {
+		// arrange
+		executeWithContext(ldapContext);
+		DistinguishedName dn = new DistinguishedName("ou=tenant1");
+		doThrow(new OperationNotSupportedException()).when(ldapContext)
+				.unbind(dn);
+
+		// act
+		service.deleteSubtree(dn.toString());
+		service.deleteSubtree(dn.toString());
+
+		// assert
+		verify(ldapContext, times(1)).unbind(dn);
+		verify(ldapTemplate, times(2)).search(eq(dn),
+				eq(LdapSpecialUserService.LDAP_ANY_OBJECT_FILTER),
+				any(SearchControls.class),
+				any(NameClassPairCallbackHandler.class));
+		verify(ldapTemplate, times(2)).unbind(dn);
+	}
+
+	@Test
+	public void callsOverConcurrencyLimitShouldBeRejected() {
+		// arrange
+		AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1,
+				1, 1, 1, TimeUnit.SECONDS);
+		service.setConcurrencyLimiter(limiter);
+		limiter.acquire();
+
+		// act
+		BatchResult result = service.persistAll(Arrays.asList(new SpecialUser(
+				USERNAME, SPECIAL)));
+		try {
+			service.load(USERNAME);
+			fail("Exception expected");
+		} catch (RejectedExecutionException e) {
+			// expected
+		}
+
+		// assert
+		assertTrue(result.getFailed().get(USERNAME) instanceof RejectedExecutionException);
+		verifyNoMoreInteractions(ldapTemplate);
+		assertEquals(limiter.getRejectedCount(), 2);
+	}
+
+	@Test
+	public void upsertShouldNotWriteUnchangedUser() throws Exception {
+		// arrange
+		executeWithDirContext();
+		when(dirContext.getAttributes(any(Name.class), any(String[].class)))
+				.thenReturn(storedAttributes(SPECIAL));
+
+		// act
+		UpsertOutcome outcome = service.upsert(new SpecialUser(USERNAME,
+				SPECIAL));
+
+		// assert
+		assertEquals(outcome, UpsertOutcome.UNCHANGED);
+		verify(dirContext, never()).modifyAttributes(any(Name.class),
+				any(ModificationItem[].class));
+	}
+
+	@Test
+	public void upsertShouldOnlyModifyChangedAttributes() throws Exception {
+		// arrange
+		executeWithDirContext();
+		when(dirContext.getAttributes(any(Name.class), any(String[].class)))
+				.thenReturn(storedAttributes("old_special"));
+		ArgumentCaptor<ModificationItem[]> mods = ArgumentCaptor
+				.forClass(ModificationItem[].class);
+
+		// act
+		UpsertOutcome outcome = service.upsert(new SpecialUser(USERNAME,
+				SPECIAL));
+
+		// assert
+		assertEquals(outcome, UpsertOutcome.UPDATED);
+		verify(dirContext).modifyAttributes(
+				eq(new DistinguishedName("uid=user1,ou=users")),
+				mods.capture());
+		assertEquals(mods.getValue().length, 1);
+		assertEquals(mods.getValue()[0].getAttribute().getID(),
+				LdapSpecialUserService.LDAP_SPECIAL);
+		assertEquals(mods.getValue()[0].getAttribute().get(), SPECIAL);
+	}
+
+	@Test
+	public void upsertShouldCreateMissingUser() throws Exception {
+		// arrange
+		executeWithDirContext();
+		when(dirContext.getAttributes(any(Name.class), any(String[].class)))
+				.thenThrow(new NameNotFoundException(USERNAME));
+
+		// act
+		UpsertOutcome outcome = service.upsert(new SpecialUser(USERNAME,
+				SPECIAL));
+
+		// assert
+		assertEquals(outcome, UpsertOutcome.CREATED);
+		verify(dirContext).bind(
+				eq(new DistinguishedName("uid=user1,ou=users")), isNull(),
+				any(Attributes.class));
+	}
+
+	@Test
+	public void loadShouldOnlyRequestUserAttributes() {
+		// arrange
+		when(
+				ldapTemplate.lookup(eq("uid=user1,ou=users"),
+						eq(LdapSpecialUserService.LDAP_USER_ATTRIBUTES),
+						any(AttributesMapper.class))).thenReturn(
+				new SpecialUser(USERNAME, SPECIAL));
+
+		// act
+		SpecialUser user = service.load(USERNAME);
+
+		// assert
+		assertEquals(user, new SpecialUser(USERNAME, SPECIAL));
+	}
+
+	@Test
+	public void loadAllShouldSplitNamesIntoBoundedFilters() {
+		// arrange
+		service.setFilterSize(2);
+		when(
+				ldapTemplate.search(eq(LdapSpecialUserService.USERS_BASE),
+						eq("(|(cn=user1)(cn=user2))"),
+						any(SearchControls.class), any(AttributesMapper.class)))
+				.thenReturn(Arrays.asList(new SpecialUser("USER1", SPECIAL)));
+		when(
+				ldapTemplate.search(eq(LdapSpecialUserService.USERS_BASE),
+						eq("(cn=user3)"), any(SearchControls.class),
+						any(AttributesMapper.class))).thenReturn(
+				Arrays.asList(new SpecialUser("user3", SPECIAL)));
+
+		// act
+		Map<String, SpecialUser> users = service.loadAll(Arrays.asList(
+				"user1", "user2", "user3"));
+
+		// assert
+		assertEquals(users.size(), 2);
+		assertEquals(users.get("user1"), new SpecialUser("USER1", SPECIAL));
+		assertEquals(users.get("user3"), new SpecialUser("user3", SPECIAL));
+	}
+
+	@Test
+	public void existsShouldNotFetchAttributes() {
+		// arrange
+		ArgumentCaptor<SearchControls> controls = ArgumentCaptor
+				.forClass(SearchControls.class);
+
+		// act
+		service.exists(USERNAME);
+
+		// assert
+		verify(ldapTemplate).search(eq("uid=user1,ou=users"),
+				eq(LdapSpecialUserService.LDAP_ANY_OBJECT_FILTER),
+				controls.capture(), any(NameClassPairCallbackHandler.class));
+		assertEquals(controls.getValue().getSearchScope(),
+				SearchControls.OBJECT_SCOPE);
+		assertEquals(controls.getValue().getReturningAttributes(),
+				LdapSpecialUserService.LDAP_NO_ATTRIBUTES);
+		assertFalse(controls.getValue().getReturningObjFlag());
+	}
+
+	@Test
+	public void existsShouldReturnFalseForMissingUser() {
+		// arrange
+		doThrow(new org.springframework.ldap.NameNotFoundException(USERNAME))
+				.when(ldapTemplate).search(any(String.class),
+						any(String.class), any(SearchControls.class),
+						any(NameClassPairCallbackHandler.class));
+
+		// act
+		boolean exists = service.exists(USERNAME);
+
+		// assert
+		assertFalse(exists);
+	}
+
+	@Test
+	public void findBySpecialPrefixShouldEscapeWildcardsInPrefix() {
+		// act
+		service.findBySpecialPrefix("a*b");
+
+		// assert
+		verify(ldapTemplate).search(eq(LdapSpecialUserService.USERS_BASE),
+				eq("(special=a\\2ab*)"), any(SearchControls.class),
+				any(NameClassPairCallbackHandler.class));
+	}
+
+	@Test
+	public void findBySpecialShouldReturnUsersFoundBeforeSizeLimit() {
+		// arrange
+		service.setMaxResults(1);
+		ArgumentCaptor<SearchControls> controls = ArgumentCaptor
+				.forClass(SearchControls.class);
+		doAnswer(new Answer<Object>() {
+			@Override
+			@SuppressWarnings("unchecked")
+			public Object answer(InvocationOnMock invocation)
+					throws Throwable {
+				AttributesMapperCallbackHandler handler = (AttributesMapperCallbackHandler) invocation
+						.getArguments()[3];
+				handler.getList().add(new SpecialUser(USERNAME, SPECIAL));
+				throw new SizeLimitExceededException(null);
+			}
+		}).when(ldapTemplate).search(eq(LdapSpecialUserService.USERS_BASE),
+				eq("(special=" + SPECIAL + ")"), controls.capture(),
+				any(NameClassPairCallbackHandler.class));
+
+		// act
+		List<SpecialUser> users = service.findBySpecial(SPECIAL);
+
+		// assert
+		assertEquals(controls.getValue().getCountLimit(), 1);
+		assertEquals(users,
+				Collections.singletonList(new SpecialUser(USERNAME, SPECIAL)));
+	}
+
 	@Test
 	public void doMapFromContextShouldProduceCorrectUser() {
 		// arrange
@@ -85,4 +487,121 @@ public class LdapSpecialUserServiceTest {
 		assertEquals(user.getUsername(), USERNAME);
 		assertEquals(user.getSpecial(), SPECIAL);
 	}
+
+	@Test
+	public void userDnShouldMatchFormat() {
+		// arrange
+		String username = "user,1";
+
+		// act
+		String dn = LdapSpecialUserService.userDn(username);
+
+		// assert
+		assertEquals(dn, String.format(LdapSpecialUserService.USERDN_FORMAT,
+				LdapEncoder.nameEncode(username)));
+	}
+
+	@Test
+	public void mapFromAttributesShouldProduceCorrectUser() throws Exception {
+		// arrange
+		SpecialUserAttributesMapper mapper = new SpecialUserAttributesMapper();
+		Attributes attrs = new BasicAttributes(true);
+		attrs.put(LdapSpecialUserService.LDAP_USERNAME, USERNAME);
+		attrs.put(LdapSpecialUserService.LDAP_SPECIAL, SPECIAL);
+
+		// act
+		Object mapped = mapper.mapFromAttributes(attrs);
+
+		// assert
+		assertTrue(mapped instanceof SpecialUser);
+		SpecialUser user = (SpecialUser) mapped;
+		assertEquals(user.getUsername(), USERNAME);
+		assertEquals(user.getSpecial(), SPECIAL);
+	}
+
+	@Test
+	public void readsShouldGoToReadTemplate() throws Exception {
+		// arrange
+		service = new LdapSpecialUserService(ldapTemplate, readTemplate);
+
+		// act
+		service.persist(new SpecialUser(USERNAME, SPECIAL));
+		service.load(USERNAME);
+		service.exists(USERNAME);
+
+		// assert
+		verify(ldapTemplate).bind(any(DirContextOperations.class));
+		verify(readTemplate).lookup(any(String.class), any(String[].class),
+				any(AttributesMapper.class));
+		verify(readTemplate).search(any(String.class), any(String.class),
+				any(SearchControls.class),
+				any(NameClassPairCallbackHandler.class));
+		verify(ldapTemplate, never()).lookup(any(String.class),
+				any(String[].class), any(AttributesMapper.class));
+	}
+
+	@Test
+	public void recentlyWrittenUserShouldBeReadFromWriteTemplate()
+			throws Exception {
+		// arrange
+		final long[] now = { 0 };
+		service = new LdapSpecialUserService(ldapTemplate, readTemplate);
+		service.setRecentWrites(new ExpiringLruCache<String, Boolean>(10, 1,
+				TimeUnit.SECONDS) {
+			@Override
+			protected long nanoTime() {
+				return now[0];
+			}
+		});
+		service.persist(new SpecialUser(USERNAME.toUpperCase(), SPECIAL));
+
+		// act
+		service.load(USERNAME);
+		service.loadAll(Arrays.asList("other", USERNAME));
+		service.load("other");
+		now[0] = TimeUnit.SECONDS.toNanos(1);
+		service.load(USERNAME);
+
+		// assert
+		verify(ldapTemplate).lookup(eq(LdapSpecialUserService.userDn(USERNAME)),
+				any(String[].class), any(AttributesMapper.class));
+		verify(ldapTemplate).search(any(String.class), any(String.class),
+				any(SearchControls.class), any(AttributesMapper.class));
+		verify(readTemplate).lookup(
+				eq(LdapSpecialUserService.userDn("other")),
+				any(String[].class), any(AttributesMapper.class));
+		verify(readTemplate).lookup(eq(LdapSpecialUserService.userDn(USERNAME)),
+				any(String[].class), any(AttributesMapper.class));
+	}
+
+	private void executeWithDirContext() {
+		executeWithContext(dirContext);
+	}
+
+	private void executeWithContext(final DirContext ctx) {
+		when(ldapTemplate.executeReadWrite(any(ContextExecutor.class)))
+				.thenAnswer(new Answer<Object>() {
+					@Override
+					public Object answer(InvocationOnMock invocation)
+							throws Throwable {
+						ContextExecutor executor = (ContextExecutor) invocation
+								.getArguments()[0];
+						return executor.executeWithContext(ctx);
+					}
+				});
+	}
+
+	private static Attributes storedAttributes(String special) {
+		Attributes attrs = new BasicAttributes(true);
+		BasicAttribute objectClass = new BasicAttribute(
+				LdapSpecialUserService.LDAP_OBJECT_CLASS);
+		for (String value : LdapSpecialUserService.LDAP_OBJECT_CLASSES) {
+			objectClass.add(value);
+		}
+		attrs.put(objectClass);
+		attrs.put(LdapSpecialUserService.LDAP_USERNAME, USERNAME);
+		attrs.put(LdapSpecialUserService.LDAP_SURNAME, USERNAME);
+		attrs.put(LdapSpecialUserService.LDAP_SPECIAL, special);
+		return attrs;
+	}
 }
@@ -0,0 +1,288 @@
+package com.ash2k.example.ldap_it.service;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.mockito.Mock;
+import org.mockito.Mockito;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.ldap.NameAlreadyBoundException;
+import org.springframework.ldap.UncategorizedLdapException;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.ash2k.example.ldap_it.api.BatchResult;
+import com.ash2k.example.ldap_it.api.SpecialUserService;
+import com.ash2k.example.ldap_it.api.UpsertOutcome;
+import com.ash2k.example.ldap_it.domain.SpecialUser;
+import com.ash2k.example.ldap_it.service.WriteBehindSpecialUserService.WriteFailureListener;
+
+/**
+ * Unit test for {@link WriteBehindSpecialUserService}.
+ * 
+ * @author Mikhail Mazursky
+ */
+public class WriteBehindSpecialUserServiceTest {
+	static final String USERNAME = "user1";
+	static final String SPECIAL = "user1_special";
+	static final int CAPACITY = 3;
+	static final int BATCH_SIZE = 2;
+	static final long FLUSH_INTERVAL_MILLIS = 60000;
+
+	@Mock
+	SpecialUserService delegate;
+
+	WriteBehindSpecialUserService service;
+	List<List<SpecialUser>> batches;
+
+	@BeforeMethod
+	public void beforeMethod() {
+		MockitoAnnotations.initMocks(this);
+		batches = Collections.synchronizedList(new ArrayList<List<SpecialUser>>());
+		when(delegate.persistAll(Mockito.<Collection<SpecialUser>> any()))
+				.thenAnswer(new Answer<BatchResult>() {
+					@Override
+					public BatchResult answer(InvocationOnMock invocation) {
+						@SuppressWarnings("unchecked")
+						List<SpecialUser> users = new ArrayList<SpecialUser>(
+								(Collection<SpecialUser>) invocation
+										.getArguments()[0]);
+						batches.add(users);
+						List<String> succeeded = new ArrayList<String>();
+						for (SpecialUser user : users) {
+							succeeded.add(user.getUsername());
+						}
+						return new BatchResult(succeeded, Collections
+								.<String, RuntimeException> emptyMap());
+					}
+				});
+		service = new WriteBehindSpecialUserService(delegate, CAPACITY, 1,
+				BATCH_SIZE, FLUSH_INTERVAL_MILLIS);
+	}
+
+	@AfterMethod
+	public void afterMethod() throws InterruptedException {
+		service.shutdown();
+	}
+
+	@Test
+	public void repeatedWritesShouldBeCollapsed() throws Exception {
+		// arrange
+		SpecialUser latest = new SpecialUser(USERNAME, SPECIAL);
+
+		// act
+		service.persist(new SpecialUser(USERNAME, "first"));
+		service.persist(new SpecialUser(USERNAME.toUpperCase(), "second"));
+		service.persist(latest);
+		service.flush();
+
+		// assert
+		assertEquals(batches, Collections.singletonList(Arrays.asList(latest)));
+		assertEquals(service.getWriteCount(), 3);
+		assertEquals(service.getCoalescedCount(), 2);
+		assertEquals(service.getFlushedCount(), 1);
+		assertEquals(service.getPendingCount(), 0);
+	}
+
+	@Test
+	public void fullBatchShouldBeSentWithoutWaitingForInterval() {
+		// arrange
+		SpecialUser user1 = new SpecialUser(USERNAME, SPECIAL);
+		SpecialUser user2 = new SpecialUser("user2", SPECIAL);
+
+		// act
+		service.persist(user1);
+		service.persist(user2);
+
+		// assert
+		verify(delegate, timeout(5000)).persistAll(Arrays.asList(user1, user2));
+	}
+
+	@Test
+	public void unflushedUserShouldBeVisibleToReads() {
+		// arrange
+		SpecialUser user = new SpecialUser(USERNAME, SPECIAL);
+
+		// act
+		service.persist(user);
+
+		// assert
+		assertSame(service.load(USERNAME.toUpperCase()), user);
+		assertTrue(service.exists(USERNAME));
+		verify(delegate, never()).load(any(String.class));
+	}
+
+	@Test
+	public void failedWritesShouldBeReportedToListener() throws Exception {
+		// arrange
+		SpecialUser user = new SpecialUser(USERNAME, SPECIAL);
+		UncategorizedLdapException failure = new UncategorizedLdapException(
+				"test");
+		when(delegate.persistAll(Arrays.asList(user))).thenReturn(
+				new BatchResult(Collections.<String> emptyList(), Collections
+						.<String, RuntimeException> singletonMap(USERNAME,
+								failure)));
+		final List<Object> reported = new ArrayList<Object>();
+		service.setFailureListener(new WriteFailureListener() {
+			@Override
+			public void onWriteFailure(SpecialUser user, RuntimeException cause) {
+				reported.add(user);
+				reported.add(cause);
+			}
+		});
+
+		// act
+		service.persist(user);
+		service.flush();
+
+		// assert
+		assertEquals(reported, Arrays.<Object> asList(user, failure));
+		assertEquals(service.getFailedCount(), 1);
+	}
+
+	@Test
+	public void existingUserShouldBeUpdatedOnFlush() throws Exception {
+		// arrange
+		SpecialUser user = new SpecialUser(USERNAME, SPECIAL);
+		when(delegate.persistAll(Arrays.asList(user))).thenReturn(
+				new BatchResult(Collections.<String> emptyList(), Collections
+						.<String, RuntimeException> singletonMap(USERNAME,
+								new NameAlreadyBoundException(null))));
+		when(delegate.upsert(user)).thenReturn(UpsertOutcome.UPDATED);
+		WriteFailureListener listener = Mockito
+				.mock(WriteFailureListener.class);
+		service.setFailureListener(listener);
+
+		// act
+		service.persist(user);
+		service.flush();
+
+		// assert
+		verify(delegate).upsert(user);
+		verify(listener, never()).onWriteFailure(any(SpecialUser.class),
+				any(RuntimeException.class));
+		assertEquals(service.getFlushedCount(), 1);
+		assertEquals(service.getFailedCount(), 0);
+	}
+
+	@Test(timeOut = 5000)
+	public void errorShouldNotLeaveWritesInFlight() throws Exception {
+		// arrange
+		SpecialUser user = new SpecialUser(USERNAME, SPECIAL);
+		doThrow(new AssertionError("test")).when(delegate).persistAll(
+				Mockito.<Collection<SpecialUser>> any());
+		service.persist(user);
+
+		// act
+		service.flush();
+
+		// assert
+		assertEquals(service.getPendingCount(), 0);
+		assertEquals(service.getFailedCount(), 1);
+		when(delegate.load(USERNAME)).thenReturn(null);
+		assertEquals(service.load(USERNAME), null);
+	}
+
+	@Test
+	public void writeShouldBeRejectedWhenQueueIsFull() {
+		// arrange
+		final CountDownLatch release = new CountDownLatch(1);
+		// doAnswer() doesn't call the answer stubbed in beforeMethod()
+		doAnswer(new Answer<BatchResult>() {
+			@Override
+			public BatchResult answer(InvocationOnMock invocation)
+					throws InterruptedException {
+				release.await();
+				return new BatchResult(Collections.<String> emptyList(),
+						Collections.<String, RuntimeException> emptyMap());
+			}
+		}).when(delegate).persistAll(Mockito.<Collection<SpecialUser>> any());
+		for (int i = 0; i < CAPACITY; i++) {
+			service.persist(new SpecialUser("user" + i, SPECIAL));
+		}
+
+		// act
+		try {
+			service.persist(new SpecialUser("user" + CAPACITY, SPECIAL));
+			fail("Exception expected");
+		} catch (RejectedExecutionException e) {
+			// assert
+			assertEquals(service.getPendingCount(), CAPACITY);
+		} finally {
+			release.countDown();
+		}
+	}
+
+	@Test
+	public void shutdownShouldDrainQueuedWrites() throws Exception {
+		// arrange
+		SpecialUser user = new SpecialUser(USERNAME, SPECIAL);
+		service.persist(user);
+
+		// act
+		service.shutdown();
+
+		// assert
+		assertEquals(batches, Collections.singletonList(Arrays.asList(user)));
+		try {
+			service.persist(user);
+			fail("Exception expected");
+		} catch (RejectedExecutionException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void upsertShouldSupersedeQueuedWrite() throws Exception {
+		// arrange
+		SpecialUser user = new SpecialUser(USERNAME, SPECIAL);
+		service.persist(new SpecialUser(USERNAME, "old"));
+
+		// act
+		service.upsert(user);
+		service.flush();
+
+		// assert
+		verify(delegate).upsert(user);
+		assertTrue(batches.isEmpty());
+		Map<String, SpecialUser> none = Collections.emptyMap();
+		when(delegate.loadAll(Arrays.asList(USERNAME))).thenReturn(none);
+		assertTrue(service.loadAll(Arrays.asList(USERNAME)).isEmpty());
+	}
+
+	@Test
+	public void deleteShouldDropQueuedWrite() throws Exception {
+		// arrange
+		service.persist(new SpecialUser(USERNAME, SPECIAL));
+
+		// act
+		service.delete(USERNAME.toUpperCase());
+		service.flush();
+
+		// assert
+		verify(delegate).delete(USERNAME.toUpperCase());
+		assertTrue(batches.isEmpty());
+		assertEquals(service.getPendingCount(), 0);
+	}
+}
@@ -0,0 +1,159 @@
+package com.ash2k.example.ldap_it.service.it;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.testng.AbstractTestNGSpringContextTests;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.ash2k.example.ldap_it.domain.SpecialUser;
+import com.ash2k.example.ldap_it.pool.AdaptiveConcurrencyLimiter;
+import com.ash2k.example.ldap_it.pool.InstrumentedPoolingContextSource;
+import com.ash2k.example.ldap_it.service.LdapSpecialUserService;
+import com.ash2k.example.ldap_it.utils.EmbeddedADSVer157;
+import com.ash2k.example.ldap_it.utils.IsolatedPartition;
+import com.ash2k.example.ldap_it.utils.LatencyInterceptor;
+
+/**
+ * Integration test for {@link AdaptiveConcurrencyLimiter} used by
+ * {@link LdapSpecialUserService}. Latency is injected into searches of an
+ * isolated partition only, so it runs in parallel with other integration
+ * tests.
+ * 
+ * @author Mikhail Mazursky
+ */
+@ContextConfiguration(classes = { Config.class })
+@Test(singleThreaded = true)
+public class ConcurrencyLimitIT extends AbstractTestNGSpringContextTests {
+	static final SpecialUser USER = new SpecialUser("limited1",
+			"limited1_special");
+	static final int MAX_LIMIT = 8;
+	static final double BACKOFF_RATIO = 0.5;
+	static final long LATENCY_THRESHOLD_MILLIS = 50;
+	static final long INJECTED_LATENCY_MILLIS = 200;
+	static final int THREADS = 16;
+
+	@Autowired
+	EmbeddedADSVer157 ads;
+
+	IsolatedPartition partition;
+	LatencyInterceptor interceptor;
+	InstrumentedPoolingContextSource pool;
+	AdaptiveConcurrencyLimiter limiter;
+	LdapSpecialUserService service;
+
+	@BeforeClass
+	public void createPartition() throws Exception {
+		partition = ads.createPartition("limitIT");
+		interceptor = new LatencyInterceptor(partition);
+		ads.getService().getInterceptorChain().addLast(interceptor);
+		limiter = new AdaptiveConcurrencyLimiter(MAX_LIMIT, 1, MAX_LIMIT,
+				LATENCY_THRESHOLD_MILLIS, TimeUnit.MILLISECONDS);
+		// a few slow round trips are enough to halve the limit even when
+		// other test classes load the server
+		limiter.setBackoffRatio(BACKOFF_RATIO);
+		// pooled so that connection setup does not add to latency
+		pool = new InstrumentedPoolingContextSource();
+		pool.setContextSource(partition.newContextSource());
+		pool.setMaxActive(MAX_LIMIT);
+		service = new LdapSpecialUserService(new LdapTemplate(pool));
+		service.setConcurrencyLimiter(limiter);
+		service.persist(USER);
+	}
+
+	@AfterClass(alwaysRun = true)
+	public void removePartition() throws Exception {
+		if (pool != null) {
+			pool.destroy();
+		}
+		if (interceptor != null) {
+			ads.getService().getInterceptorChain()
+					.remove(interceptor.getName());
+		}
+		if (partition != null) {
+			partition.close();
+		}
+	}
+
+	@Test
+	public void limitShouldShrinkWhileDirectoryIsSlowAndRecoverAfterwards()
+			throws Exception {
+		// arrange
+		interceptor.setDelay(INJECTED_LATENCY_MILLIS, TimeUnit.MILLISECONDS);
+
+		// act
+		long[] slow = loadConcurrently(2000);
+		int slowLimit = limiter.getLimit();
+		interceptor.setDelay(0, TimeUnit.MILLISECONDS);
+		long[] fast = loadConcurrently(1000);
+
+		// assert
+		assertTrue(slow[0] > 0, "Nothing was loaded");
+		assertTrue(slow[1] > 0, "Nothing was rejected");
+		assertTrue(slowLimit < MAX_LIMIT / 2, "Limit " + slowLimit
+				+ " did not shrink");
+		assertTrue(limiter.getLimit() > slowLimit, "Limit "
+				+ limiter.getLimit() + " did not grow");
+		assertTrue(fast[0] > slow[0]);
+		assertEquals(limiter.getInFlight(), 0);
+		assertEquals(limiter.getRejectedCount(), slow[1] + fast[1]);
+	}
+
+	/**
+	 * Loads the user from {@value #THREADS} threads in a loop for a while.
+	 * 
+	 * @return numbers of loaded and rejected users
+	 */
+	private long[] loadConcurrently(long millis) throws Exception {
+		final AtomicLong loaded = new AtomicLong();
+		final AtomicLong rejected = new AtomicLong();
+		final long deadline = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(millis);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Future<?>> workers = new ArrayList<Future<?>>(THREADS);
+			for (int t = 0; t < THREADS; t++) {
+				workers.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						while (System.nanoTime() - deadline < 0) {
+							try {
+								assertEquals(service.load(USER.getUsername()),
+										USER);
+								loaded.incrementAndGet();
+							} catch (RejectedExecutionException e) {
+								rejected.incrementAndGet();
+								// back off a little like a real client would
+								try {
+									Thread.sleep(1);
+								} catch (InterruptedException ie) {
+									return;
+								}
+							}
+						}
+					}
+				}));
+			}
+			for (Future<?> worker : workers) {
+				worker.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return new long[] { loaded.get(), rejected.get() };
+	}
+}
@@ -1,17 +1,36 @@
 package com.ash2k.example.ldap_it.service.it;
 
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.pool.impl.GenericKeyedObjectPool;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.core.env.Environment;
+import org.springframework.jmx.export.MBeanExporter;
 import org.springframework.ldap.core.ContextSource;
 import org.springframework.ldap.core.LdapTemplate;
 import org.springframework.ldap.core.support.LdapContextSource;
-import org.springframework.ldap.pool.factory.PoolingContextSource;
 
+import com.ash2k.example.ldap_it.cache.ExpiringLruCache;
+import com.ash2k.example.ldap_it.domain.SpecialUser;
+import com.ash2k.example.ldap_it.metrics.HistogramMetricsRecorder;
+import com.ash2k.example.ldap_it.metrics.OperationStats;
+import com.ash2k.example.ldap_it.pool.InstrumentedPoolingContextSource;
+import com.ash2k.example.ldap_it.service.CachingSpecialUserService;
+import com.ash2k.example.ldap_it.service.CoalescingSpecialUserService;
+import com.ash2k.example.ldap_it.service.ExecutorAsyncSpecialUserService;
+import com.ash2k.example.ldap_it.service.InstrumentedSpecialUserService;
+import com.ash2k.example.ldap_it.service.LdapSpecialUserService;
+import com.ash2k.example.ldap_it.service.WriteBehindSpecialUserService;
 import com.ash2k.example.ldap_it.utils.EmbeddedADSVer157;
+import com.ash2k.example.ldap_it.utils.EmbeddedADSVer157.PartitionType;
 
 /**
  * Java-based configuration of integration test execution context.
@@ -28,10 +47,42 @@ public class Config {
 	public static final String PROP_LDAP_BASE = "ldap.base";
 	public static final String PROP_LDAP_USERDN = "ldap.userDn";
 	public static final String PROP_LDAP_PASSWORD = "ldap.password";
+	public static final String PROP_LDAP_SNAPSHOT_DIR = "ldap.snapshotDir";
+	public static final String PROP_LDAP_PARTITION_TYPE = "ldap.partitionType";
+	public static final String PROP_LDAP_BULK_IMPORT = "ldap.bulkImport";
+	public static final String PROP_CACHE_MAX_SIZE = "ldap.cache.maxSize";
+	public static final String PROP_CACHE_TTL_SECONDS = "ldap.cache.ttlSeconds";
+	public static final String PROP_CACHE_NEGATIVE_TTL_SECONDS = "ldap.cache.negativeTtlSeconds";
+	public static final String PROP_ASYNC_THREADS = "ldap.async.threads";
+	public static final String PROP_ASYNC_QUEUE_CAPACITY = "ldap.async.queueCapacity";
+	public static final String PROP_ASYNC_VIRTUAL_THREADS = "ldap.async.virtualThreads";
+	public static final String PROP_WRITE_BEHIND_CAPACITY = "ldap.writeBehind.capacity";
+	public static final String PROP_WRITE_BEHIND_THREADS = "ldap.writeBehind.threads";
+	public static final String PROP_WRITE_BEHIND_BATCH_SIZE = "ldap.writeBehind.batchSize";
+	public static final String PROP_WRITE_BEHIND_FLUSH_INTERVAL_MILLIS = "ldap.writeBehind.flushIntervalMillis";
+	public static final String PROP_POOL_MAX_ACTIVE = "ldap.pool.maxActive";
+	public static final String PROP_POOL_MAX_IDLE = "ldap.pool.maxIdle";
+	public static final String PROP_POOL_MAX_TOTAL = "ldap.pool.maxTotal";
+	public static final String PROP_POOL_MIN_IDLE = "ldap.pool.minIdle";
+	public static final String PROP_POOL_MAX_WAIT_MILLIS = "ldap.pool.maxWaitMillis";
+	public static final String PROP_POOL_WHEN_EXHAUSTED = "ldap.pool.whenExhaustedAction";
+	public static final String PROP_POOL_TEST_ON_BORROW = "ldap.pool.testOnBorrow";
+	public static final String PROP_POOL_TEST_ON_RETURN = "ldap.pool.testOnReturn";
+	public static final String PROP_POOL_TEST_WHILE_IDLE = "ldap.pool.testWhileIdle";
+	public static final String PROP_POOL_EVICTION_RUN_MILLIS = "ldap.pool.timeBetweenEvictionRunsMillis";
+	public static final String PROP_POOL_MIN_EVICTABLE_IDLE_MILLIS = "ldap.pool.minEvictableIdleTimeMillis";
+	public static final String PROP_POOL_TESTS_PER_EVICTION_RUN = "ldap.pool.numTestsPerEvictionRun";
+
+	public static final String POOL_MBEAN_NAME = "com.ash2k.example.ldap_it:type=ConnectionPool,name=ldap";
+	public static final String COALESCING_MBEAN_NAME = "com.ash2k.example.ldap_it:type=SpecialUserService,name=coalescing";
+	public static final String OPERATION_MBEAN_NAME_PREFIX = "com.ash2k.example.ldap_it:type=SpecialUserService,operation=";
 
 	@Autowired
 	private Environment env;
 
+	@Autowired
+	private LdapSpecialUserService ldapSpecialUserService;
+
 	@Bean
 	public EmbeddedADSVer157 embeddedADS() {
 		EmbeddedADSVer157 ads = new EmbeddedADSVer157();
@@ -42,6 +93,16 @@ public class Config {
 		ads.setRoot(env.getProperty(PROP_LDAP_BASE));
 		ads.setLdifResources("classpath:example.ldif");
 		ads.setSchemaResources("classpath:example.schema");
+		ads.setIndexedAttributes("objectClass", "ou", "uid", "uniqueMember",
+				"cn", LdapSpecialUserService.LDAP_SPECIAL);
+		ads.setPartitionType(env.getProperty(PROP_LDAP_PARTITION_TYPE,
+				PartitionType.class, PartitionType.JDBM));
+		ads.setBulkImport(env.getProperty(PROP_LDAP_BULK_IMPORT,
+				Boolean.class, false));
+		String snapshotDir = env.getProperty(PROP_LDAP_SNAPSHOT_DIR);
+		if (snapshotDir != null) {
+			ads.setSnapshotDirectory(new File(snapshotDir));
+		}
 
 		return ads;
 	}
@@ -63,14 +124,136 @@ public class Config {
 	}
 
 	@Bean
-	public ContextSource poolingContextSource() {
-		PoolingContextSource cs = new PoolingContextSource();
+	public InstrumentedPoolingContextSource poolingContextSource() {
+		// mutable contexts accept request controls needed for paged results
+		InstrumentedPoolingContextSource cs = new InstrumentedPoolingContextSource();
 		cs.setContextSource(contextSource());
+
+		cs.setMaxActive(env.getProperty(PROP_POOL_MAX_ACTIVE, Integer.class,
+				GenericKeyedObjectPool.DEFAULT_MAX_ACTIVE));
+		cs.setMaxIdle(env.getProperty(PROP_POOL_MAX_IDLE, Integer.class,
+				GenericKeyedObjectPool.DEFAULT_MAX_IDLE));
+		cs.setMaxTotal(env.getProperty(PROP_POOL_MAX_TOTAL, Integer.class,
+				GenericKeyedObjectPool.DEFAULT_MAX_TOTAL));
+		cs.setMinIdle(env.getProperty(PROP_POOL_MIN_IDLE, Integer.class,
+				GenericKeyedObjectPool.DEFAULT_MIN_IDLE));
+		cs.setMaxWait(env.getProperty(PROP_POOL_MAX_WAIT_MILLIS, Long.class,
+				GenericKeyedObjectPool.DEFAULT_MAX_WAIT));
+		cs.setWhenExhaustedAction(whenExhaustedAction(env.getProperty(
+				PROP_POOL_WHEN_EXHAUSTED, "block")));
+		cs.setTestOnBorrow(env.getProperty(PROP_POOL_TEST_ON_BORROW,
+				Boolean.class, GenericKeyedObjectPool.DEFAULT_TEST_ON_BORROW));
+		cs.setTestOnReturn(env.getProperty(PROP_POOL_TEST_ON_RETURN,
+				Boolean.class, GenericKeyedObjectPool.DEFAULT_TEST_ON_RETURN));
+		cs.setTestWhileIdle(env.getProperty(PROP_POOL_TEST_WHILE_IDLE,
+				Boolean.class, GenericKeyedObjectPool.DEFAULT_TEST_WHILE_IDLE));
+		cs.setTimeBetweenEvictionRunsMillis(env.getProperty(
+				PROP_POOL_EVICTION_RUN_MILLIS, Long.class,
+				GenericKeyedObjectPool.DEFAULT_TIME_BETWEEN_EVICTION_RUNS_MILLIS));
+		cs.setMinEvictableIdleTimeMillis(env.getProperty(
+				PROP_POOL_MIN_EVICTABLE_IDLE_MILLIS, Long.class,
+				GenericKeyedObjectPool.DEFAULT_MIN_EVICTABLE_IDLE_TIME_MILLIS));
+		cs.setNumTestsPerEvictionRun(env.getProperty(
+				PROP_POOL_TESTS_PER_EVICTION_RUN, Integer.class,
+				GenericKeyedObjectPool.DEFAULT_NUM_TESTS_PER_EVICTION_RUN));
 		return cs;
 	}
 
+	@Bean
+	public MBeanExporter mbeanExporter() {
+		MBeanExporter exporter = new MBeanExporter();
+		exporter.setRegistrationBehavior(MBeanExporter.REGISTRATION_REPLACE_EXISTING);
+		Map<String, Object> beans = new HashMap<String, Object>();
+		beans.put(POOL_MBEAN_NAME, poolingContextSource().getMetrics());
+		beans.put(COALESCING_MBEAN_NAME, coalescingSpecialUserService()
+				.getStats());
+		for (Map.Entry<String, OperationStats> entry : metricsRecorder()
+				.getAllStats().entrySet()) {
+			beans.put(OPERATION_MBEAN_NAME_PREFIX + entry.getKey(),
+					entry.getValue());
+		}
+		exporter.setBeans(beans);
+		return exporter;
+	}
+
+	@Bean
+	public HistogramMetricsRecorder metricsRecorder() {
+		return new HistogramMetricsRecorder(
+				InstrumentedSpecialUserService.OPERATIONS);
+	}
+
+	@Bean
+	public InstrumentedSpecialUserService instrumentedSpecialUserService() {
+		return new InstrumentedSpecialUserService(ldapSpecialUserService,
+				metricsRecorder());
+	}
+
+	@Bean
+	public CoalescingSpecialUserService coalescingSpecialUserService() {
+		return new CoalescingSpecialUserService(
+				instrumentedSpecialUserService());
+	}
+
 	@Bean
 	public LdapTemplate ldapTemplate() {
 		return new LdapTemplate(poolingContextSource());
 	}
+
+	@Bean
+	@Primary
+	public CachingSpecialUserService cachingSpecialUserService() {
+		ExpiringLruCache<String, SpecialUser> cache = new ExpiringLruCache<String, SpecialUser>(
+				env.getProperty(PROP_CACHE_MAX_SIZE, Integer.class,
+						CachingSpecialUserService.DEFAULT_MAX_SIZE),
+				env.getProperty(PROP_CACHE_TTL_SECONDS, Long.class,
+						CachingSpecialUserService.DEFAULT_TTL_SECONDS),
+				TimeUnit.SECONDS);
+
+		ExpiringLruCache<String, Boolean> negativeCache = null;
+		long negativeTtl = env.getProperty(PROP_CACHE_NEGATIVE_TTL_SECONDS,
+				Long.class, 0L);
+		if (negativeTtl > 0) {
+			negativeCache = new ExpiringLruCache<String, Boolean>(
+					env.getProperty(PROP_CACHE_MAX_SIZE, Integer.class,
+							CachingSpecialUserService.DEFAULT_MAX_SIZE),
+					negativeTtl, TimeUnit.SECONDS);
+		}
+		return new CachingSpecialUserService(coalescingSpecialUserService(),
+				cache, negativeCache);
+	}
+
+	@Bean
+	public ExecutorAsyncSpecialUserService asyncSpecialUserService() {
+		return new ExecutorAsyncSpecialUserService(cachingSpecialUserService(),
+				env.getProperty(PROP_ASYNC_THREADS, Integer.class, 8),
+				env.getProperty(PROP_ASYNC_QUEUE_CAPACITY, Integer.class, 100),
+				env.getProperty(PROP_ASYNC_VIRTUAL_THREADS, Boolean.class,
+						false));
+	}
+
+	@Bean
+	public WriteBehindSpecialUserService writeBehindSpecialUserService() {
+		return new WriteBehindSpecialUserService(cachingSpecialUserService(),
+				env.getProperty(PROP_WRITE_BEHIND_CAPACITY, Integer.class, 10000),
+				env.getProperty(PROP_WRITE_BEHIND_THREADS, Integer.class, 2),
+				env.getProperty(PROP_WRITE_BEHIND_BATCH_SIZE, Integer.class,
+						WriteBehindSpecialUserService.DEFAULT_BATCH_SIZE),
+				env.getProperty(PROP_WRITE_BEHIND_FLUSH_INTERVAL_MILLIS,
+						Long.class,
+						WriteBehindSpecialUserService.DEFAULT_FLUSH_INTERVAL_MILLIS));
+	}
+
+	private static byte whenExhaustedAction(String action) {
+		if ("fail".equalsIgnoreCase(action)) {
+			return GenericKeyedObjectPool.WHEN_EXHAUSTED_FAIL;
+		}
+		if ("block".equalsIgnoreCase(action)) {
+			return GenericKeyedObjectPool.WHEN_EXHAUSTED_BLOCK;
+		}
+		if ("grow".equalsIgnoreCase(action)) {
+			return GenericKeyedObjectPool.WHEN_EXHAUSTED_GROW;
+		}
+		throw new IllegalArgumentException("Unknown "
+				+ PROP_POOL_WHEN_EXHAUSTED + ": " + action);
+	}
 }
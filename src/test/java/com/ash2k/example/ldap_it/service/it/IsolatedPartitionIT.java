@@ -0,0 +1,146 @@
+package com.ash2k.example.ldap_it.service.it;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.testng.AbstractTestNGSpringContextTests;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.ash2k.example.ldap_it.api.SpecialUserHandler;
+import com.ash2k.example.ldap_it.domain.SpecialUser;
+import com.ash2k.example.ldap_it.service.LdapSpecialUserService;
+import com.ash2k.example.ldap_it.utils.EmbeddedADSVer157;
+import com.ash2k.example.ldap_it.utils.IsolatedPartition;
+
+/**
+ * Integration test for partitions created by
+ * {@link EmbeddedADSVer157#createPartition(String)}. Uses the server started
+ * by {@link Config} and does not touch its root partition, so it runs in
+ * parallel with other integration tests.
+ * 
+ * @author Mikhail Mazursky
+ */
+@ContextConfiguration(classes = { Config.class })
+public class IsolatedPartitionIT extends AbstractTestNGSpringContextTests {
+	static final SpecialUser USER = new SpecialUser("isolated1",
+			"isolated1_special");
+
+	@Autowired
+	EmbeddedADSVer157 ads;
+	@Autowired
+	LdapSpecialUserService rootService;
+
+	IsolatedPartition partition;
+	LdapSpecialUserService service;
+
+	@BeforeClass
+	public void createPartition() throws Exception {
+		partition = ads.createPartition("isolatedIT");
+		service = serviceFor(partition);
+	}
+
+	@AfterClass(alwaysRun = true)
+	public void removePartition() {
+		if (partition != null) {
+			partition.close();
+		}
+	}
+
+	@Test
+	public void partitionShouldBeSeededFromLdif() {
+		// arrange
+		SpecialUser user = new SpecialUser("seeded1", "seeded1_special");
+
+		// act
+		service.persist(user);
+
+		// assert
+		assertEquals(service.load(user.getUsername()), user);
+	}
+
+	@Test
+	public void usersShouldOnlyBeVisibleInTheirPartition() throws Exception {
+		// arrange
+		IsolatedPartition other = ads.createPartition("isolatedIT");
+		try {
+			LdapSpecialUserService otherService = serviceFor(other);
+			SpecialUser otherUser = new SpecialUser(USER.getUsername(),
+					"other_special");
+
+			// act
+			service.persist(USER);
+			otherService.persist(otherUser);
+
+			// assert
+			assertEquals(service.load(USER.getUsername()), USER);
+			assertEquals(otherService.load(USER.getUsername()), otherUser);
+			assertFalse(rootService.exists(USER.getUsername()));
+		} finally {
+			other.close();
+		}
+	}
+
+	@Test
+	public void closedPartitionShouldBeRemoved() throws Exception {
+		// arrange
+		IsolatedPartition removed = ads.createPartition("isolatedIT");
+		LdapSpecialUserService removedService = serviceFor(removed);
+		removedService.persist(USER);
+		assertTrue(removedService.exists(USER.getUsername()));
+
+		// act
+		removed.close();
+
+		// assert
+		try {
+			removedService.load(USER.getUsername());
+			fail("Partition " + removed.getSuffix() + " was not removed");
+		} catch (org.springframework.ldap.NameNotFoundException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void purgeUsersShouldKeepUsersContainer() throws Exception {
+		// arrange
+		IsolatedPartition purged = ads.createPartition("isolatedIT");
+		try {
+			LdapSpecialUserService purgedService = serviceFor(purged);
+			List<SpecialUser> users = new ArrayList<SpecialUser>();
+			for (int i = 0; i < 250; i++) {
+				users.add(new SpecialUser("purge" + i, "purge" + i + "_special"));
+			}
+			purgedService.persistAll(users);
+
+			// act
+			purgedService.purgeUsers();
+
+			// assert
+			assertEquals(purgedService.streamAll(new SpecialUserHandler() {
+				@Override
+				public void handle(SpecialUser user) {
+				}
+			}), 0);
+			purgedService.persist(USER);
+			assertEquals(purgedService.load(USER.getUsername()), USER);
+		} finally {
+			purged.close();
+		}
+	}
+
+	private static LdapSpecialUserService serviceFor(
+			IsolatedPartition partition) {
+		return new LdapSpecialUserService(new LdapTemplate(
+				partition.newContextSource()));
+	}
+}
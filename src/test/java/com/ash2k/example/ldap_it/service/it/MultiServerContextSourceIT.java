@@ -0,0 +1,133 @@
+package com.ash2k.example.ldap_it.service.it;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.ldap.core.support.LdapContextSource;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.testng.AbstractTestNGSpringContextTests;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.ash2k.example.ldap_it.pool.InstrumentedPoolingContextSource;
+import com.ash2k.example.ldap_it.pool.MultiServerContextSource;
+import com.ash2k.example.ldap_it.pool.MultiServerContextSource.Server;
+import com.ash2k.example.ldap_it.pool.MultiServerContextSource.ServerStatus;
+import com.ash2k.example.ldap_it.service.LdapSpecialUserService;
+import com.ash2k.example.ldap_it.utils.EmbeddedADSVer157;
+import com.ash2k.example.ldap_it.utils.EmbeddedADSVer157.PartitionType;
+
+/**
+ * Integration test for {@link MultiServerContextSource} that routes between
+ * the server started by {@link Config} and one more embedded server.
+ * 
+ * @author Mikhail Mazursky
+ */
+@ContextConfiguration(classes = { Config.class })
+@Test(singleThreaded = true)
+public class MultiServerContextSourceIT extends
+		AbstractTestNGSpringContextTests {
+
+	@Autowired
+	Environment env;
+
+	EmbeddedADSVer157 secondServer;
+	MultiServerContextSource contextSource;
+	LdapSpecialUserService service;
+
+	@BeforeClass
+	public void startSecondServer() throws Exception {
+		secondServer = new EmbeddedADSVer157();
+		secondServer.setAddress(env.getProperty(Config.PROP_LDAP_HOST));
+		secondServer.setPort(freePort());
+		secondServer.setRoot(env.getProperty(Config.PROP_LDAP_BASE));
+		secondServer.setLdifResources("classpath:example.ldif");
+		secondServer.setSchemaResources("classpath:example.schema");
+		secondServer.setPartitionType(PartitionType.IN_MEMORY);
+		secondServer.start();
+		assertTrue(secondServer.isRunning());
+
+		List<Server> servers = new ArrayList<Server>();
+		servers.add(server(Integer.parseInt(env
+				.getProperty(Config.PROP_LDAP_PORT))));
+		servers.add(server(secondServer.getPort()));
+		contextSource = new MultiServerContextSource(servers);
+		contextSource.start();
+		service = new LdapSpecialUserService(new LdapTemplate(contextSource));
+	}
+
+	@AfterClass(alwaysRun = true)
+	public void stopSecondServer() {
+		if (contextSource != null) {
+			contextSource.stop();
+		}
+		if (secondServer != null) {
+			secondServer.stop();
+		}
+	}
+
+	@Test
+	public void allServersShouldBeAvailable() {
+		// act
+		List<ServerStatus> statuses = contextSource.getServerStatuses();
+
+		// assert
+		assertEquals(statuses.size(), 2);
+		for (ServerStatus status : statuses) {
+			assertTrue(status.isAvailable(), status.toString());
+			assertTrue(status.getLatencyMillis() > 0, status.toString());
+		}
+		assertFalse(service.exists("nobody"));
+	}
+
+	@Test(dependsOnMethods = "allServersShouldBeAvailable")
+	public void stoppedServerShouldBeEjected() {
+		// arrange
+		secondServer.stop();
+
+		// act
+		contextSource.checkHealth();
+
+		// assert
+		List<ServerStatus> statuses = contextSource.getServerStatuses();
+		assertTrue(statuses.get(0).isAvailable(), statuses.toString());
+		assertFalse(statuses.get(1).isAvailable(), statuses.toString());
+		for (int i = 0; i < 20; i++) {
+			assertFalse(service.exists("nobody"));
+		}
+	}
+
+	private Server server(int port) throws Exception {
+		LdapContextSource direct = new LdapContextSource();
+		String url = String.format("ldap://%s:%d",
+				env.getProperty(Config.PROP_LDAP_HOST), port);
+		direct.setUrl(url);
+		direct.setBase(env.getProperty(Config.PROP_LDAP_BASE));
+		direct.setUserDn(env.getProperty(Config.PROP_LDAP_USERDN));
+		direct.setPassword(env.getProperty(Config.PROP_LDAP_PASSWORD));
+		direct.afterPropertiesSet();
+
+		InstrumentedPoolingContextSource pool = new InstrumentedPoolingContextSource();
+		pool.setContextSource(direct);
+		return new Server(url, pool, direct);
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package com.ash2k.example.ldap_it.service.it;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.ldap.core.LdapTemplate;
+import org.springframework.ldap.core.support.LdapContextSource;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.testng.AbstractTestNGSpringContextTests;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import com.ash2k.example.ldap_it.domain.SpecialUser;
+import com.ash2k.example.ldap_it.service.LdapSpecialUserService;
+import com.ash2k.example.ldap_it.utils.EmbeddedADSVer157;
+import com.ash2k.example.ldap_it.utils.EmbeddedADSVer157.PartitionType;
+
+/**
+ * Integration test for snapshot mode of {@link EmbeddedADSVer157}. Starts
+ * servers of its own on free ports.
+ * 
+ * @author Mikhail Mazursky
+ */
+@ContextConfiguration(classes = { Config.class })
+public class SnapshotIT extends AbstractTestNGSpringContextTests {
+
+	@Autowired
+	Environment env;
+
+	@DataProvider
+	public Object[][] partitionTypes() {
+		return new Object[][] { { PartitionType.IN_MEMORY },
+				{ PartitionType.JDBM } };
+	}
+
+	@Test(dataProvider = "partitionTypes")
+	public void restartShouldReuseSnapshotWithoutRewritingIt(
+			PartitionType partitionType) throws Exception {
+		// arrange
+		File snapshotDir = new File(System.getProperty("java.io.tmpdir"),
+				"apacheds_snapshots_" + System.nanoTime());
+		try {
+			startAndStop(snapshotDir, partitionType);
+			File[] saved = snapshotDir.listFiles();
+			// working directory snapshot and parsed custom schema
+			assertEquals(saved.length, 2);
+			// saving creates and deletes a temporary copy next to the saved
+			// file, so modification time of the parent changes if it happens
+			long past = (System.currentTimeMillis() / 1000 - 60) * 1000;
+			assertTrue(snapshotDir.setLastModified(past));
+			for (File file : saved) {
+				assertTrue(file.setLastModified(past));
+			}
+
+			// act
+			startAndStop(snapshotDir, partitionType);
+
+			// assert
+			assertEquals(snapshotDir.list().length, 2);
+			assertEquals(snapshotDir.lastModified(), past);
+			for (File file : saved) {
+				assertEquals(file.lastModified(), past, file.getName());
+			}
+		} finally {
+			deleteDir(snapshotDir);
+		}
+	}
+
+	/**
+	 * Starts a server and checks that LDIF entries are in place (persisting a
+	 * user needs the ou=users entry from example.ldif).
+	 */
+	private void startAndStop(File snapshotDir, PartitionType partitionType)
+			throws Exception {
+		EmbeddedADSVer157 ads = new EmbeddedADSVer157();
+		ads.setAddress(env.getProperty(Config.PROP_LDAP_HOST));
+		ads.setPort(freePort());
+		ads.setRoot(env.getProperty(Config.PROP_LDAP_BASE));
+		ads.setLdifResources("classpath:example.ldif");
+		ads.setSchemaResources("classpath:example.schema");
+		ads.setPartitionType(partitionType);
+		ads.setSnapshotDirectory(snapshotDir);
+		ads.start();
+		try {
+			assertTrue(ads.isRunning());
+			LdapSpecialUserService service = new LdapSpecialUserService(
+					new LdapTemplate(contextSource(ads.getPort())));
+			SpecialUser user = new SpecialUser("snapshot1", "snapshot1_special");
+			service.persist(user);
+			assertEquals(service.load(user.getUsername()), user);
+		} finally {
+			ads.stop();
+		}
+	}
+
+	private LdapContextSource contextSource(int port) throws Exception {
+		LdapContextSource contextSource = new LdapContextSource();
+		contextSource.setUrl(String.format("ldap://%s:%d",
+				env.getProperty(Config.PROP_LDAP_HOST), port));
+		contextSource.setBase(env.getProperty(Config.PROP_LDAP_BASE));
+		contextSource.setUserDn(env.getProperty(Config.PROP_LDAP_USERDN));
+		contextSource.setPassword(env.getProperty(Config.PROP_LDAP_PASSWORD));
+		contextSource.afterPropertiesSet();
+		return contextSource;
+	}
+
+	private static int freePort() throws IOException {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static void deleteDir(File dir) {
+		File[] children = dir.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteDir(child);
+			}
+		}
+		dir.delete();
+	}
+}
@@ -1,18 +1,55 @@
 package com.ash2k.example.ldap_it.service.it;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.ldap.NameNotFoundException;
+import org.springframework.ldap.core.DirContextAdapter;
+import org.springframework.ldap.core.DistinguishedName;
+import org.springframework.ldap.core.LdapTemplate;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.testng.AbstractTestNGSpringContextTests;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
+import com.ash2k.example.ldap_it.api.BatchResult;
+import com.ash2k.example.ldap_it.api.SpecialUserHandler;
 import com.ash2k.example.ldap_it.api.SpecialUserService;
+import com.ash2k.example.ldap_it.api.UpsertOutcome;
 import com.ash2k.example.ldap_it.domain.SpecialUser;
+import com.ash2k.example.ldap_it.metrics.HistogramMetricsRecorder;
+import com.ash2k.example.ldap_it.pool.InstrumentedPoolingContextSource;
+import com.ash2k.example.ldap_it.service.CachingSpecialUserService;
+import com.ash2k.example.ldap_it.service.CoalescingSpecialUserService;
+import com.ash2k.example.ldap_it.service.ExecutorAsyncSpecialUserService;
+import com.ash2k.example.ldap_it.service.InstrumentedSpecialUserService;
 import com.ash2k.example.ldap_it.service.LdapSpecialUserService;
+import com.ash2k.example.ldap_it.service.WriteBehindSpecialUserService;
+import com.ash2k.example.ldap_it.utils.EmbeddedADSVer157;
+import com.ash2k.example.ldap_it.utils.IsolatedPartition;
 
 /**
- * Integration test for {@link LdapSpecialUserService} class.
+ * Integration test for {@link LdapSpecialUserService} class. Services are
+ * stacked the same way as in {@link Config} but over a partition of this
+ * class, so it runs in parallel with other integration tests. Only JMX tests
+ * use beans of {@link Config} and they don't write anything.
  * 
  * @author Mikhail Mazursky
  */
@@ -23,7 +60,55 @@ public class SpecialUserServiceIT extends AbstractTestNGSpringContextTests {
 	static final String SPECIAL = "user1_special";
 
 	@Autowired
+	EmbeddedADSVer157 ads;
+	@Autowired
+	SpecialUserService rootService;
+	@Autowired
+	LdapSpecialUserService rootLdapService;
+
+	IsolatedPartition partition;
+	InstrumentedPoolingContextSource pool;
+	LdapTemplate ldapTemplate;
+	LdapSpecialUserService ldapService;
 	SpecialUserService service;
+	ExecutorAsyncSpecialUserService asyncService;
+	WriteBehindSpecialUserService writeBehindService;
+
+	@BeforeClass
+	public void createServices() throws Exception {
+		partition = ads.createPartition("serviceIT");
+		// mutable contexts accept request controls needed for paged results
+		pool = new InstrumentedPoolingContextSource();
+		pool.setContextSource(partition.newContextSource());
+		ldapTemplate = new LdapTemplate(pool);
+		ldapService = new LdapSpecialUserService(ldapTemplate);
+		HistogramMetricsRecorder recorder = new HistogramMetricsRecorder(
+				InstrumentedSpecialUserService.OPERATIONS);
+		service = new CachingSpecialUserService(
+				new CoalescingSpecialUserService(
+						new InstrumentedSpecialUserService(ldapService,
+								recorder)));
+		asyncService = new ExecutorAsyncSpecialUserService(service, 8, 100,
+				false);
+		writeBehindService = new WriteBehindSpecialUserService(service, 10000,
+				2);
+	}
+
+	@AfterClass(alwaysRun = true)
+	public void removePartition() throws Exception {
+		if (writeBehindService != null) {
+			writeBehindService.shutdown();
+		}
+		if (asyncService != null) {
+			asyncService.shutdown();
+		}
+		if (pool != null) {
+			pool.destroy();
+		}
+		if (partition != null) {
+			partition.close();
+		}
+	}
 
 	@Test
 	public void loadShouldFindPersistedUser() {
@@ -37,4 +122,300 @@ public class SpecialUserServiceIT extends AbstractTestNGSpringContextTests {
 		// assert
 		assertEquals(loadedUser, user);
 	}
+
+	@Test
+	public void persistAllShouldPersistUsersAndReportExistingOnes() {
+		// arrange
+		List<SpecialUser> users = new ArrayList<SpecialUser>();
+		for (int i = 0; i < 250; i++) {
+			users.add(new SpecialUser("batch" + i, "batch" + i + "_special"));
+		}
+		service.persist(users.get(42));
+
+		// act
+		BatchResult result = service.persistAll(users);
+
+		// assert
+		assertEquals(result.getSucceeded().size(), users.size() - 1);
+		assertEquals(result.getFailed().size(), 1);
+		assertTrue(result.getFailed().containsKey("batch42"));
+		assertEquals(service.load("batch249"), users.get(249));
+	}
+
+	@Test
+	public void loadAllShouldFindExistingUsersOnly() {
+		// arrange
+		SpecialUser user2 = new SpecialUser("loadAll2", "loadAll2_special");
+		SpecialUser user3 = new SpecialUser("loadAll3", "loadAll3_special");
+		service.persist(user2);
+		service.persist(user3);
+
+		// act
+		Map<String, SpecialUser> users = service.loadAll(Arrays.asList(
+				"loadAll1", "loadAll2", "loadAll3"));
+
+		// assert
+		assertEquals(users.size(), 2);
+		assertEquals(users.get("loadAll2"), user2);
+		assertEquals(users.get("loadAll3"), user3);
+	}
+
+	@Test
+	public void existsShouldDetectPersistedUser() {
+		// arrange
+		SpecialUser user = new SpecialUser("exists1", "exists1_special");
+		boolean existedBefore = service.exists(user.getUsername());
+		service.persist(user);
+
+		// act
+		boolean exists = service.exists(user.getUsername());
+
+		// assert
+		assertFalse(existedBefore);
+		assertTrue(exists);
+	}
+
+	@Test
+	public void loadAsyncShouldFindUserPersistedAsync() throws Exception {
+		// arrange
+		SpecialUser user = new SpecialUser("async1", "async1_special");
+		asyncService.persistAsync(user).get(5, TimeUnit.SECONDS);
+
+		// act
+		SpecialUser loadedUser = asyncService.loadAsync(user.getUsername())
+				.get(5, TimeUnit.SECONDS);
+
+		// assert
+		assertEquals(loadedUser, user);
+	}
+
+	@Test
+	public void streamAllShouldPassEveryUserPageByPage() throws Exception {
+		// arrange
+		// other tests write to the partition of this class
+		IsolatedPartition streamed = ads.createPartition("streamIT");
+		try {
+			LdapSpecialUserService streamedService = new LdapSpecialUserService(
+					new LdapTemplate(streamed.newContextSource()));
+			List<SpecialUser> users = new ArrayList<SpecialUser>();
+			for (int i = 0; i < 25; i++) {
+				users.add(new SpecialUser("stream" + i, "stream" + i
+						+ "_special"));
+			}
+			streamedService.persistAll(users);
+			final List<SpecialUser> handled = new ArrayList<SpecialUser>();
+			streamedService.setPageSize(7);
+
+			// act
+			long count = streamedService.streamAll(new SpecialUserHandler() {
+				@Override
+				public void handle(SpecialUser user) {
+					handled.add(user);
+				}
+			});
+
+			// assert
+			assertEquals(count, users.size());
+			assertEquals(handled.size(), users.size());
+			assertTrue(handled.containsAll(users));
+		} finally {
+			streamed.close();
+		}
+	}
+
+	@Test
+	public void findBySpecialShouldFindUsersByIndexedAttribute() {
+		// arrange
+		SpecialUser user1 = new SpecialUser("find1", "findme_1");
+		SpecialUser user2 = new SpecialUser("find2", "findme_2");
+		service.persistAll(Arrays.asList(user1, user2));
+
+		// act
+		List<SpecialUser> exact = service.findBySpecial("FINDME_1");
+		List<SpecialUser> prefixed = service.findBySpecialPrefix("findme_");
+
+		// assert
+		assertEquals(exact, Arrays.asList(user1));
+		assertEquals(prefixed.size(), 2);
+		assertTrue(prefixed.containsAll(Arrays.asList(user1, user2)));
+	}
+
+	@Test
+	public void upsertShouldCreateUpdateAndSkipUnchangedUser() {
+		// arrange
+		SpecialUser user = new SpecialUser("upsert1", "upsert1_special");
+		SpecialUser changed = new SpecialUser("upsert1", "upsert1_changed");
+
+		// act
+		UpsertOutcome created = service.upsert(user);
+		UpsertOutcome unchanged = service.upsert(user);
+		UpsertOutcome updated = service.upsert(changed);
+
+		// assert
+		assertEquals(created, UpsertOutcome.CREATED);
+		assertEquals(unchanged, UpsertOutcome.UNCHANGED);
+		assertEquals(updated, UpsertOutcome.UPDATED);
+		assertEquals(ldapService.load(changed.getUsername()), changed);
+	}
+
+	@Test
+	public void deletedUserShouldNotBeFound() {
+		// arrange
+		SpecialUser user = new SpecialUser("delete1", "delete1_special");
+		service.persist(user);
+		assertEquals(service.load(user.getUsername()), user);
+
+		// act
+		service.delete(user.getUsername());
+
+		// assert
+		assertFalse(service.exists(user.getUsername()));
+		assertFalse(ldapService.exists(user.getUsername()));
+	}
+
+	@Test
+	public void deleteAllShouldDeleteUsersAndReportMissingOnes() {
+		// arrange
+		List<SpecialUser> users = new ArrayList<SpecialUser>();
+		List<String> usernames = new ArrayList<String>();
+		for (int i = 0; i < 250; i++) {
+			users.add(new SpecialUser("deleteAll" + i, "deleteAll" + i
+					+ "_special"));
+			usernames.add("deleteAll" + i);
+		}
+		service.persistAll(users);
+		usernames.add("deleteAllMissing");
+
+		// act
+		BatchResult result = service.deleteAll(usernames);
+
+		// assert
+		assertEquals(result.getSucceeded().size(), users.size());
+		assertEquals(result.getFailed().keySet(),
+				Collections.singleton("deleteAllMissing"));
+		assertTrue(ldapService.loadAll(usernames).isEmpty());
+	}
+
+	@Test
+	public void deleteSubtreeShouldDeleteAllEntriesBelow() {
+		// arrange
+		String tenant = "ou=tenant1";
+		ldapTemplate.bind(organizationalUnit(tenant));
+		for (int i = 0; i < 3; i++) {
+			String department = "ou=department" + i + "," + tenant;
+			ldapTemplate.bind(organizationalUnit(department));
+			for (int j = 0; j < 20; j++) {
+				ldapTemplate.bind(organizationalUnit("ou=team" + j + ","
+						+ department));
+			}
+		}
+
+		// act
+		ldapService.deleteSubtree(tenant);
+
+		// assert
+		try {
+			ldapTemplate.lookup(tenant);
+			fail("Subtree was not deleted");
+		} catch (NameNotFoundException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void writeBehindShouldPersistQueuedUsersOnFlush() throws Exception {
+		// arrange
+		List<SpecialUser> users = new ArrayList<SpecialUser>();
+		List<String> usernames = new ArrayList<String>();
+		for (int i = 0; i < 250; i++) {
+			users.add(new SpecialUser("behind" + i, "behind" + i + "_special"));
+			usernames.add("behind" + i);
+		}
+		for (SpecialUser user : users) {
+			writeBehindService.persist(user);
+		}
+
+		// act
+		writeBehindService.flush();
+
+		// assert
+		Map<String, SpecialUser> loaded = ldapService.loadAll(usernames);
+		assertEquals(loaded.size(), users.size());
+		assertTrue(loaded.values().containsAll(users));
+		assertEquals(writeBehindService.getPendingCount(), 0);
+	}
+
+	@Test
+	public void writeBehindShouldUpdateExistingUserOnFlush() throws Exception {
+		// arrange
+		SpecialUser user = new SpecialUser("behindUpdate1", "before");
+		SpecialUser changed = new SpecialUser("behindUpdate1", "after");
+		service.persist(user);
+
+		// act
+		writeBehindService.persist(changed);
+		writeBehindService.flush();
+
+		// assert
+		assertEquals(ldapService.load(changed.getUsername()), changed);
+		assertEquals(writeBehindService.getFailedCount(), 0);
+	}
+
+	@Test
+	public void poolMetricsShouldBeExportedOverJmx() throws Exception {
+		// arrange
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(Config.POOL_MBEAN_NAME);
+		long before = (Long) server.getAttribute(name, "BorrowCount");
+
+		// act
+		rootLdapService.exists("pool1");
+
+		// assert - other test classes may use the pool concurrently
+		assertTrue((Long) server.getAttribute(name, "BorrowCount") > before);
+	}
+
+	@Test
+	public void operationMetricsShouldBeExportedOverJmx() throws Exception {
+		// arrange
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(Config.OPERATION_MBEAN_NAME_PREFIX
+				+ InstrumentedSpecialUserService.OP_EXISTS);
+		long before = (Long) server.getAttribute(name, "Count");
+
+		// act
+		rootService.exists("metrics1");
+
+		// assert
+		assertEquals(server.getAttribute(name, "Count"), before + 1);
+		assertTrue((Double) server.getAttribute(name, "LatencyP99Millis") > 0);
+	}
+
+	@Test
+	public void coalescingStatsShouldBeExportedReadOnlyOverJmx()
+			throws Exception {
+		// arrange
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = new ObjectName(Config.COALESCING_MBEAN_NAME);
+
+		// act
+		MBeanInfo info = server.getMBeanInfo(name);
+
+		// assert
+		assertEquals(info.getOperations().length, 0);
+		assertEquals(info.getAttributes().length, 2);
+		for (MBeanAttributeInfo attribute : info.getAttributes()) {
+			assertFalse(attribute.isWritable(), attribute.getName());
+		}
+		assertTrue((Long) server.getAttribute(name, "LoadCount") >= 0);
+	}
+
+	private static DirContextAdapter organizationalUnit(String dn) {
+		DirContextAdapter ctx = new DirContextAdapter(dn);
+		ctx.setAttributeValues("objectclass", new String[] {
+				"organizationalUnit", "top" });
+		ctx.setAttributeValue("ou",
+				new DistinguishedName(dn).getLdapRdn(0).getValue());
+		return ctx;
+	}
 }
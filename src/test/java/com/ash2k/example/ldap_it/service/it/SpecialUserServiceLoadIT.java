@@ -0,0 +1,161 @@
+package com.ash2k.example.ldap_it.service.it;
+
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.testng.AbstractTestNGSpringContextTests;
+import org.testng.annotations.Test;
+
+import com.ash2k.example.ldap_it.api.BatchResult;
+import com.ash2k.example.ldap_it.api.SpecialUserService;
+import com.ash2k.example.ldap_it.domain.SpecialUser;
+import com.ash2k.example.ldap_it.metrics.LatencyHistogram;
+import com.ash2k.example.ldap_it.service.InstrumentedSpecialUserService;
+
+/**
+ * Load test of the whole stack wired by {@link Config}. Seeds users, runs a
+ * mix of loads and upserts from several threads for a while and fails if
+ * throughput, tail latency or error rate cross configured limits. See
+ * {@code ldap.load.*} properties.
+ * 
+ * @author Mikhail Mazursky
+ */
+@ContextConfiguration(classes = { Config.class })
+@Test(singleThreaded = true)
+public class SpecialUserServiceLoadIT extends AbstractTestNGSpringContextTests {
+
+	public static final String PROP_LOAD_USERS = "ldap.load.users";
+	public static final String PROP_LOAD_THREADS = "ldap.load.threads";
+	public static final String PROP_LOAD_DURATION_SECONDS = "ldap.load.durationSeconds";
+	public static final String PROP_LOAD_WRITE_PERCENT = "ldap.load.writePercent";
+	public static final String PROP_LOAD_CACHED = "ldap.load.cached";
+	public static final String PROP_LOAD_MIN_OPS_PER_SECOND = "ldap.load.minOpsPerSecond";
+	public static final String PROP_LOAD_MAX_P99_MILLIS = "ldap.load.maxP99Millis";
+	public static final String PROP_LOAD_MAX_ERROR_RATE = "ldap.load.maxErrorRate";
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(SpecialUserServiceLoadIT.class);
+
+	@Autowired
+	Environment env;
+	@Autowired
+	SpecialUserService cachedService;
+	@Autowired
+	InstrumentedSpecialUserService uncachedService;
+
+	@Test
+	public void mixedWorkloadShouldMeetThresholds() throws Exception {
+		// arrange
+		final int users = env.getProperty(PROP_LOAD_USERS, Integer.class, 1000);
+		int threads = env.getProperty(PROP_LOAD_THREADS, Integer.class, 8);
+		long durationNanos = TimeUnit.SECONDS.toNanos(env.getProperty(
+				PROP_LOAD_DURATION_SECONDS, Long.class, 5L));
+		final int writePercent = env.getProperty(PROP_LOAD_WRITE_PERCENT,
+				Integer.class, 10);
+		final SpecialUserService service = env.getProperty(PROP_LOAD_CACHED,
+				Boolean.class, false) ? cachedService : uncachedService;
+		seed(service, users);
+
+		final LatencyHistogram reads = new LatencyHistogram();
+		final LatencyHistogram writes = new LatencyHistogram();
+		final AtomicLong errors = new AtomicLong();
+		final long deadline = System.nanoTime() + durationNanos;
+
+		// act
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		long start = System.nanoTime();
+		try {
+			List<Future<?>> workers = new ArrayList<Future<?>>(threads);
+			for (int t = 0; t < threads; t++) {
+				final long seed = t;
+				workers.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						Random random = new Random(seed);
+						while (System.nanoTime() - deadline < 0) {
+							String username = username(random.nextInt(users));
+							boolean write = random.nextInt(100) < writePercent;
+							long opStart = System.nanoTime();
+							try {
+								if (write) {
+									service.upsert(new SpecialUser(username,
+											"load_" + random.nextInt()));
+								} else {
+									service.load(username);
+								}
+							} catch (RuntimeException e) {
+								errors.incrementAndGet();
+							}
+							(write ? writes : reads).record(System.nanoTime()
+									- opStart);
+						}
+					}
+				}));
+			}
+			for (Future<?> worker : workers) {
+				worker.get();
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		// assert
+		long ops = reads.getCount() + writes.getCount();
+		double opsPerSecond = ops / seconds;
+		double errorRate = ops > 0 ? (double) errors.get() / ops : 0;
+		double p99 = Math.max(
+				reads.getPercentile(99, TimeUnit.MILLISECONDS),
+				writes.getPercentile(99, TimeUnit.MILLISECONDS));
+		logger.info(String.format(
+				"%d threads, %d ops in %.1f s: %.0f ops/s, error rate %.4f", threads,
+				ops, seconds, opsPerSecond, errorRate));
+		logger.info(String.format(
+				"reads: %d, p50 %.2f ms, p99 %.2f ms; writes: %d, p50 %.2f ms, p99 %.2f ms",
+				reads.getCount(),
+				reads.getPercentile(50, TimeUnit.MILLISECONDS),
+				reads.getPercentile(99, TimeUnit.MILLISECONDS),
+				writes.getCount(),
+				writes.getPercentile(50, TimeUnit.MILLISECONDS),
+				writes.getPercentile(99, TimeUnit.MILLISECONDS)));
+
+		double minOpsPerSecond = env.getProperty(PROP_LOAD_MIN_OPS_PER_SECOND,
+				Double.class, 0.0);
+		double maxP99 = env.getProperty(PROP_LOAD_MAX_P99_MILLIS, Double.class,
+				Double.MAX_VALUE);
+		double maxErrorRate = env.getProperty(PROP_LOAD_MAX_ERROR_RATE,
+				Double.class, 0.0);
+		assertTrue(opsPerSecond >= minOpsPerSecond, "Throughput "
+				+ opsPerSecond + " ops/s is below " + minOpsPerSecond);
+		assertTrue(p99 <= maxP99, "p99 latency " + p99 + " ms is above "
+				+ maxP99);
+		assertTrue(errorRate <= maxErrorRate, "Error rate " + errorRate
+				+ " is above " + maxErrorRate);
+	}
+
+	private static void seed(SpecialUserService service, int users) {
+		List<SpecialUser> batch = new ArrayList<SpecialUser>(users);
+		for (int i = 0; i < users; i++) {
+			batch.add(new SpecialUser(username(i), "load_" + i));
+		}
+		BatchResult result = service.persistAll(batch);
+		assertTrue(result.isSuccessful(), "Failed to seed users: " + result);
+	}
+
+	private static String username(int i) {
+		return "load" + i;
+	}
+}
@@ -1,29 +1,37 @@
 package com.ash2k.example.ldap_it.utils;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
-import javax.naming.Context;
-import javax.naming.NamingException;
-import javax.naming.directory.Attributes;
-import javax.naming.directory.BasicAttributes;
-import javax.naming.directory.DirContext;
-import javax.naming.directory.InitialDirContext;
 
 import org.apache.directory.server.constants.ServerDNConstants;
 import org.apache.directory.server.core.DefaultDirectoryService;
 import org.apache.directory.server.core.DirectoryService;
 import org.apache.directory.server.core.partition.Partition;
+import org.apache.directory.server.core.partition.avl.AvlIndex;
+import org.apache.directory.server.core.partition.avl.AvlPartition;
+import org.apache.directory.server.core.partition.impl.btree.BTreePartition;
 import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmIndex;
 import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmPartition;
 import org.apache.directory.server.core.partition.ldif.LdifPartition;
@@ -33,12 +41,15 @@ import org.apache.directory.server.protocol.shared.store.LdifFileLoader;
 import org.apache.directory.server.protocol.shared.transport.TcpTransport;
 import org.apache.directory.server.xdbm.Index;
 import org.apache.directory.shared.ldap.entry.ServerEntry;
-import org.apache.directory.shared.ldap.name.DN;
+import org.apache.directory.shared.ldap.schema.AttributeType;
+import org.apache.directory.shared.ldap.schema.ObjectClass;
 import org.apache.directory.shared.ldap.schema.SchemaManager;
+import org.apache.directory.shared.ldap.schema.SchemaObject;
 import org.apache.directory.shared.ldap.schema.ldif.extractor.SchemaLdifExtractor;
 import org.apache.directory.shared.ldap.schema.ldif.extractor.impl.DefaultSchemaLdifExtractor;
 import org.apache.directory.shared.ldap.schema.loader.ldif.LdifSchemaLoader;
 import org.apache.directory.shared.ldap.schema.manager.impl.DefaultSchemaManager;
+import org.apache.directory.shared.ldap.schema.parsers.OpenLdapSchemaParser;
 import org.apache.directory.shared.ldap.schema.registries.SchemaLoader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -72,6 +83,43 @@ public class EmbeddedADSVer157 implements Lifecycle, ApplicationContextAware {
 
 	private static final Random r = new Random();
 
+	public static final String[] DEFAULT_INDEXED_ATTRIBUTES = new String[] {
+			"objectClass", "ou", "uid", "uniqueMember" };
+
+	/**
+	 * Storage of partitions.
+	 */
+	public enum PartitionType {
+		/** Disk-backed B-trees in the working directory */
+		JDBM,
+		/**
+		 * AVL trees in memory. Nothing is written to disk and data is lost on
+		 * stop.
+		 */
+		IN_MEMORY
+	}
+
+	/** Parent of suffixes of partitions made by {@link #createPartition} */
+	public static final String ISOLATED_PARTITIONS_BASE = "o=isolated";
+
+	public static final String ADMIN_PASSWORD = "secret";
+
+	/** Schema custom definitions are added to */
+	private static final String CUSTOM_SCHEMA = "other";
+
+	/**
+	 * Part of snapshot key; change it when layout of working directory
+	 * changes
+	 */
+	private static final String SNAPSHOT_FORMAT = "apacheds-1.5.7/2";
+
+	/**
+	 * Parsed custom schema files keyed by hash of their contents. In snapshot
+	 * mode they are also saved to the snapshot directory to be reused by other
+	 * JVMs
+	 */
+	private static final ConcurrentMap<String, ParsedSchema> PARSED_SCHEMAS = new ConcurrentHashMap<String, ParsedSchema>();
+
 	/** The directory service */
 	private DirectoryService service;
 
@@ -80,11 +128,18 @@ public class EmbeddedADSVer157 implements Lifecycle, ApplicationContextAware {
 
 	private ApplicationContext ctx;
 	private File workingDir;
+	private File snapshotDir;
 
 	private boolean running;
 	private String root, ldifResources, schemaResources;
 	private int port = 53389;
 	private String address;
+	private String[] indexedAttributes = DEFAULT_INDEXED_ATTRIBUTES;
+	private PartitionType partitionType = PartitionType.JDBM;
+	private boolean bulkImport;
+	private int importThreads = Runtime.getRuntime().availableProcessors();
+	private int importBatchSize = 1000;
+	private final AtomicInteger isolatedPartitionCount = new AtomicInteger();
 
 	@Override
 	public void setApplicationContext(ApplicationContext applicationContext)
@@ -110,6 +165,20 @@ public class EmbeddedADSVer157 implements Lifecycle, ApplicationContextAware {
 		this.workingDir = workingDir;
 	}
 
+	/**
+	 * Enables snapshot mode. Working directory of a fully initialized server
+	 * (schema and imported LDIFs) is saved to the given directory under a key
+	 * computed from root, indexed attributes and contents of schema and LDIF
+	 * resources. Subsequent starts with the same inputs copy the snapshot into
+	 * place and skip schema extraction and LDIF import. With
+	 * {@link PartitionType#IN_MEMORY} partitions LDIFs are imported again
+	 * because entries are not on disk. Parsed custom schema files are saved
+	 * there too so that other JVMs don't have to parse them again.
+	 */
+	public void setSnapshotDirectory(File snapshotDir) {
+		this.snapshotDir = snapshotDir;
+	}
+
 	public void setPort(int port) {
 		this.port = port;
 	}
@@ -146,6 +215,51 @@ public class EmbeddedADSVer157 implements Lifecycle, ApplicationContextAware {
 		this.schemaResources = schemaResources;
 	}
 
+	/**
+	 * Sets attributes to index in the root partition. Attributes from custom
+	 * schema can be indexed too.
+	 */
+	public void setIndexedAttributes(String... indexedAttributes) {
+		this.indexedAttributes = indexedAttributes.clone();
+	}
+
+	/**
+	 * Sets how system and root partitions store entries and indexes.
+	 * {@link PartitionType#JDBM} by default.
+	 */
+	public void setPartitionType(PartitionType partitionType) {
+		Assert.notNull(partitionType);
+		this.partitionType = partitionType;
+	}
+
+	/**
+	 * Enables bulk import of LDIF files with {@link LdifBulkImporter}:
+	 * streaming (optionally gzip-compressed) input, parallel adds in batches
+	 * and progress reporting. Root partition does not flush to disk after
+	 * every write in this mode; it is flushed once when import completes.
+	 */
+	public void setBulkImport(boolean bulkImport) {
+		this.bulkImport = bulkImport;
+	}
+
+	/**
+	 * Sets number of threads that add entries in bulk import mode. Number of
+	 * available processors by default.
+	 */
+	public void setImportThreads(int importThreads) {
+		Assert.isTrue(importThreads > 0, "Import threads must be positive");
+		this.importThreads = importThreads;
+	}
+
+	/**
+	 * Sets number of entries parsed ahead and added at once in bulk import
+	 * mode. 1000 by default.
+	 */
+	public void setImportBatchSize(int importBatchSize) {
+		Assert.isTrue(importBatchSize > 0, "Import batch size must be positive");
+		this.importBatchSize = importBatchSize;
+	}
+
 	/**
 	 * Add a new partition to the server
 	 * 
@@ -153,18 +267,36 @@ public class EmbeddedADSVer157 implements Lifecycle, ApplicationContextAware {
 	 *            The partition Id
 	 * @param partitionDn
 	 *            The partition DN
+	 * @param deferSync
+	 *            whether JDBM partition may defer disk writes; the caller
+	 *            has to sync the service then
+	 * @param indexedAttributes
+	 *            The list of attributes to index
 	 * @return The newly added partition
 	 * @throws Exception
 	 *             If the partition can't be added
 	 */
-	private Partition addPartition(String partitionId, String partitionDn)
-			throws Exception {
+	private Partition addPartition(String partitionId, String partitionDn,
+			boolean deferSync, String... indexedAttributes) throws Exception {
 		// Create a new partition
-		JdbmPartition partition = new JdbmPartition();
+		BTreePartition<Long> partition;
+		if (partitionType == PartitionType.IN_MEMORY) {
+			partition = new AvlPartition();
+		} else {
+			JdbmPartition jdbmPartition = new JdbmPartition();
+			jdbmPartition.setPartitionDir(new File(service
+					.getWorkingDirectory(), partitionId));
+			if (deferSync) {
+				// indexes can't be added after init so they can't be
+				// deferred; defer disk writes instead
+				jdbmPartition.setSyncOnWrite(false);
+			}
+			partition = jdbmPartition;
+		}
 		partition.setId(partitionId);
-		partition.setPartitionDir(new File(service.getWorkingDirectory(),
-				partitionId));
 		partition.setSuffix(partitionDn);
+		addIndex(partition, indexedAttributes);
+		// partition is initialized right away if service is running
 		service.addPartition(partition);
 
 		return partition;
@@ -178,16 +310,23 @@ public class EmbeddedADSVer157 implements Lifecycle, ApplicationContextAware {
 	 * @param attrs
 	 *            The list of attributes to index
 	 */
+	@SuppressWarnings("unchecked")
 	private void addIndex(Partition partition, String... attrs) {
 		// Index some attributes on the apache partition
 		Set<Index<?, ServerEntry, Long>> indexedAttributes = new HashSet<Index<?, ServerEntry, Long>>();
 
 		for (String attribute : attrs) {
-			indexedAttributes
-					.add(new JdbmIndex<String, ServerEntry>(attribute));
+			if (partitionType == PartitionType.IN_MEMORY) {
+				indexedAttributes.add(new AvlIndex<String, ServerEntry>(
+						attribute));
+			} else {
+				indexedAttributes.add(new JdbmIndex<String, ServerEntry>(
+						attribute));
+			}
 		}
 
-		((JdbmPartition) partition).setIndexedAttributes(indexedAttributes);
+		((BTreePartition<Long>) partition)
+				.setIndexedAttributes(indexedAttributes);
 	}
 
 	/**
@@ -206,11 +345,14 @@ public class EmbeddedADSVer157 implements Lifecycle, ApplicationContextAware {
 		String workingDirectory = service.getWorkingDirectory().getPath();
 		ldifPartition.setWorkingDirectory(workingDirectory + "/schema");
 
-		// Extract the schema on disk (a brand new one) and load the registries
+		// Extract the schema on disk (a brand new one) unless it was
+		// restored from a snapshot and load the registries
 		File schemaRepository = new File(workingDirectory, "schema");
-		SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor(
-				new File(workingDirectory));
-		extractor.extractOrCopy(true);
+		if (!schemaRepository.exists()) {
+			SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor(
+					new File(workingDirectory));
+			extractor.extractOrCopy(true);
+		}
 
 		schemaPartition.setWrappedPartition(ldifPartition);
 
@@ -230,6 +372,133 @@ public class EmbeddedADSVer157 implements Lifecycle, ApplicationContextAware {
 		if (errors.size() != 0) {
 			throw new Exception("Schema load failed : " + errors);
 		}
+
+		loadSchemas(schemaManager);
+	}
+
+	/**
+	 * Registers custom schema definitions in the schema manager. This is done
+	 * before partitions are initialized so that custom attributes can be
+	 * indexed. Parsed files are cached for subsequent starts in the same JVM
+	 * and, in snapshot mode, in the snapshot directory.
+	 * 
+	 * @throws Exception
+	 *             if schema files can't be read or parsed or contain invalid
+	 *             definitions
+	 */
+	private void loadSchemas(SchemaManager schemaManager) throws Exception {
+		if (schemaResources == null) {
+			return;
+		}
+
+		for (Resource schema : getResources(schemaResources)) {
+			ParsedSchema parsed = parseSchema(schema);
+			// attribute types first - object classes refer to them.
+			// Cached objects are copied because schema manager modifies
+			// objects it registers
+			for (AttributeType attributeType : parsed.attributeTypes) {
+				addSchemaObject(schemaManager, attributeType.copy());
+			}
+			for (ObjectClass objectClass : parsed.objectClasses) {
+				addSchemaObject(schemaManager, objectClass.copy());
+			}
+		}
+	}
+
+	/**
+	 * Parses schema file or takes result of previous parsing of a file with
+	 * the same contents.
+	 */
+	private ParsedSchema parseSchema(Resource schema) throws Exception {
+		byte[] content = readFully(schema);
+		MessageDigest digest = MessageDigest.getInstance("SHA-1");
+		update(digest, SNAPSHOT_FORMAT);
+		String key = hex(digest.digest(content));
+		File saved = snapshotDir == null ? null : new File(snapshotDir, key
+				+ ".schema");
+
+		ParsedSchema parsed = PARSED_SCHEMAS.get(key);
+		if (parsed != null) {
+			logger.info("Using cached schema file: {}", schema.getDescription());
+		} else if (saved != null && saved.isFile()) {
+			try {
+				parsed = readParsedSchema(saved);
+				logger.info("Using saved schema file {} for {}",
+						saved.getAbsolutePath(), schema.getDescription());
+			} catch (Exception e) {
+				logger.warn("Saved schema file can't be used, parsing again",
+						e);
+				// saved again below
+				saved.delete();
+			}
+		}
+		if (parsed == null) {
+			logger.info("Parsing schema file: {}", schema.getDescription());
+			OpenLdapSchemaParser parser = new OpenLdapSchemaParser();
+			parser.parse(new ByteArrayInputStream(content));
+			parsed = new ParsedSchema(parser.getAttributeTypes(),
+					parser.getObjectClassTypes());
+		}
+		// concurrent starts may parse the same file twice, it's harmless
+		PARSED_SCHEMAS.put(key, parsed);
+
+		if (saved != null && !saved.isFile()) {
+			try {
+				saveParsedSchema(parsed, saved);
+			} catch (Exception e) {
+				logger.warn("Failed to save parsed schema", e);
+			}
+		}
+		return parsed;
+	}
+
+	private static ParsedSchema readParsedSchema(File file) throws Exception {
+		ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
+		try {
+			return (ParsedSchema) in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Writes parsed schema under a temporary name and renames it when
+	 * complete, the same way snapshots are saved.
+	 */
+	private void saveParsedSchema(ParsedSchema parsed, File file)
+			throws Exception {
+		if (!snapshotDir.isDirectory() && !snapshotDir.mkdirs()) {
+			throw new IOException("Can't create directory " + snapshotDir);
+		}
+		File tmp = new File(snapshotDir, file.getName() + ".tmp"
+				+ Math.abs(r.nextLong()));
+		try {
+			ObjectOutputStream out = new ObjectOutputStream(
+					new FileOutputStream(tmp));
+			try {
+				out.writeObject(parsed);
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)) {
+				logger.info("Schema file {} was saved concurrently",
+						file.getName());
+			}
+		} finally {
+			if (tmp.exists()) {
+				tmp.delete();
+			}
+		}
+	}
+
+	private void addSchemaObject(SchemaManager schemaManager,
+			SchemaObject schemaObject) throws Exception {
+		schemaObject.setSchemaName(CUSTOM_SCHEMA);
+		if (!schemaManager.add(schemaObject)) {
+			throw new Exception("Failed to add schema object "
+					+ schemaObject.getName() + " : "
+					+ schemaManager.getErrors());
+		}
 	}
 
 	/**
@@ -250,7 +519,7 @@ public class EmbeddedADSVer157 implements Lifecycle, ApplicationContextAware {
 		// then the system partition
 		// this is a MANDATORY partition
 		Partition systemPartition = addPartition("system",
-				ServerDNConstants.SYSTEM_DN);
+				ServerDNConstants.SYSTEM_DN, bulkImport);
 		service.setSystemPartition(systemPartition);
 
 		// Disable the ChangeLog system
@@ -258,25 +527,80 @@ public class EmbeddedADSVer157 implements Lifecycle, ApplicationContextAware {
 		service.setDenormalizeOpAttrsEnabled(true);
 
 		// Now we can create as many partitions as we need
-		Partition rootPartition = addPartition("root", root);
-
 		// Index some attributes on the root partition
-		addIndex(rootPartition, "objectClass", "ou", "uid", "uniqueMember");
+		logger.info("Indexing attributes: {}",
+				Arrays.toString(indexedAttributes));
+		Partition rootPartition = addPartition("root", root, bulkImport,
+				indexedAttributes);
 
 		// And start the service
 		service.startup();
 
 		// Inject the root entry
-		if (!service.getAdminSession().exists(rootPartition.getSuffixDn())) {
-			DN dnRoot = new DN(root);
-			ServerEntry entryRoot = service.newEntry(dnRoot);
-			entryRoot.add("objectClass", "top", "organizationalUnit",
+		addContextEntry(rootPartition);
+
+		// We are all done !
+	}
+
+	private void addContextEntry(Partition partition) throws Exception {
+		if (!service.getAdminSession().exists(partition.getSuffixDn())) {
+			ServerEntry entry = service.newEntry(partition.getSuffixDn());
+			entry.add("objectClass", "top", "organizationalUnit",
 					"extensibleObject");
-			entryRoot.add("dc", "root");
-			service.getAdminSession().add(entryRoot);
+			entry.add("dc", "root");
+			service.getAdminSession().add(entry);
 		}
+	}
 
-		// We are all done !
+	/**
+	 * Creates a partition with a suffix of its own under
+	 * {@value #ISOLATED_PARTITIONS_BASE} while the server is running. The
+	 * partition is indexed and seeded the same way as root partition: LDIF
+	 * entries under root are imported under the new suffix. Many test classes
+	 * (or tests) can share one running server this way without seeing each
+	 * other's data.
+	 * 
+	 * @param name
+	 *            prefix of the partition id; a unique number is appended to
+	 *            it
+	 * @throws Exception
+	 *             if the partition can't be added or seeded
+	 */
+	public IsolatedPartition createPartition(String name) throws Exception {
+		Assert.state(isRunning(), "Directory server is not running");
+		Assert.isTrue(name.matches("[A-Za-z0-9]+"),
+				"Partition name must be alphanumeric: " + name);
+
+		String id = name + isolatedPartitionCount.incrementAndGet();
+		String suffix = "ou=" + id + "," + ISOLATED_PARTITIONS_BASE;
+		logger.info("Creating isolated partition {}", suffix);
+		Partition partition;
+		synchronized (service) {
+			// nothing syncs isolated partitions later, so writes aren't
+			// deferred even in bulk import mode
+			partition = addPartition(id, suffix, false, indexedAttributes);
+		}
+		addContextEntry(partition);
+		if (ldifResources != null) {
+			LdifBulkImporter importer = new LdifBulkImporter(service,
+					importThreads, importBatchSize);
+			importer.setSuffixMapping(root, suffix);
+			importer.importLdifs(getResources(ldifResources));
+		}
+		return new IsolatedPartition(this, partition);
+	}
+
+	void removePartition(IsolatedPartition isolatedPartition)
+			throws Exception {
+		Partition partition = isolatedPartition.getPartition();
+		logger.info("Removing isolated partition {}", partition.getSuffix());
+		synchronized (service) {
+			service.removePartition(partition);
+		}
+		File partitionDir = new File(workingDir, partition.getId());
+		if (partitionDir.exists()) {
+			deleteDir(partitionDir);
+		}
 	}
 
 	private void initDirectoryServer() throws Exception {
@@ -308,6 +632,24 @@ public class EmbeddedADSVer157 implements Lifecycle, ApplicationContextAware {
 					"DirectoryService is already running.");
 		}
 
+		File snapshot = null;
+		boolean restored = false;
+		if (snapshotDir != null) {
+			try {
+				snapshot = new File(snapshotDir, snapshotKey());
+				if (snapshot.isDirectory()) {
+					logger.info("Restoring working directory from snapshot {}",
+							snapshot.getAbsolutePath());
+					copyDir(snapshot, workingDir);
+					restored = true;
+				}
+			} catch (Exception e) {
+				logger.warn("Snapshot can't be used, starting from scratch", e);
+				deleteDir(workingDir);
+				snapshot = null;
+			}
+		}
+
 		logger.info("Starting directory server...");
 		try {
 			initDirectoryService();
@@ -319,15 +661,24 @@ public class EmbeddedADSVer157 implements Lifecycle, ApplicationContextAware {
 
 		running = true;
 
-		try {
-			importSchemas();
-		} catch (Exception e) {
-			logger.error("Failed to import schema file(s)", e);
+		// only JDBM partitions keep entries on disk; in-memory ones are
+		// restored with schema only and have to be seeded again
+		if (!restored || partitionType != PartitionType.JDBM) {
+			try {
+				importLdifs();
+			} catch (Exception e) {
+				logger.error("Failed to import LDIF file(s)", e);
+				return;
+			}
 		}
-		try {
-			importLdifs();
-		} catch (Exception e) {
-			logger.error("Failed to import LDIF file(s)", e);
+
+		// restored snapshot is already there, copying it again is a waste
+		if (snapshot != null && !restored) {
+			try {
+				saveSnapshot(snapshot);
+			} catch (Exception e) {
+				logger.warn("Failed to save snapshot", e);
+			}
 		}
 	}
 
@@ -356,130 +707,165 @@ public class EmbeddedADSVer157 implements Lifecycle, ApplicationContextAware {
 		}
 	}
 
-	private void importSchemas() throws Exception {
+	private void importLdifs() throws Exception {
 		if (ldifResources == null) {
 			return;
 		}
 
 		// Import any ldif files
-		Resource[] schemas;
+		Resource[] ldifs = getResources(ldifResources);
 
-		if (ctx == null) {
-			// Not running within an app context
-			schemas = new PathMatchingResourcePatternResolver()
-					.getResources(schemaResources);
-		} else {
-			schemas = ctx.getResources(schemaResources);
-		}
-		if (schemas != null) {
-			DirContext ctx = null;
-			for (Resource schema : schemas) {
-				String schemaFile = schema.getFile().getAbsolutePath();
-				logger.info("Loading schema file: {}", schemaFile);
-				if (ctx == null) {
-					ctx = initContext();
-				}
-				importSchemaFile(ctx, schemaFile);
+		// Note that we can't just import using the ServerContext returned
+		// from starting Apace DS, apparently because of the long-running issue
+		// DIRSERVER-169.
+		// We need a standard context.
+		// DirContext dirContext = contextSource.getReadWriteContext();
+
+		if (bulkImport) {
+			new LdifBulkImporter(service, importThreads, importBatchSize)
+					.importLdifs(ldifs);
+			service.sync();
+		} else if (ldifs != null) {
+			for (Resource ldif : ldifs) {
+				String ldifFile = ldif.getFile().getAbsolutePath();
+				logger.info("Loading LDIF file: {}", ldifFile);
+				LdifFileLoader loader = new LdifFileLoader(
+						service.getAdminSession(), ldifFile);
+				loader.execute();
 			}
 		}
 	}
 
-	private void importSchemaFile(DirContext ctx, String schemaFile)
-			throws Exception {
+	/**
+	 * Copies working directory to the snapshot directory. Copy is made under
+	 * a temporary name and renamed when complete, so concurrent starts never
+	 * see a partial snapshot.
+	 */
+	private void saveSnapshot(File snapshot) throws Exception {
+		// flush partitions to disk
+		service.sync();
 
-		StringBuilder sb = new StringBuilder();
-		BufferedReader isr = new BufferedReader(new InputStreamReader(
-				new FileInputStream(schemaFile), Charset.forName("UTF-8")));
+		File tmp = new File(snapshotDir, snapshot.getName() + ".tmp"
+				+ Math.abs(r.nextLong()));
+		logger.info("Saving snapshot {}", snapshot.getAbsolutePath());
 		try {
-			String line = null;
-			while (null != (line = isr.readLine())) {
-				line = line.trim();
-				if (line.isEmpty()) {
-					// Separator line - we finished loading a schema entry
-					String schemaAtr = sb.toString().trim();
-					if (schemaAtr.isEmpty()) {
-						// Several empty lines after previous schema entry
-						continue;
-					}
-					sb = new StringBuilder();
-					addSchemaAttribute(ctx, schemaAtr);
-				} else if (line.startsWith("#")) {
-					// Comment
-				} else {
-					sb.append(line).append(' ');
-				}
+			copyDir(workingDir, tmp);
+			if (!tmp.renameTo(snapshot)) {
+				logger.info("Snapshot {} was saved concurrently",
+						snapshot.getName());
 			}
 		} finally {
-			isr.close();
-		}
-		String schemaAtr = sb.toString().trim();
-		if (schemaAtr.isEmpty()) {
-			// Several empty lines after previous schema entry
-			return;
+			if (tmp.exists()) {
+				deleteDir(tmp);
+			}
 		}
-		addSchemaAttribute(ctx, schemaAtr);
 	}
 
-	private boolean addSchemaAttribute(DirContext ctx, String schemaAtr)
-			throws NamingException {
+	/**
+	 * @return hex-encoded hash of everything that affects contents of a
+	 *         freshly initialized working directory
+	 */
+	private String snapshotKey() throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-1");
+		update(digest, SNAPSHOT_FORMAT);
+		update(digest, root);
+		String[] indexed = indexedAttributes.clone();
+		Arrays.sort(indexed);
+		update(digest, Arrays.toString(indexed));
+		update(digest, partitionType.name());
+		for (String pattern : new String[] { schemaResources, ldifResources }) {
+			if (pattern == null) {
+				update(digest, "-");
+				continue;
+			}
+			for (Resource resource : getResources(pattern)) {
+				update(digest, resource.getFilename());
+				InputStream is = resource.getInputStream();
+				try {
+					byte[] buffer = new byte[8192];
+					int read;
+					while ((read = is.read(buffer)) != -1) {
+						digest.update(buffer, 0, read);
+					}
+				} finally {
+					is.close();
+				}
+			}
+		}
 
-		Attributes atAttrs = new BasicAttributes(true);
-		if (schemaAtr.toLowerCase().startsWith("attributetype")) {
-			atAttrs.put("attributeTypes",
-					schemaAtr.substring("attributetype".length()));
-		} else if (schemaAtr.toLowerCase().startsWith("objectclass")) {
-			atAttrs.put("objectClasses",
-					schemaAtr.substring("objectclass".length()));
-		} else {
-			logger.warn("Unknown schema entry format; skipped: {}", schemaAtr);
-			return false;
+		return hex(digest.digest());
+	}
+
+	private static String hex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(
+					Character.forDigit(b & 0xf, 16));
 		}
-		ctx.modifyAttributes("cn=schema", DirContext.ADD_ATTRIBUTE, atAttrs);
-		return true;
+		return hex.toString();
 	}
 
-	private DirContext initContext() throws Exception {
-		Hashtable<Object, Object> env = new Hashtable<Object, Object>();
-		env.put(Context.INITIAL_CONTEXT_FACTORY,
-				"com.sun.jndi.ldap.LdapCtxFactory");
-		env.put(Context.PROVIDER_URL, "ldap://127.0.0.1:" + port + "/");
-		env.put(Context.SECURITY_PRINCIPAL, "uid=admin,ou=system");
-		env.put(Context.SECURITY_CREDENTIALS, "secret");
+	private static void update(MessageDigest digest, String value)
+			throws IOException {
+		digest.update(String.valueOf(value).getBytes("UTF-8"));
+		// separator so that ("ab", "c") and ("a", "bc") differ
+		digest.update((byte) 0);
+	}
 
-		return new InitialDirContext(env);
+	private static byte[] readFully(Resource resource) throws IOException {
+		InputStream is = resource.getInputStream();
+		try {
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = is.read(buffer)) != -1) {
+				content.write(buffer, 0, read);
+			}
+			return content.toByteArray();
+		} finally {
+			is.close();
+		}
 	}
 
-	private void importLdifs() throws Exception {
-		if (ldifResources == null) {
-			return;
+	private static void copyDir(File from, File to) throws IOException {
+		if (!to.mkdirs()) {
+			throw new IOException("Can't create directory " + to);
+		}
+		for (File child : from.listFiles()) {
+			File target = new File(to, child.getName());
+			if (child.isDirectory()) {
+				copyDir(child, target);
+			} else {
+				copyFile(child, target);
+			}
 		}
+	}
 
-		// Import any ldif files
-		Resource[] ldifs;
+	private static void copyFile(File from, File to) throws IOException {
+		FileChannel in = new FileInputStream(from).getChannel();
+		try {
+			FileChannel out = new FileOutputStream(to).getChannel();
+			try {
+				long size = in.size();
+				long position = 0;
+				while (position < size) {
+					position += in.transferTo(position, size - position, out);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
 
+	private Resource[] getResources(String locationPattern) throws Exception {
 		if (ctx == null) {
 			// Not running within an app context
-			ldifs = new PathMatchingResourcePatternResolver()
-					.getResources(ldifResources);
-		} else {
-			ldifs = ctx.getResources(ldifResources);
-		}
-
-		// Note that we can't just import using the ServerContext returned
-		// from starting Apace DS, apparently because of the long-running issue
-		// DIRSERVER-169.
-		// We need a standard context.
-		// DirContext dirContext = contextSource.getReadWriteContext();
-
-		if (ldifs != null) {
-			for (Resource ldif : ldifs) {
-				String ldifFile = ldif.getFile().getAbsolutePath();
-				logger.info("Loading LDIF file: {}", ldifFile);
-				LdifFileLoader loader = new LdifFileLoader(
-						service.getAdminSession(), ldifFile);
-				loader.execute();
-			}
+			return new PathMatchingResourcePatternResolver()
+					.getResources(locationPattern);
 		}
+		return ctx.getResources(locationPattern);
 	}
 
 	private boolean deleteDir(File dir) {
@@ -498,4 +884,18 @@ public class EmbeddedADSVer157 implements Lifecycle, ApplicationContextAware {
 	public boolean isRunning() {
 		return running;
 	}
+
+	private static final class ParsedSchema implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		final List<AttributeType> attributeTypes;
+		final List<ObjectClass> objectClasses;
+
+		ParsedSchema(List<AttributeType> attributeTypes,
+				List<ObjectClass> objectClasses) {
+			// copied so that lists are serializable whatever parser returns
+			this.attributeTypes = new ArrayList<AttributeType>(attributeTypes);
+			this.objectClasses = new ArrayList<ObjectClass>(objectClasses);
+		}
+	}
 }
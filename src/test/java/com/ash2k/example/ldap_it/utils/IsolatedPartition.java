@@ -0,0 +1,67 @@
+package com.ash2k.example.ldap_it.utils;
+
+import java.io.Closeable;
+
+import org.apache.directory.server.constants.ServerDNConstants;
+import org.apache.directory.server.core.partition.Partition;
+import org.springframework.ldap.core.support.LdapContextSource;
+
+/**
+ * Partition created by {@link EmbeddedADSVer157#createPartition(String)}.
+ * Closing it removes the partition with all its data from the server.
+ * 
+ * @author Mikhail Mazursky
+ */
+public final class IsolatedPartition implements Closeable {
+
+	private final EmbeddedADSVer157 server;
+	private final Partition partition;
+
+	IsolatedPartition(EmbeddedADSVer157 server, Partition partition) {
+		this.server = server;
+		this.partition = partition;
+	}
+
+	public String getId() {
+		return partition.getId();
+	}
+
+	public String getSuffix() {
+		return partition.getSuffix();
+	}
+
+	/**
+	 * @return context source authenticated as server administrator whose base
+	 *         is the suffix of this partition
+	 */
+	public LdapContextSource newContextSource() {
+		String host = server.getAddress() == null ? "localhost" : server
+				.getAddress();
+		LdapContextSource cs = new LdapContextSource();
+		cs.setUrl("ldap://" + host + ":" + server.getPort());
+		cs.setBase(getSuffix());
+		cs.setUserDn(ServerDNConstants.ADMIN_SYSTEM_DN);
+		cs.setPassword(EmbeddedADSVer157.ADMIN_PASSWORD);
+		try {
+			cs.afterPropertiesSet();
+		} catch (Exception e) {
+			throw new IllegalStateException(
+					"Failed to initialize context source", e);
+		}
+		return cs;
+	}
+
+	@Override
+	public void close() {
+		try {
+			server.removePartition(this);
+		} catch (Exception e) {
+			throw new IllegalStateException("Failed to remove partition "
+					+ getSuffix(), e);
+		}
+	}
+
+	Partition getPartition() {
+		return partition;
+	}
+}
@@ -0,0 +1,49 @@
+package com.ash2k.example.ldap_it.utils;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.directory.server.core.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.interceptor.BaseInterceptor;
+import org.apache.directory.server.core.interceptor.NextInterceptor;
+import org.apache.directory.server.core.interceptor.context.SearchOperationContext;
+import org.apache.directory.shared.ldap.name.DN;
+
+/**
+ * Interceptor that slows down searches (and so lookups) in an
+ * {@link IsolatedPartition} to simulate an overloaded directory without
+ * disturbing other partitions of the server. It has to be added at the end
+ * of the chain, after DNs are normalized.
+ * 
+ * @author Mikhail Mazursky
+ */
+public final class LatencyInterceptor extends BaseInterceptor {
+
+	private final DN suffix;
+	private volatile long delayMillis;
+
+	public LatencyInterceptor(IsolatedPartition partition) {
+		this.suffix = partition.getPartition().getSuffixDn();
+	}
+
+	public void setDelay(long delay, TimeUnit unit) {
+		this.delayMillis = unit.toMillis(delay);
+	}
+
+	/**
+	 * @return name unique for the partition
+	 */
+	@Override
+	public String getName() {
+		return super.getName() + ":" + suffix.getNormName();
+	}
+
+	@Override
+	public EntryFilteringCursor search(NextInterceptor next,
+			SearchOperationContext opContext) throws Exception {
+		long delay = delayMillis;
+		if (delay > 0 && opContext.getDn().isChildOf(suffix)) {
+			Thread.sleep(delay);
+		}
+		return next.search(opContext);
+	}
+}
@@ -0,0 +1,290 @@
+package com.ash2k.example.ldap_it.utils;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.directory.server.core.CoreSession;
+import org.apache.directory.server.core.DirectoryService;
+import org.apache.directory.shared.ldap.entry.DefaultServerEntry;
+import org.apache.directory.shared.ldap.exception.LdapEntryAlreadyExistsException;
+import org.apache.directory.shared.ldap.exception.LdapInvalidDnException;
+import org.apache.directory.shared.ldap.ldif.LdifEntry;
+import org.apache.directory.shared.ldap.ldif.LdifReader;
+import org.apache.directory.shared.ldap.name.DN;
+import org.apache.directory.shared.ldap.schema.SchemaManager;
+import org.apache.directory.shared.ldap.schema.normalizers.OidNormalizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.Resource;
+import org.springframework.util.Assert;
+
+/**
+ * Imports large LDIF files into a running {@link DirectoryService}.
+ * <p>
+ * Input is parsed as a stream, so memory use does not depend on file size.
+ * Resources whose name ends with {@value #GZIP_SUFFIX} are decompressed on the
+ * fly. Parsed entries are collected into batches and each batch is added by
+ * several threads at once. An entry is only added after its parent: entries
+ * whose parent is in the same batch are added in a later round.
+ * <p>
+ * Entries that already exist are skipped. Change records other than adds are
+ * applied one by one in file order. Entries can be moved to another suffix
+ * on the fly with {@link #setSuffixMapping(String, String)}.
+ * 
+ * @author Mikhail Mazursky
+ */
+public class LdifBulkImporter {
+
+	private static final Logger logger = LoggerFactory
+			.getLogger(LdifBulkImporter.class);
+
+	public static final String GZIP_SUFFIX = ".gz";
+
+	private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS
+			.toNanos(5);
+
+	private final DirectoryService service;
+	private final int threads;
+	private final int batchSize;
+
+	private DN fromSuffix, toSuffix;
+
+	private long imported, skipped;
+	private long startedAt, lastReportAt;
+
+	public LdifBulkImporter(DirectoryService service, int threads,
+			int batchSize) {
+		Assert.notNull(service, "Service must not be null");
+		Assert.isTrue(threads > 0, "Threads must be positive");
+		Assert.isTrue(batchSize > 0, "Batch size must be positive");
+		this.service = service;
+		this.threads = threads;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Imports entries under {@code from} suffix (including the suffix entry
+	 * itself) to the same place under {@code to} suffix, e.g. to load the
+	 * same data into several partitions.
+	 * 
+	 * @throws LdapInvalidDnException
+	 *             if one of suffixes is not a valid DN
+	 */
+	public void setSuffixMapping(String from, String to)
+			throws LdapInvalidDnException {
+		fromSuffix = DN.normalize(from, normalizerMapping());
+		toSuffix = new DN(to);
+	}
+
+	/**
+	 * Imports all entries from given resources in order.
+	 * 
+	 * @return number of added entries
+	 * @throws Exception
+	 *             if a resource can't be read or parsed or an entry can't be
+	 *             added
+	 */
+	public long importLdifs(Resource... ldifs) throws Exception {
+		imported = 0;
+		skipped = 0;
+		startedAt = System.nanoTime();
+		lastReportAt = startedAt;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			for (Resource ldif : ldifs) {
+				logger.info("Bulk loading LDIF file: {}", ldif.getDescription());
+				importLdif(ldif, executor);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		long elapsed = System.nanoTime() - startedAt;
+		logger.info("Imported {} entries ({} skipped) in {} ms, {} entries/s",
+				new Object[] { imported, skipped,
+						TimeUnit.NANOSECONDS.toMillis(elapsed),
+						rate(imported, elapsed) });
+		return imported;
+	}
+
+	private void importLdif(Resource ldif, ExecutorService executor)
+			throws Exception {
+		InputStream is = ldif.getInputStream();
+		try {
+			String name = ldif.getFilename();
+			if (name != null && name.endsWith(GZIP_SUFFIX)) {
+				is = new GZIPInputStream(is, 64 * 1024);
+			}
+			LdifReader reader = new LdifReader(new BufferedReader(
+					new InputStreamReader(is, "UTF-8"), 64 * 1024));
+			try {
+				List<LdifEntry> batch = new ArrayList<LdifEntry>(batchSize);
+				for (LdifEntry entry : reader) {
+					if (fromSuffix != null) {
+						moveToSuffix(entry);
+					}
+					if (entry.isEntry() || entry.isChangeAdd()) {
+						batch.add(entry);
+						if (batch.size() == batchSize) {
+							addBatch(batch, executor);
+							batch.clear();
+						}
+					} else {
+						// preserve order of changes relative to adds
+						addBatch(batch, executor);
+						batch.clear();
+						applyChange(entry);
+					}
+				}
+				if (reader.hasError()) {
+					throw reader.getError();
+				}
+				addBatch(batch, executor);
+			} finally {
+				reader.close();
+			}
+		} finally {
+			is.close();
+		}
+	}
+
+	private void addBatch(List<LdifEntry> batch, ExecutorService executor)
+			throws Exception {
+		if (batch.isEmpty()) {
+			return;
+		}
+		long added = 0;
+		for (List<LdifEntry> round : rounds(batch)) {
+			int slices = Math.min(threads, round.size());
+			List<Future<Integer>> futures = new ArrayList<Future<Integer>>(
+					slices);
+			for (int i = 0; i < slices; i++) {
+				int from = round.size() * i / slices;
+				int to = round.size() * (i + 1) / slices;
+				futures.add(executor.submit(new AddTask(round
+						.subList(from, to))));
+			}
+			for (Future<Integer> future : futures) {
+				try {
+					added += future.get();
+				} catch (ExecutionException e) {
+					for (Future<Integer> f : futures) {
+						f.cancel(true);
+					}
+					Throwable cause = e.getCause();
+					throw cause instanceof Exception ? (Exception) cause : e;
+				}
+			}
+		}
+		imported += added;
+		skipped += batch.size() - added;
+		reportProgress();
+	}
+
+	/**
+	 * Splits batch into rounds. Entries of one round can be added in any
+	 * order: parent of an entry is either outside of the batch or in an
+	 * earlier round.
+	 */
+	private List<List<LdifEntry>> rounds(List<LdifEntry> batch)
+			throws Exception {
+		Map<String, OidNormalizer> oids = normalizerMapping();
+		Map<String, Integer> roundOfDn = new HashMap<String, Integer>(
+				batch.size() * 2);
+		List<List<LdifEntry>> rounds = new ArrayList<List<LdifEntry>>();
+		for (LdifEntry entry : batch) {
+			DN dn = DN.normalize(entry.getDn(), oids);
+			DN parent = DN.normalize(dn.getPrefix(dn.size() - 1), oids);
+			Integer parentRound = roundOfDn.get(parent.getNormName());
+			int round = parentRound == null ? 0 : parentRound + 1;
+			roundOfDn.put(dn.getNormName(), round);
+			if (round == rounds.size()) {
+				rounds.add(new ArrayList<LdifEntry>());
+			}
+			rounds.get(round).add(entry);
+		}
+		return rounds;
+	}
+
+	private void moveToSuffix(LdifEntry entry) throws LdapInvalidDnException {
+		DN dn = entry.getDn();
+		DN normalized = DN.normalize(new DN(dn), normalizerMapping());
+		if (!normalized.isChildOf(fromSuffix)) {
+			return;
+		}
+		DN moved = new DN(toSuffix);
+		moved.addAll(dn.getSuffix(fromSuffix.size()));
+		entry.setDn(moved);
+	}
+
+	private Map<String, OidNormalizer> normalizerMapping() {
+		return service.getSchemaManager().getNormalizerMapping();
+	}
+
+	private void applyChange(LdifEntry change) throws Exception {
+		CoreSession session = service.getAdminSession();
+		if (change.isChangeModify()) {
+			session.modify(change.getDn(), change.getModificationItems());
+		} else if (change.isChangeDelete()) {
+			session.delete(change.getDn());
+		} else {
+			throw new UnsupportedOperationException("Unsupported change type "
+					+ change.getChangeType() + " of " + change.getDn());
+		}
+	}
+
+	private void reportProgress() {
+		long now = System.nanoTime();
+		if (now - lastReportAt < PROGRESS_INTERVAL_NANOS) {
+			return;
+		}
+		lastReportAt = now;
+		logger.info("Imported {} entries so far, {} entries/s", imported,
+				rate(imported, now - startedAt));
+	}
+
+	private static long rate(long count, long nanos) {
+		return nanos == 0 ? 0 : count * TimeUnit.SECONDS.toNanos(1) / nanos;
+	}
+
+	private final class AddTask implements Callable<Integer> {
+
+		private final List<LdifEntry> entries;
+
+		AddTask(List<LdifEntry> entries) {
+			this.entries = entries;
+		}
+
+		@Override
+		public Integer call() throws Exception {
+			CoreSession session = service.getAdminSession();
+			SchemaManager schemaManager = service.getSchemaManager();
+			int added = 0;
+			for (LdifEntry entry : entries) {
+				if (Thread.currentThread().isInterrupted()) {
+					throw new InterruptedException();
+				}
+				try {
+					session.add(new DefaultServerEntry(schemaManager, entry
+							.getEntry()));
+					added++;
+				} catch (LdapEntryAlreadyExistsException e) {
+					logger.debug("Entry {} already exists, skipping",
+							entry.getDn());
+				}
+			}
+			return added;
+		}
+	}
+}